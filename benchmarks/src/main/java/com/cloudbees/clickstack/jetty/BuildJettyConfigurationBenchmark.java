@@ -0,0 +1,144 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty;
+
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import com.cloudbees.clickstack.jetty.benchmarks.SyntheticMetadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Generation of {@code jetty.xml}, {@code app.xml} and {@code jetty-metrics.xml} by
+ * {@link SetupJettyConfigurationFiles#buildJettyConfiguration(Path, Path)} with many databases and all the optional
+ * features enabled.
+ * <p/>
+ * Requires the system properties {@code jetty.distribution} (Jetty distribution zip, source of {@code etc/jetty.xml})
+ * and {@code clickstack.dist} ({@code src/dist} of the clickstack, source of the templates of jetty base).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BuildJettyConfigurationBenchmark {
+
+    @Param({"1", "20", "100"})
+    public int databases;
+
+    /**
+     * {@code default} runtime parameters or {@code all} the optional handlers, listeners and beans
+     */
+    @Param({"default", "all"})
+    public String features;
+
+    private Path tmpDir;
+    private Path jettyHome;
+    private Path jettyBase;
+    private Path templatesDir;
+    private Metadata metadata;
+    private ServerSizing serverSizing;
+    private JvmErgonomics jvmErgonomics;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        tmpDir = Files.createTempDirectory("build-jetty-configuration-benchmark");
+
+        jettyHome = Files.createDirectories(tmpDir.resolve("jetty-home/etc"));
+        try (ZipFile distribution = new ZipFile(System.getProperty("jetty.distribution"))) {
+            Enumeration<? extends ZipEntry> entries = distribution.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.getName().matches("[^/]+/etc/jetty\\.xml")) {
+                    try (InputStream in = distribution.getInputStream(entry)) {
+                        Files.copy(in, jettyHome.resolve("jetty.xml"));
+                    }
+                }
+            }
+        }
+        jettyHome = jettyHome.getParent();
+
+        templatesDir = Paths.get(System.getProperty("clickstack.dist")).resolve("jetty-base");
+        jettyBase = Files.createDirectories(tmpDir.resolve("jetty-base"));
+        Files.createDirectories(jettyBase.resolve("webapps"));
+        Files.createDirectories(jettyBase.resolve("start.d"));
+
+        SyntheticMetadata syntheticMetadata = new SyntheticMetadata().withDatabases(databases);
+        if ("all".equals(features)) {
+            syntheticMetadata
+                    .withRuntimeParameter("jetty", "admission_control_enabled", "true")
+                    .withRuntimeParameter("jetty", "request_latency_patterns", "api=/api/*;pages=*.jsp;static=/static/*")
+                    .withRuntimeParameter("jetty", "warmup_enabled", "true")
+                    .withRuntimeParameter("jetty", "profiler_enabled", "true")
+                    .withRuntimeParameter("jetty", "session_store", "file");
+            for (int i = 0; i < databases; i++) {
+                syntheticMetadata.withRuntimeParameter("jetty", "datasource.db" + i + ".maxWait", "5000");
+            }
+        }
+        metadata = syntheticMetadata.build(tmpDir.resolve("metadata.json"));
+
+        ContainerResources resources = new ContainerResources(4, 2048L * 1024 * 1024);
+        serverSizing = new ServerSizing(resources, metadata);
+        jvmErgonomics = new JvmErgonomics(resources, serverSizing, metadata, 8);
+    }
+
+    /**
+     * The generation modifies the templates in place, restore them like {@link Setup#buildJettyConfiguration()}.
+     */
+    @Setup(Level.Invocation)
+    public void restoreTemplates() throws Exception {
+        Files.copy(templatesDir.resolve("webapps/app.xml"), jettyBase.resolve("webapps/app.xml"), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(templatesDir.resolve("jetty-metrics.xml"), jettyBase.resolve("jetty-metrics.xml"), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        JettyDistributionCache.deleteDirectory(tmpDir);
+    }
+
+    @Benchmark
+    public Path buildJettyConfiguration() throws Exception {
+        new SetupJettyConfigurationFiles(metadata, 8)
+                .withServerSizing(serverSizing)
+                .withJvmErgonomics(jvmErgonomics)
+                .withLogDir(tmpDir.resolve("log"))
+                .withReadinessFile(tmpDir.resolve("app_ready"))
+                .withSharedMetricsFile(tmpDir.resolve("app_metrics"))
+                .buildJettyConfiguration(jettyBase, jettyHome);
+        return jettyBase;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty;
+
+import com.cloudbees.clickstack.jetty.benchmarks.SyntheticWar;
+import com.google.common.hash.Hashing;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File system heavy phases of the setup with large wars: scan of the war for the bundled files, explosion of the
+ * war ({@code webapp_mode=exploded}), fingerprint of the war (incremental setup) and installation of the Jetty
+ * distribution from a warm {@link JettyDistributionCache}.
+ * <p/>
+ * Requires the system property {@code jetty.distribution} (Jetty distribution zip).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SetupPhasesBenchmark {
+
+    /**
+     * Jars of 512 KB in {@code WEB-INF/lib}, with 1000 static resources of 8 KB
+     */
+    @Param({"10", "100"})
+    public int libs;
+
+    private Path tmpDir;
+    private Path warFile;
+    private Path distributionZip;
+    private JettyDistributionCache distributionCache;
+    private Path targetDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        tmpDir = Files.createTempDirectory("setup-phases-benchmark");
+        warFile = SyntheticWar.create(tmpDir.resolve("app.war"), libs, 512, 1000, 8);
+        distributionZip = Paths.get(System.getProperty("jetty.distribution"));
+        distributionCache = new JettyDistributionCache(tmpDir.resolve("distribution-cache"), 1, JettyDistributionCache.LinkMode.HARDLINK);
+        // warm the cache
+        JettyDistributionCache.deleteDirectory(distributionCache.install(distributionZip, Files.createDirectories(tmpDir.resolve("warm-up"))));
+    }
+
+    @Setup(Level.Invocation)
+    public void createTargetDir() throws Exception {
+        targetDir = Files.createTempDirectory(tmpDir, "target");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTargetDir() throws Exception {
+        JettyDistributionCache.deleteDirectory(targetDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        JettyDistributionCache.deleteDirectory(tmpDir);
+    }
+
+    @Benchmark
+    public WarScanner.Result scanWar() throws Exception {
+        return new WarScanner(warFile)
+                .extractApplicationExtraFilesTo(targetDir.resolve("app-extra-files"))
+                .extractContainerExtraLibsTo(targetDir.resolve("lib"))
+                .extractBundledContextXmlTo(targetDir.resolve("app-bundled.xml"))
+                .extractBundledWarmUpRequestsTo(targetDir.resolve("warmup-requests.txt"))
+                .scan();
+    }
+
+    @Benchmark
+    public WarScanner.Result explodeWar() throws Exception {
+        return new WarScanner(warFile)
+                .extractApplicationExtraFilesTo(targetDir.resolve("app-extra-files"))
+                .extractContainerExtraLibsTo(targetDir.resolve("lib"))
+                .extractBundledContextXmlTo(targetDir.resolve("app-bundled.xml"))
+                .extractBundledWarmUpRequestsTo(targetDir.resolve("warmup-requests.txt"))
+                .explodeTo(targetDir.resolve("app"))
+                .scan();
+    }
+
+    /**
+     * See {@link Setup#getWarFingerprint()}
+     */
+    @Benchmark
+    public String fingerprintWar() throws Exception {
+        return com.google.common.io.Files.hash(warFile.toFile(), Hashing.sha1()).toString();
+    }
+
+    @Benchmark
+    public Path installJettyHome() throws Exception {
+        return distributionCache.install(distributionZip, targetDir);
+    }
+}
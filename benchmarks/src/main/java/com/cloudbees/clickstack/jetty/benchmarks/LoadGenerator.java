@@ -0,0 +1,188 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.benchmarks;
+
+import com.cloudbees.clickstack.jetty.extras.metrics.LatencyHistogram;
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load of {@code concurrency} clients on keep-alive connections, accepting gzip encoded responses like browsers.
+ * <ul>
+ * <li>{@link #run(URL, int, long)}: closed loop, each client sends its next request as soon as it received the
+ * previous response, measures the maximum throughput. The latencies suffer from coordinated omission: while the
+ * server stalls, the clients wait instead of sending the requests they should have sent.</li>
+ * <li>{@link #runAtConstantRate(URL, int, double, long)}: open loop, the requests are scheduled at a constant rate
+ * and their latency is measured from their intended send time, a stall of the server is accounted to all the
+ * requests that should have been sent during the stall.</li>
+ * </ul>
+ * The latencies are recorded in microseconds in a {@link LatencyHistogram}.
+ */
+public class LoadGenerator {
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Measures of a run, serialized as is in the results of the load test.
+     */
+    public static class Result {
+        public String profile;
+        public String scenario;
+        public int concurrency;
+        /**
+         * Requests per second scheduled by the clients, {@code 0} in closed loop
+         */
+        public double rate;
+        public long duration;
+        public long requests;
+        public long errors;
+        public long bytes;
+        /**
+         * Requests per second
+         */
+        public double throughput;
+        /**
+         * Latencies in microseconds
+         */
+        public long latencyMean;
+        public long latencyP50;
+        public long latencyP90;
+        public long latencyP99;
+        public long latencyP999;
+        public long latencyMax;
+
+        @Override
+        public String toString() {
+            return String.format("%-20s %-12s %6d req/s  at %6d req/s: p50 %6dus  p99 %7dus  max %7dus  errors %d",
+                    profile, scenario, (long) throughput, (long) rate, latencyP50, latencyP99, latencyMax, errors);
+        }
+    }
+
+    /**
+     * Closed loop.
+     *
+     * @param duration in milliseconds
+     */
+    @Nonnull
+    public Result run(@Nonnull URL url, int concurrency, long duration) throws InterruptedException {
+        return run(url, concurrency, 0, duration);
+    }
+
+    /**
+     * Open loop, each client sends {@code rate / concurrency} requests per second. When the server is slower than the
+     * rate, the clients send the late requests as soon as they can and the latencies grow with the backlog.
+     *
+     * @param rate     requests per second of all the clients
+     * @param duration in milliseconds
+     */
+    @Nonnull
+    public Result runAtConstantRate(@Nonnull URL url, int concurrency, double rate, long duration) throws InterruptedException {
+        Preconditions.checkArgument(rate > 0, "Invalid rate %s", rate);
+        return run(url, concurrency, rate, duration);
+    }
+
+    @Nonnull
+    private Result run(@Nonnull final URL url, final int concurrency, double rate, long duration) throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final long startTimeInNanos = System.nanoTime();
+        final long endTimeInNanos = startTimeInNanos + TimeUnit.MILLISECONDS.toNanos(duration);
+
+        // client i sends its requests at start + i * interval / concurrency + n * interval
+        final long intervalInNanos = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * concurrency / rate) : 0;
+
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            final long firstSendTimeInNanos = startTimeInNanos + intervalInNanos * i / concurrency;
+            Thread client = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[8192];
+                    long sendTimeInNanos = firstSendTimeInNanos;
+                    while (sendTimeInNanos < endTimeInNanos) {
+                        long now = System.nanoTime();
+                        if (intervalInNanos == 0) {
+                            sendTimeInNanos = now;
+                        } else if (now < sendTimeInNanos) {
+                            LockSupport.parkNanos(sendTimeInNanos - now);
+                            continue;
+                        }
+                        try {
+                            HttpURLConnection cnn = (HttpURLConnection) url.openConnection();
+                            cnn.setRequestProperty("Accept-Encoding", "gzip");
+                            int status = cnn.getResponseCode();
+                            InputStream in = status < 400 ? cnn.getInputStream() : cnn.getErrorStream();
+                            if (in != null) {
+                                // read fully to reuse the connection
+                                try {
+                                    for (int n; (n = in.read(buffer)) != -1; ) {
+                                        bytes.addAndGet(n);
+                                    }
+                                } finally {
+                                    in.close();
+                                }
+                            }
+                            if (status != HttpURLConnection.HTTP_OK) {
+                                errors.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        }
+                        // from the intended send time, not from the actual one, to not omit the backlog
+                        histogram.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sendTimeInNanos));
+                        sendTimeInNanos = intervalInNanos == 0 ? System.nanoTime() : sendTimeInNanos + intervalInNanos;
+                    }
+                }
+            }, "load-generator-" + i);
+            client.start();
+            clients.add(client);
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        long actualDurationInNanos = System.nanoTime() - startTimeInNanos;
+
+        LatencyHistogram.Snapshot snapshot = histogram.getIntervalSnapshot(0);
+        Result result = new Result();
+        result.concurrency = concurrency;
+        result.rate = rate;
+        result.duration = TimeUnit.NANOSECONDS.toMillis(actualDurationInNanos);
+        result.requests = snapshot.getCount();
+        result.errors = errors.get();
+        result.bytes = bytes.get();
+        result.throughput = snapshot.getCount() * (double) TimeUnit.SECONDS.toNanos(1) / actualDurationInNanos;
+        result.latencyMean = snapshot.getMean();
+        result.latencyP50 = snapshot.getValueAtPercentile(50);
+        result.latencyP90 = snapshot.getValueAtPercentile(90);
+        result.latencyP99 = snapshot.getValueAtPercentile(99);
+        result.latencyP999 = snapshot.getValueAtPercentile(99.9);
+        result.latencyMax = snapshot.getMax();
+        return result;
+    }
+}
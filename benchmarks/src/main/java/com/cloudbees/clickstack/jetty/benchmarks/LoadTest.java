@@ -0,0 +1,417 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Load test of the jetty base generated by the setup: for each profile of runtime parameters, the clickstack is
+ * set up in a temporary genapp layout with {@link SampleWebApp}, started with {@code .genapp/control/start} and
+ * loaded with {@link LoadGenerator} on each scenario.
+ * <p/>
+ * Each scenario is run twice: in closed loop to measure the maximum throughput, then at a constant rate below this
+ * maximum to measure the latencies from the intended send times of the requests, without coordinated omission.
+ * <p/>
+ * The setup is run by the {@code setup} script of the clickstack distribution like genapp does, the environment
+ * being given by the {@code app_dir}, {@code app_port}, {@code genapp_dir}... environment variables.
+ * <p/>
+ * System properties:
+ * <ul>
+ * <li>{@code loadtest.clickstack}: clickstack zip or directory (required)</li>
+ * <li>{@code loadtest.results}: JSON file of the results (required)</li>
+ * <li>{@code loadtest.profiles}: comma separated profiles, default all the {@link #PROFILES}</li>
+ * <li>{@code loadtest.duration}, {@code loadtest.warmup}: in seconds, default 30 and 10</li>
+ * <li>{@code loadtest.concurrency}: number of clients, default 32</li>
+ * <li>{@code loadtest.rate}: rate of the latency run, in percent of the maximum throughput, default 75</li>
+ * <li>{@code loadtest.baseline}: results of a previous run to compare with</li>
+ * <li>{@code loadtest.max_regression}: in percent of the throughput or of the 99th percentile, default 10</li>
+ * </ul>
+ * Exits with status 1 when a scenario regressed compared to the baseline.
+ */
+public class LoadTest {
+
+    /**
+     * Runtime parameters of the {@code jetty} section by profile
+     */
+    public static final Map<String, Map<String, String>> PROFILES = new LinkedHashMap<>();
+
+    /**
+     * Path of the sample webapp by scenario
+     */
+    public static final Map<String, String> SCENARIOS = new LinkedHashMap<>();
+
+    static {
+        PROFILES.put("default", parameters());
+        PROFILES.put("threads-small", parameters("threads_max", "16"));
+        PROFILES.put("threads-large", parameters("threads_min", "50", "threads_max", "400"));
+        PROFILES.put("no-compression", parameters("compression_enabled", "false"));
+        PROFILES.put("compression-fast", parameters("compression_level", "1"));
+        PROFILES.put("single-selector", parameters("acceptors", "1", "selectors", "1"));
+        PROFILES.put("exploded", parameters("webapp_mode", "exploded"));
+        PROFILES.put("admission-control", parameters("admission_control_enabled", "true"));
+
+        SCENARIOS.put("jsp", "/index.jsp");
+        SCENARIOS.put("compressible", "/large.jsp");
+        SCENARIOS.put("static", "/static/app.css");
+        SCENARIOS.put("database", "/db.jsp");
+    }
+
+    /**
+     * Version 2: latencies measured at a constant rate from the intended send times
+     */
+    private static final int RESULTS_VERSION = 2;
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Path clickstack;
+    private final long durationInMillis;
+    private final long warmUpInMillis;
+    private final int concurrency;
+    private final double ratePercent;
+
+    public LoadTest(@Nonnull Path clickstack, long durationInMillis, long warmUpInMillis, int concurrency, double ratePercent) {
+        this.clickstack = clickstack;
+        this.durationInMillis = durationInMillis;
+        this.warmUpInMillis = warmUpInMillis;
+        this.concurrency = concurrency;
+        this.ratePercent = ratePercent;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path clickstack = Paths.get(getRequiredProperty("loadtest.clickstack"));
+        Path resultsFile = Paths.get(getRequiredProperty("loadtest.results"));
+        List<String> profiles = new ArrayList<>(PROFILES.keySet());
+        String profilesProperty = System.getProperty("loadtest.profiles", "");
+        if (!profilesProperty.trim().isEmpty()) {
+            profiles = Arrays.asList(profilesProperty.trim().split("\\s*,\\s*"));
+        }
+        long duration = TimeUnit.SECONDS.toMillis(Long.parseLong(System.getProperty("loadtest.duration", "30")));
+        long warmUp = TimeUnit.SECONDS.toMillis(Long.parseLong(System.getProperty("loadtest.warmup", "10")));
+        int concurrency = Integer.parseInt(System.getProperty("loadtest.concurrency", "32"));
+        double ratePercent = Double.parseDouble(System.getProperty("loadtest.rate", "75"));
+        String baseline = System.getProperty("loadtest.baseline", "");
+        double maxRegression = Double.parseDouble(System.getProperty("loadtest.max_regression", "10"));
+
+        // one keep-alive connection per client
+        System.setProperty("http.maxConnections", String.valueOf(concurrency));
+
+        LoadTest loadTest = new LoadTest(clickstack, duration, warmUp, concurrency, ratePercent);
+        List<LoadGenerator.Result> results = new ArrayList<>();
+        for (String profile : profiles) {
+            results.addAll(loadTest.run(profile));
+        }
+        loadTest.writeResults(results, resultsFile);
+
+        if (!baseline.trim().isEmpty()) {
+            int regressions = loadTest.compare(results, Paths.get(baseline.trim()), maxRegression);
+            if (regressions > 0) {
+                System.exit(1);
+            }
+        }
+    }
+
+    @Nonnull
+    public List<LoadGenerator.Result> run(@Nonnull String profile) throws Exception {
+        Map<String, String> parameters = PROFILES.get(profile);
+        if (parameters == null) {
+            throw new IllegalArgumentException("Unknown profile '" + profile + "', expected one of " + PROFILES.keySet());
+        }
+        logger.info("Profile {}: {}", profile, parameters);
+
+        Path rootDir = Files.createTempDirectory("load-test-" + profile);
+        Process process = null;
+        try {
+            Path pluginDir = installClickstack(rootDir.resolve("plugin"));
+            Path appDir = Files.createDirectories(rootDir.resolve("app"));
+            Path genappDir = Files.createDirectories(appDir.resolve(".genapp"));
+            Path controlDir = Files.createDirectories(genappDir.resolve("control"));
+            Path logDir = Files.createDirectories(genappDir.resolve("log"));
+            Path packageDir = Files.createDirectories(rootDir.resolve("pkg"));
+            SampleWebApp.create(packageDir.resolve("app.war"));
+            int port = getFreePort();
+
+            SyntheticMetadata metadata = new SyntheticMetadata().withDatabases(1);
+            for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                metadata.withRuntimeParameter("jetty", parameter.getKey(), parameter.getValue());
+            }
+            metadata.writeTo(genappDir.resolve("metadata.json"));
+
+            ProcessBuilder setup = new ProcessBuilder("bash", pluginDir.resolve("setup").toString())
+                    .directory(pluginDir.toFile())
+                    .redirectErrorStream(true)
+                    .redirectOutput(rootDir.resolve("setup.log").toFile());
+            Map<String, String> env = setup.environment();
+            env.put("app_dir", appDir.toString());
+            env.put("app_port", String.valueOf(port));
+            env.put("app_id", "load-test-" + profile);
+            env.put("genapp_dir", genappDir.toString());
+            env.put("control_dir", controlDir.toString());
+            env.put("log_dir", logDir.toString());
+            env.put("pkg_dir", packageDir.toString());
+            env.put("plugin_dir", pluginDir.toString());
+            int exitValue = setup.start().waitFor();
+            if (exitValue != 0) {
+                throw new IllegalStateException("Setup of profile " + profile + " failed with status " + exitValue +
+                        ", see " + rootDir.resolve("setup.log"));
+            }
+
+            process = new ProcessBuilder("bash", controlDir.resolve("start").toString())
+                    .directory(appDir.toFile())
+                    .redirectErrorStream(true)
+                    .redirectOutput(logDir.resolve("start.log").toFile())
+                    .start();
+            waitForStartup(new URL("http", "localhost", port, SCENARIOS.get("jsp")), process, TimeUnit.MINUTES.toMillis(2));
+
+            LoadGenerator loadGenerator = new LoadGenerator();
+            List<LoadGenerator.Result> results = new ArrayList<>();
+            for (Map.Entry<String, String> scenario : SCENARIOS.entrySet()) {
+                URL url = new URL("http", "localhost", port, scenario.getValue());
+                loadGenerator.run(url, concurrency, warmUpInMillis);
+                LoadGenerator.Result saturation = loadGenerator.run(url, concurrency, durationInMillis);
+                // the latencies of the closed loop run hide the stalls of the server, measure them at a constant rate
+                LoadGenerator.Result result = loadGenerator.runAtConstantRate(url, concurrency,
+                        saturation.throughput * ratePercent / 100, durationInMillis);
+                result.throughput = saturation.throughput;
+                result.profile = profile;
+                result.scenario = scenario.getKey();
+                logger.info("{}", result);
+                results.add(result);
+            }
+            return results;
+        } finally {
+            if (process != null) {
+                process.destroy();
+                process.waitFor();
+            }
+            deleteDirectory(rootDir);
+        }
+    }
+
+    /**
+     * @return the directory of the clickstack, unzipped in {@code targetDir} if needed
+     */
+    @Nonnull
+    protected Path installClickstack(@Nonnull Path targetDir) throws IOException {
+        if (Files.isDirectory(clickstack)) {
+            return clickstack;
+        }
+        try (ZipFile zip = new ZipFile(clickstack.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                Path target = targetDir.resolve(entry.getName()).normalize();
+                if (!target.startsWith(targetDir)) {
+                    throw new IOException("Entry " + entry.getName() + " outside of " + targetDir);
+                }
+                if (entry.isDirectory()) {
+                    Files.createDirectories(target);
+                } else {
+                    Files.createDirectories(target.getParent());
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        Files.copy(in, target);
+                    }
+                }
+            }
+        }
+        return targetDir;
+    }
+
+    protected void waitForStartup(@Nonnull URL url, @Nonnull Process process, long timeoutInMillis) throws Exception {
+        long deadline = System.currentTimeMillis() + timeoutInMillis;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                process.exitValue();
+                throw new IllegalStateException("Jetty exited before being ready");
+            } catch (IllegalThreadStateException e) {
+                // still running
+            }
+            try {
+                HttpURLConnection cnn = (HttpURLConnection) url.openConnection();
+                cnn.setConnectTimeout(1000);
+                cnn.setReadTimeout(10000);
+                if (cnn.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                    cnn.getInputStream().close();
+                    return;
+                }
+            } catch (IOException e) {
+                // not yet listening
+            }
+            Thread.sleep(500);
+        }
+        throw new IllegalStateException("Jetty not ready after " + timeoutInMillis + "ms on " + url);
+    }
+
+    public void writeResults(@Nonnull List<LoadGenerator.Result> results, @Nonnull Path resultsFile) throws IOException {
+        SimpleDateFormat timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        timestamp.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode root = mapper.createObjectNode();
+        root.put("version", RESULTS_VERSION);
+        root.put("timestamp", timestamp.format(new Date()));
+        root.put("clickstack", clickstack.getFileName().toString());
+        root.put("java", System.getProperty("java.version"));
+        root.put("os", System.getProperty("os.name") + " " + System.getProperty("os.version"));
+        root.put("cpus", Runtime.getRuntime().availableProcessors());
+        root.put("duration", durationInMillis);
+        root.put("concurrency", concurrency);
+        root.put("rate", ratePercent);
+        ArrayNode resultsNode = root.putArray("results");
+        for (LoadGenerator.Result result : results) {
+            resultsNode.add(mapper.valueToTree(result));
+        }
+
+        Files.createDirectories(resultsFile.toAbsolutePath().getParent());
+        mapper.writerWithDefaultPrettyPrinter().writeValue(resultsFile.toFile(), root);
+        logger.info("Results written in {}", resultsFile.toAbsolutePath());
+    }
+
+    /**
+     * @return the number of scenarios whose throughput decreased or whose 99th percentile increased by more than
+     * {@code maxRegression} percent compared to the baseline. The latencies of a baseline of a previous version of the
+     * results are not comparable and are ignored.
+     */
+    public int compare(@Nonnull List<LoadGenerator.Result> results, @Nonnull Path baselineFile, double maxRegression) throws IOException {
+        JsonNode baseline = new ObjectMapper().readTree(baselineFile.toFile());
+        boolean compareLatencies = baseline.path("version").asInt() == RESULTS_VERSION;
+        if (!compareLatencies) {
+            logger.warn("Baseline {} of version {}, the latencies are not compared", baselineFile, baseline.path("version").asInt());
+        }
+        int regressions = 0;
+        for (LoadGenerator.Result result : results) {
+            JsonNode reference = findResult(baseline, result.profile, result.scenario);
+            if (reference == null) {
+                logger.info("{}/{}: not in baseline", result.profile, result.scenario);
+                continue;
+            }
+            double throughputDelta = delta(reference.path("throughput").asDouble(), result.throughput);
+            double p99Delta = compareLatencies ? delta(reference.path("latencyP99").asDouble(), result.latencyP99) : 0;
+            boolean regression = -throughputDelta > maxRegression || p99Delta > maxRegression;
+            String message = String.format("%s/%s: throughput %+.1f%%, p99 %+.1f%%", result.profile, result.scenario, throughputDelta, p99Delta);
+            if (regression) {
+                regressions++;
+                logger.warn("{} REGRESSION", message);
+            } else {
+                logger.info("{}", message);
+            }
+        }
+        return regressions;
+    }
+
+    @Nullable
+    private static JsonNode findResult(@Nonnull JsonNode results, @Nonnull String profile, @Nonnull String scenario) {
+        for (JsonNode result : results.path("results")) {
+            if (profile.equals(result.path("profile").asText()) && scenario.equals(result.path("scenario").asText())) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the variation in percent
+     */
+    private static double delta(double reference, double value) {
+        return reference == 0 ? 0 : (value - reference) * 100 / reference;
+    }
+
+    @Nonnull
+    private static Map<String, String> parameters(String... namesAndValues) {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            parameters.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return parameters;
+    }
+
+    @Nonnull
+    private static String getRequiredProperty(@Nonnull String name) {
+        String value = System.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            throw new IllegalArgumentException("System property '" + name + "' is required");
+        }
+        return value.trim();
+    }
+
+    /**
+     * Delete the temporary genapp layout, including the read-only entries of the Jetty distribution cache.
+     */
+    private static void deleteDirectory(@Nonnull Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(dir);
+                permissions.add(PosixFilePermission.OWNER_WRITE);
+                Files.setPosixFilePermissions(dir, permissions);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static int getFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
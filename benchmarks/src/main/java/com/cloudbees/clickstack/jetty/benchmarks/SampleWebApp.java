@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.benchmarks;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * War of the load test, made of JSPs compiled by Jetty and of the H2 driver, without compiled classes:
+ * <ul>
+ * <li>{@code /index.jsp}: small dynamic page</li>
+ * <li>{@code /large.jsp}: 64 KB dynamic page, compressible</li>
+ * <li>{@code /static/app.css}: 32 KB static resource</li>
+ * <li>{@code /db.jsp}: query of an H2 in-memory database of 10000 rows</li>
+ * </ul>
+ */
+public class SampleWebApp {
+
+    static final String INDEX_JSP = "<%@ page contentType=\"text/html; charset=UTF-8\" %>\n" +
+            "<html><body><h1>Hello</h1><p><%= new java.util.Date() %></p></body></html>\n";
+
+    static final String LARGE_JSP = "<%@ page contentType=\"text/html; charset=UTF-8\" %>\n" +
+            "<html><body><table>\n" +
+            "<% for (int i = 0; i < 1000; i++) { %>\n" +
+            "<tr><td class=\"id\"><%= i %></td><td class=\"name\">item <%= i %> of the catalog</td></tr>\n" +
+            "<% } %>\n" +
+            "</table></body></html>\n";
+
+    // java 5 syntax, default source level of the JSP compiler
+    static final String DB_JSP = "<%@ page contentType=\"text/plain; charset=UTF-8\" import=\"java.sql.*\" %>\n" +
+            "<%!\n" +
+            "    static final String URL = \"jdbc:h2:mem:loadtest;DB_CLOSE_DELAY=-1\";\n" +
+            "    static volatile boolean initialized;\n" +
+            "\n" +
+            "    static synchronized void initialize() throws Exception {\n" +
+            "        if (initialized) {\n" +
+            "            return;\n" +
+            "        }\n" +
+            "        Class.forName(\"org.h2.Driver\");\n" +
+            "        Connection cnn = DriverManager.getConnection(URL, \"sa\", \"\");\n" +
+            "        try {\n" +
+            "            Statement stmt = cnn.createStatement();\n" +
+            "            stmt.execute(\"CREATE TABLE IF NOT EXISTS item(id INT PRIMARY KEY, name VARCHAR(255))\");\n" +
+            "            stmt.execute(\"MERGE INTO item SELECT x, 'item ' || x FROM SYSTEM_RANGE(1, 10000)\");\n" +
+            "            stmt.close();\n" +
+            "        } finally {\n" +
+            "            cnn.close();\n" +
+            "        }\n" +
+            "        initialized = true;\n" +
+            "    }\n" +
+            "%>\n" +
+            "<%\n" +
+            "    initialize();\n" +
+            "    int id = 1 + java.util.concurrent.ThreadLocalRandom.current().nextInt(10000);\n" +
+            "    Connection cnn = DriverManager.getConnection(URL, \"sa\", \"\");\n" +
+            "    try {\n" +
+            "        PreparedStatement stmt = cnn.prepareStatement(\"SELECT name FROM item WHERE id = ?\");\n" +
+            "        stmt.setInt(1, id);\n" +
+            "        ResultSet rst = stmt.executeQuery();\n" +
+            "        out.print(rst.next() ? rst.getString(1) : \"not found\");\n" +
+            "        rst.close();\n" +
+            "        stmt.close();\n" +
+            "    } finally {\n" +
+            "        cnn.close();\n" +
+            "    }\n" +
+            "%>\n";
+
+    private SampleWebApp() {
+    }
+
+    @Nonnull
+    public static Path create(@Nonnull Path warFile) throws IOException {
+        Files.createDirectories(warFile.getParent());
+        try (ZipOutputStream war = new ZipOutputStream(Files.newOutputStream(warFile))) {
+            SyntheticWar.addEntry(war, "WEB-INF/web.xml", SyntheticWar.WEB_XML.getBytes(StandardCharsets.UTF_8));
+            SyntheticWar.addEntry(war, "index.jsp", INDEX_JSP.getBytes(StandardCharsets.UTF_8));
+            SyntheticWar.addEntry(war, "large.jsp", LARGE_JSP.getBytes(StandardCharsets.UTF_8));
+            SyntheticWar.addEntry(war, "db.jsp", DB_JSP.getBytes(StandardCharsets.UTF_8));
+            SyntheticWar.addEntry(war, "static/app.css", SyntheticWar.createText(new Random(0), 32 * 1024));
+            SyntheticWar.addEntry(war, "WEB-INF/lib/h2.jar", Files.readAllBytes(getH2Jar()));
+        }
+        return warFile;
+    }
+
+    @Nonnull
+    static Path getH2Jar() throws IOException {
+        try {
+            return Paths.get(org.h2.Driver.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException("H2 driver not found", e);
+        }
+    }
+}
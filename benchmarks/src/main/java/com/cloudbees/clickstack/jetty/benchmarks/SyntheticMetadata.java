@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.benchmarks;
+
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Generate the genapp {@code metadata.json} of a synthetic application: runtime parameters of the {@code jetty} and
+ * {@code java} sections and MySQL database resources.
+ */
+public class SyntheticMetadata {
+
+    private final Map<String, Map<String, String>> runtimeParameters = new TreeMap<>();
+    private int databases;
+
+    /**
+     * @param section {@code jetty} or {@code java}
+     */
+    @Nonnull
+    public SyntheticMetadata withRuntimeParameter(@Nonnull String section, @Nonnull String name, @Nonnull String value) {
+        Map<String, String> parameters = runtimeParameters.get(section);
+        if (parameters == null) {
+            parameters = new TreeMap<>();
+            runtimeParameters.put(section, parameters);
+        }
+        parameters.put(name, value);
+        return this;
+    }
+
+    /**
+     * @param runtimeParameters {@code section.name=value}, e.g. {@code jetty.threads_max=16}
+     */
+    @Nonnull
+    public SyntheticMetadata withRuntimeParameters(@Nonnull Map<String, String> runtimeParameters) {
+        for (Map.Entry<String, String> entry : runtimeParameters.entrySet()) {
+            int dot = entry.getKey().indexOf('.');
+            withRuntimeParameter(entry.getKey().substring(0, dot), entry.getKey().substring(dot + 1), entry.getValue());
+        }
+        return this;
+    }
+
+    /**
+     * @param databases number of MySQL databases {@code db0..dbN}
+     */
+    @Nonnull
+    public SyntheticMetadata withDatabases(int databases) {
+        this.databases = databases;
+        return this;
+    }
+
+    @Nonnull
+    public Path writeTo(@Nonnull Path metadataFile) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode root = mapper.createObjectNode();
+
+        ObjectNode app = root.putObject("app");
+        app.put("id", "benchmark/app");
+        app.putObject("env");
+
+        for (Map.Entry<String, Map<String, String>> section : runtimeParameters.entrySet()) {
+            ObjectNode node = root.putObject(section.getKey());
+            for (Map.Entry<String, String> parameter : section.getValue().entrySet()) {
+                node.put(parameter.getKey(), parameter.getValue());
+            }
+        }
+
+        for (int i = 0; i < databases; i++) {
+            String name = "db" + i;
+            ObjectNode database = root.putObject(name);
+            database.put("__resource_name__", name);
+            database.put("__resource_type__", "database");
+            database.put("DATABASE_URL", "mysql://db" + i + ".example.com:3306/" + name);
+            database.put("DATABASE_USERNAME", "user" + i);
+            database.put("DATABASE_PASSWORD", "password" + i);
+        }
+
+        Files.createDirectories(metadataFile.getParent());
+        mapper.writerWithDefaultPrettyPrinter().writeValue(metadataFile.toFile(), root);
+        return metadataFile;
+    }
+
+    @Nonnull
+    public Metadata build(@Nonnull Path metadataFile) throws IOException {
+        return Metadata.Builder.fromFile(writeTo(metadataFile));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.benchmarks;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generate wars of a given size: {@code WEB-INF/lib} jars and static resources with a compression ratio close to
+ * the one of real classes and text files. The content only depends on the parameters.
+ */
+public class SyntheticWar {
+
+    public static final String WEB_XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<web-app xmlns=\"http://java.sun.com/xml/ns/javaee\" version=\"3.0\">\n" +
+            "  <welcome-file-list><welcome-file>index.jsp</welcome-file></welcome-file-list>\n" +
+            "</web-app>\n";
+
+    private static final String[] WORDS = {"org", "eclipse", "jetty", "server", "handler", "request", "response",
+            "session", "context", "servlet", "filter", "cloudbees", "clickstack", "metadata", "database", "pool",
+            "<div class=\"", "\">", "</div>", "{", "}", ";", "\n", "public", "static", "final", "void", "return"};
+
+    private SyntheticWar() {
+    }
+
+    /**
+     * @param libs               number of jars in {@code WEB-INF/lib}
+     * @param libSizeInKb        uncompressed size of the entries of each jar
+     * @param staticFiles        number of static resources in {@code static/}
+     * @param staticFileSizeInKb size of each static resource
+     */
+    @Nonnull
+    public static Path create(@Nonnull Path warFile, int libs, int libSizeInKb, int staticFiles, int staticFileSizeInKb) throws IOException {
+        Random random = new Random(libs * 31 + staticFiles);
+        Files.createDirectories(warFile.getParent());
+        try (ZipOutputStream war = new ZipOutputStream(Files.newOutputStream(warFile))) {
+            addEntry(war, "WEB-INF/web.xml", WEB_XML.getBytes(StandardCharsets.UTF_8));
+            addEntry(war, "index.jsp", "<html><body>Hello</body></html>\n".getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < libs; i++) {
+                addEntry(war, "WEB-INF/lib/lib-" + i + ".jar", createJar(random, libSizeInKb));
+            }
+            for (int i = 0; i < staticFiles; i++) {
+                addEntry(war, "static/file-" + i + (i % 2 == 0 ? ".css" : ".js"), createText(random, staticFileSizeInKb * 1024));
+            }
+        }
+        return warFile;
+    }
+
+    static void addEntry(@Nonnull ZipOutputStream zip, @Nonnull String name, @Nonnull byte[] content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content);
+        zip.closeEntry();
+    }
+
+    @Nonnull
+    static byte[] createJar(@Nonnull Random random, int sizeInKb) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream jar = new ZipOutputStream(bytes)) {
+            addEntry(jar, "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n".getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < Math.max(1, sizeInKb / 4); i++) {
+                addEntry(jar, "com/example/lib/Class" + i + ".class", createText(random, 4096));
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    @Nonnull
+    static byte[] createText(@Nonnull Random random, int size) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size + 32);
+        try (OutputStream out = bytes) {
+            while (bytes.size() < size) {
+                out.write(WORDS[random.nextInt(WORDS.length)].getBytes(StandardCharsets.UTF_8));
+                out.write(' ');
+            }
+        }
+        byte[] text = bytes.toByteArray();
+        byte[] result = new byte[size];
+        System.arraycopy(text, 0, result, 0, size);
+        return result;
+    }
+}
@@ -0,0 +1,486 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.handler;
+
+import org.eclipse.jetty.http.PathMap;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+import org.eclipse.jetty.util.thread.Scheduler;
+
+import javax.management.ObjectName;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control with a concurrency limit adapted to the latency of the requests, in the style of the gradient
+ * limiters: the limit grows while the latency stays close to its long term average and shrinks when the latency
+ * increases because the application is overloaded.
+ * <p/>
+ * Each sampling window, {@code limit = limit * gradient + sqrt(limit)} with
+ * {@code gradient = clamp(rttTolerance * longRtt / shortRtt, 0.5, 1)}, smoothed and bounded by
+ * {@link #setMinLimit(int)} and {@link #setMaxLimit(int)}. The limit does not grow while less than half of it is
+ * used.
+ * <p/>
+ * Requests above the limit wait in a queue up to {@link #setMaxQueueWait(long)} milliseconds, the requests of the
+ * {@link #setPriorityPaths(String)} first, and are rejected with a {@code 503} and a {@code Retry-After} header when
+ * the queue is full or when the wait expires. Requests of the priority paths can also exceed the limit by 10%.
+ * <p/>
+ * Registered in JMX as {@code com.cloudbees.clickstack.jetty:type=AdaptiveConcurrencyLimit,name=server}.
+ */
+public class AdaptiveConcurrencyLimitHandler extends HandlerWrapper implements AdaptiveConcurrencyLimitHandlerMBean {
+
+    private static final Logger LOG = Log.getLogger(AdaptiveConcurrencyLimitHandler.class);
+
+    private static final String ADMITTED_ATTRIBUTE = AdaptiveConcurrencyLimitHandler.class.getName() + ".admitted";
+
+    private static final double MIN_GRADIENT = 0.5;
+
+    /**
+     * Weight of the last sampling window in the limit and in the long term latency
+     */
+    private static final double LIMIT_SMOOTHING = 0.2;
+    private static final double LONG_RTT_SMOOTHING = 0.05;
+
+    private int minLimit = 4;
+    private int maxLimit = 200;
+    private volatile double limit = 20;
+    private double rttTolerance = 1.5;
+    private long sampleWindow = 100;
+    private int maxQueueSize = 100;
+    private long maxQueueWait = 100;
+    private int retryAfter = 1;
+    private final PathMap<Boolean> priorityPaths = new PathMap<>();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Queue<Waiter> priorityQueue = new ConcurrentLinkedQueue<>();
+    private final Queue<Waiter> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queueSize = new AtomicInteger();
+    private final Scheduler scheduler = new ScheduledExecutorScheduler("admission-control-queue", true);
+
+    private final AtomicLong admittedCount = new AtomicLong();
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    // sampling window, accumulated without lock by the completed requests, rolled over by a single thread
+    private volatile long windowStartInNanos = System.nanoTime();
+    private final AtomicLong windowRttSumInNanos = new AtomicLong();
+    private final AtomicInteger windowSampleCount = new AtomicInteger();
+    private final AtomicInteger windowMaxInFlight = new AtomicInteger();
+    private final AtomicBoolean windowRollingOver = new AtomicBoolean();
+    private volatile double shortRttInNanos;
+    private volatile double longRttInNanos;
+
+    private ObjectName objectName;
+
+    public AdaptiveConcurrencyLimitHandler() {
+        addBean(scheduler);
+    }
+
+    public static ObjectName getObjectName() throws Exception {
+        return new ObjectName("com.cloudbees.clickstack.jetty:type=AdaptiveConcurrencyLimit,name=server");
+    }
+
+    public void setMinLimit(int minLimit) {
+        this.minLimit = minLimit;
+    }
+
+    public void setMaxLimit(int maxLimit) {
+        this.maxLimit = maxLimit;
+    }
+
+    public void setInitialLimit(int initialLimit) {
+        this.limit = initialLimit;
+    }
+
+    /**
+     * @param rttTolerance latency increase tolerated before reducing the limit ({@code 1.5}: 50%)
+     */
+    public void setRttTolerance(double rttTolerance) {
+        this.rttTolerance = rttTolerance;
+    }
+
+    /**
+     * @param sampleWindow in milliseconds
+     */
+    public void setSampleWindow(long sampleWindow) {
+        this.sampleWindow = sampleWindow;
+    }
+
+    public void setMaxQueueSize(int maxQueueSize) {
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    /**
+     * @param maxQueueWait in milliseconds
+     */
+    public void setMaxQueueWait(long maxQueueWait) {
+        this.maxQueueWait = maxQueueWait;
+    }
+
+    /**
+     * @param retryAfter in seconds
+     */
+    public void setRetryAfter(int retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @param priorityPaths servlet path specs separated by commas ({@code /api/*,*.jsp,/health})
+     */
+    public void setPriorityPaths(String priorityPaths) {
+        this.priorityPaths.clear();
+        for (String pathSpec : priorityPaths.split(",")) {
+            pathSpec = pathSpec.trim();
+            if (!pathSpec.isEmpty()) {
+                this.priorityPaths.put(pathSpec, Boolean.TRUE);
+            }
+        }
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        limit = Math.max(minLimit, Math.min(maxLimit, limit));
+        objectName = getObjectName();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception e) {
+            LOG.warn("Exception registering " + objectName, e);
+            objectName = null;
+        }
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                LOG.ignore(e);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        if (baseRequest.getDispatcherType() == DispatcherType.REQUEST) {
+            boolean priority = !priorityPaths.isEmpty() && priorityPaths.match(target) != null;
+            if (tryAcquire(priority)) {
+                admittedCount.incrementAndGet();
+                process(target, baseRequest, request, response);
+            } else if (queueSize.incrementAndGet() <= maxQueueSize) {
+                enqueue(baseRequest, request, priority);
+                // release() may have freed a permit before the request was queued
+                drainQueue();
+            } else {
+                queueSize.decrementAndGet();
+                reject(baseRequest, response);
+            }
+        } else if (Boolean.TRUE.equals(baseRequest.getAttribute(ADMITTED_ATTRIBUTE))) {
+            // released from the queue
+            baseRequest.removeAttribute(ADMITTED_ATTRIBUTE);
+            process(target, baseRequest, request, response);
+        } else {
+            // async dispatch of an admitted request
+            super.handle(target, baseRequest, request, response);
+        }
+    }
+
+    private boolean tryAcquire(boolean priority) {
+        double effectiveLimit = priority ? limit * 1.1 + 1 : limit;
+        while (true) {
+            int current = inFlight.get();
+            if (current >= effectiveLimit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void process(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        final long startInNanos = System.nanoTime();
+        boolean async = false;
+        try {
+            super.handle(target, baseRequest, request, response);
+            if (request.isAsyncStarted()) {
+                async = true;
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) throws IOException {
+                        release(startInNanos);
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) throws IOException {
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) throws IOException {
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) throws IOException {
+                        event.getAsyncContext().addListener(this);
+                    }
+                });
+            }
+        } finally {
+            if (!async) {
+                release(startInNanos);
+            }
+        }
+    }
+
+    /**
+     * Suspend the request until a permit is available or {@link #maxQueueWait} expires. The expiration is scheduled
+     * rather than delegated to the async timeout of the request that may fire while the request is being dispatched.
+     */
+    private void enqueue(Request baseRequest, HttpServletRequest request, boolean priority) {
+        final Waiter waiter = new Waiter(baseRequest, request.startAsync());
+        waiter.asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                expire(waiter);
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) throws IOException {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) throws IOException {
+                if (waiter.take()) {
+                    queueSize.decrementAndGet();
+                }
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) throws IOException {
+            }
+        });
+        waiter.expiration = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    expire(waiter);
+                } catch (Exception e) {
+                    LOG.debug(e);
+                }
+            }
+        }, maxQueueWait, TimeUnit.MILLISECONDS);
+        (priority ? priorityQueue : queue).add(waiter);
+    }
+
+    private void expire(Waiter waiter) throws IOException {
+        if (waiter.take()) {
+            queueSize.decrementAndGet();
+            rejectedCount.incrementAndGet();
+            HttpServletResponse response = (HttpServletResponse) waiter.asyncContext.getResponse();
+            response.setHeader("Retry-After", String.valueOf(retryAfter));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            waiter.asyncContext.complete();
+        }
+    }
+
+    private void reject(Request baseRequest, HttpServletResponse response) throws IOException {
+        rejectedCount.incrementAndGet();
+        baseRequest.setHandled(true);
+        response.setHeader("Retry-After", String.valueOf(retryAfter));
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+    private void release(long startInNanos) {
+        inFlight.decrementAndGet();
+        sample(System.nanoTime() - startInNanos);
+        drainQueue();
+    }
+
+    /**
+     * Dispatch the queued requests while permits are available, the permit is acquired on behalf of the dispatched
+     * request.
+     */
+    private void drainQueue() {
+        while (queueSize.get() > 0) {
+            boolean priority = !priorityQueue.isEmpty();
+            if (!tryAcquire(priority)) {
+                return;
+            }
+            Waiter waiter = priority ? priorityQueue.poll() : queue.poll();
+            if (waiter == null && priority) {
+                waiter = queue.poll();
+            }
+            while (waiter != null && !waiter.take()) {
+                // timed out
+                waiter = !priorityQueue.isEmpty() ? priorityQueue.poll() : queue.poll();
+            }
+            if (waiter == null) {
+                inFlight.decrementAndGet();
+                return;
+            }
+            queueSize.decrementAndGet();
+            waiter.expiration.cancel();
+            waiter.request.setAttribute(ADMITTED_ATTRIBUTE, Boolean.TRUE);
+            try {
+                waiter.asyncContext.dispatch();
+            } catch (IllegalStateException e) {
+                // request completed meanwhile, e.g. connection closed
+                LOG.ignore(e);
+                inFlight.decrementAndGet();
+                continue;
+            }
+            queuedCount.incrementAndGet();
+            admittedCount.incrementAndGet();
+        }
+    }
+
+    private void sample(long rttInNanos) {
+        windowRttSumInNanos.addAndGet(rttInNanos);
+        windowSampleCount.incrementAndGet();
+        int currentInFlight = inFlight.get() + 1;
+        int maxInFlight;
+        while (currentInFlight > (maxInFlight = windowMaxInFlight.get())) {
+            if (windowMaxInFlight.compareAndSet(maxInFlight, currentInFlight)) {
+                break;
+            }
+        }
+
+        long now = System.nanoTime();
+        if (now - windowStartInNanos < TimeUnit.MILLISECONDS.toNanos(sampleWindow)
+                || !windowRollingOver.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // another thread may have rolled the window over meanwhile
+            if (now - windowStartInNanos >= TimeUnit.MILLISECONDS.toNanos(sampleWindow)) {
+                rollOverWindow(now);
+            }
+        } finally {
+            windowRollingOver.set(false);
+        }
+    }
+
+    /**
+     * Adapt the limit to the latency of the ended window. The samples recorded concurrently with the roll over may be
+     * counted in the next window, which does not matter for an average.
+     */
+    private void rollOverWindow(long now) {
+        int sampleCount = windowSampleCount.getAndSet(0);
+        long rttSumInNanos = windowRttSumInNanos.getAndSet(0);
+        int maxInFlight = windowMaxInFlight.getAndSet(0);
+        windowStartInNanos = now;
+        if (sampleCount == 0) {
+            return;
+        }
+        double shortRtt = (double) rttSumInNanos / sampleCount;
+        double longRtt = longRttInNanos == 0 ? shortRtt : longRttInNanos * (1 - LONG_RTT_SMOOTHING) + shortRtt * LONG_RTT_SMOOTHING;
+        if (longRtt > 2 * shortRtt) {
+            // the application got faster, forget the slow history
+            longRtt *= 0.95;
+        }
+
+        double currentLimit = limit;
+        double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, rttTolerance * longRtt / shortRtt));
+        double newLimit = currentLimit * gradient + Math.sqrt(currentLimit);
+        if (maxInFlight < currentLimit / 2) {
+            // not used enough to tell whether the application can handle more
+            newLimit = Math.min(newLimit, currentLimit);
+        }
+        newLimit = currentLimit * (1 - LIMIT_SMOOTHING) + newLimit * LIMIT_SMOOTHING;
+
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        shortRttInNanos = shortRtt;
+        longRttInNanos = longRtt;
+    }
+
+    @Override
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public int getQueueSize() {
+        return queueSize.get();
+    }
+
+    @Override
+    public long getAdmittedCount() {
+        return admittedCount.get();
+    }
+
+    @Override
+    public long getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @Override
+    public double getShortRtt() {
+        return shortRttInNanos / 1000000.0;
+    }
+
+    @Override
+    public double getLongRtt() {
+        return longRttInNanos / 1000000.0;
+    }
+
+    private static class Waiter {
+        private final Request request;
+        private final AsyncContext asyncContext;
+        private final AtomicBoolean taken = new AtomicBoolean();
+        private volatile Scheduler.Task expiration;
+
+        private Waiter(Request request, AsyncContext asyncContext) {
+            this.request = request;
+            this.asyncContext = asyncContext;
+        }
+
+        /**
+         * @return {@code false} if the waiter has already been dispatched or timed out
+         */
+        private boolean take() {
+            return taken.compareAndSet(false, true);
+        }
+    }
+}
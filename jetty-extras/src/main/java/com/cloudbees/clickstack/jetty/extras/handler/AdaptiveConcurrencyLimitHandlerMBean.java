@@ -0,0 +1,47 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.handler;
+
+public interface AdaptiveConcurrencyLimitHandlerMBean {
+
+    int getLimit();
+
+    int getInFlight();
+
+    int getQueueSize();
+
+    long getAdmittedCount();
+
+    /**
+     * Requests admitted after waiting in the queue.
+     */
+    long getQueuedCount();
+
+    /**
+     * Requests rejected with a 503, immediately or after waiting in the queue.
+     */
+    long getRejectedCount();
+
+    /**
+     * Mean latency of the last sampling window in milliseconds.
+     */
+    double getShortRtt();
+
+    /**
+     * Long term average latency in milliseconds, the latency of the application when it is not overloaded.
+     */
+    double getLongRtt();
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.handler;
+
+import org.eclipse.jetty.servlets.gzip.AbstractCompressedStream;
+import org.eclipse.jetty.servlets.gzip.CompressedResponseWrapper;
+import org.eclipse.jetty.servlets.gzip.GzipHandler;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * {@link GzipHandler} with a configurable compression level, counting the bytes saved by the compression.
+ * <p/>
+ * Responses already encoded (e.g. precompressed {@code .gz} resources served by the {@code DefaultServlet}) are not
+ * compressed again.
+ * <p/>
+ * Registered in JMX as {@code com.cloudbees.clickstack.jetty:type=Compression,name=gzip}.
+ */
+public class CompressionHandler extends GzipHandler implements CompressionStatisticsMBean {
+
+    private static final Logger LOG = Log.getLogger(CompressionHandler.class);
+
+    /**
+     * 10 bytes header and 8 bytes trailer
+     */
+    private static final int GZIP_HEADER_AND_TRAILER_SIZE = 18;
+
+    private int compressionLevel = 6;
+
+    private final AtomicLong compressedResponseCount = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+
+    private ObjectName objectName;
+
+    public static ObjectName getObjectName() throws Exception {
+        return new ObjectName("com.cloudbees.clickstack.jetty:type=Compression,name=gzip");
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * @param compressionLevel {@code 1} (fastest) to {@code 9} (smallest)
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        objectName = getObjectName();
+        try {
+            // the MBean interface is not named after the class
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, CompressionStatisticsMBean.class), objectName);
+        } catch (Exception e) {
+            LOG.warn("Exception registering " + objectName, e);
+            objectName = null;
+        }
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                LOG.ignore(e);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    protected CompressedResponseWrapper newGzipResponseWrapper(HttpServletRequest request, HttpServletResponse response) {
+        CompressedResponseWrapper wrapper = new CompressedResponseWrapper(request, response) {
+            @Override
+            protected AbstractCompressedStream newCompressedStream(HttpServletRequest request, HttpServletResponse response) throws IOException {
+                return new AbstractCompressedStream("gzip", request, this, CompressionHandler.this._vary) {
+                    @Override
+                    protected DeflaterOutputStream createStream() throws IOException {
+                        return new CountingGZIPOutputStream(_response.getOutputStream(), CompressionHandler.this._bufferSize);
+                    }
+                };
+            }
+
+            @Override
+            protected PrintWriter newWriter(OutputStream out, String encoding) throws UnsupportedEncodingException {
+                return CompressionHandler.this.newWriter(out, encoding);
+            }
+        };
+        wrapper.setMimeTypes(_mimeTypes, _excludeMimeTypes);
+        wrapper.setBufferSize(_bufferSize);
+        wrapper.setMinCompressSize(_minGzipSize);
+        return wrapper;
+    }
+
+    @Override
+    public long getCompressedResponseCount() {
+        return compressedResponseCount.get();
+    }
+
+    @Override
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    @Override
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    @Override
+    public long getBytesSaved() {
+        return uncompressedBytes.get() - compressedBytes.get();
+    }
+
+    private class CountingGZIPOutputStream extends GZIPOutputStream {
+        private boolean finished;
+
+        private CountingGZIPOutputStream(OutputStream out, int size) throws IOException {
+            super(out, size);
+            def.setLevel(compressionLevel);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            super.finish();
+            if (!finished) {
+                finished = true;
+                compressedResponseCount.incrementAndGet();
+                uncompressedBytes.addAndGet(def.getBytesRead());
+                compressedBytes.addAndGet(def.getBytesWritten() + GZIP_HEADER_AND_TRAILER_SIZE);
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.handler;
+
+import org.eclipse.jetty.http.PathMap;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Record the latency of the requests, from the beginning of their handling to their completion (including async
+ * processing), in {@link RequestLatencyStatistics} registered in JMX as
+ * {@code com.cloudbees.clickstack.jetty:type=RequestLatency,name=all} and, for each URL pattern, as
+ * {@code com.cloudbees.clickstack.jetty:type=RequestLatency,name=${patternName}}.
+ * <p/>
+ * URL patterns: {@code name=pathSpec[,pathSpec]*[;name=pathSpec[,pathSpec]*]*} with servlet path specs
+ * ({@code /api/*}, {@code *.jsp}, {@code /exact}), e.g. {@code api=/api/*;pages=*.jsp,*.html}.
+ */
+public class RequestLatencyHandler extends HandlerWrapper {
+
+    private static final Logger LOG = Log.getLogger(RequestLatencyHandler.class);
+
+    private final RequestLatencyStatistics all = new RequestLatencyStatistics(this, "all");
+
+    private final PathMap<RequestLatencyStatistics> patterns = new PathMap<>();
+
+    private final List<ObjectName> registeredObjectNames = new ArrayList<>();
+
+    public static ObjectName getObjectName(String name) throws Exception {
+        return new ObjectName("com.cloudbees.clickstack.jetty:type=RequestLatency,name=" + name);
+    }
+
+    public void setPatterns(String patterns) {
+        this.patterns.clear();
+        for (String pattern : patterns.split(";")) {
+            pattern = pattern.trim();
+            if (pattern.isEmpty()) {
+                continue;
+            }
+            int idx = pattern.indexOf('=');
+            if (idx <= 0) {
+                throw new IllegalArgumentException("Invalid URL pattern '" + pattern + "', expected 'name=pathSpec'");
+            }
+            RequestLatencyStatistics statistics = new RequestLatencyStatistics(this, pattern.substring(0, idx).trim());
+            for (String pathSpec : pattern.substring(idx + 1).split(",")) {
+                this.patterns.put(pathSpec.trim(), statistics);
+            }
+        }
+    }
+
+    public RequestLatencyStatistics getStatistics() {
+        return all;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        List<RequestLatencyStatistics> statistics = new ArrayList<>();
+        statistics.add(all);
+        for (RequestLatencyStatistics patternStatistics : patterns.values()) {
+            if (!statistics.contains(patternStatistics)) {
+                statistics.add(patternStatistics);
+            }
+        }
+        for (RequestLatencyStatistics stat : statistics) {
+            ObjectName objectName = getObjectName(stat.getName());
+            try {
+                mbeanServer.registerMBean(stat, objectName);
+                registeredObjectNames.add(objectName);
+            } catch (Exception e) {
+                LOG.warn("Exception registering " + objectName, e);
+            }
+        }
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName objectName : registeredObjectNames) {
+            try {
+                mbeanServer.unregisterMBean(objectName);
+            } catch (Exception e) {
+                LOG.ignore(e);
+            }
+        }
+        registeredObjectNames.clear();
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        if (baseRequest.getDispatcherType() != DispatcherType.REQUEST) {
+            // async re-dispatch, measured from the initial dispatch
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+
+        final long startInNanos = System.nanoTime();
+        final RequestLatencyStatistics patternStatistics = patterns.isEmpty() ? null : patterns.match(target);
+        all.onRequestBegin();
+        if (patternStatistics != null) {
+            patternStatistics.onRequestBegin();
+        }
+        boolean async = false;
+        try {
+            super.handle(target, baseRequest, request, response);
+            if (request.isAsyncStarted()) {
+                async = true;
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) throws IOException {
+                        onRequestEnd(startInNanos, patternStatistics);
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) throws IOException {
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) throws IOException {
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) throws IOException {
+                        event.getAsyncContext().addListener(this);
+                    }
+                });
+            }
+        } finally {
+            if (!async) {
+                onRequestEnd(startInNanos, patternStatistics);
+            }
+        }
+    }
+
+    private void onRequestEnd(long startInNanos, RequestLatencyStatistics patternStatistics) {
+        long latencyInMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startInNanos);
+        all.onRequestEnd(latencyInMicros);
+        if (patternStatistics != null) {
+            patternStatistics.onRequestEnd(latencyInMicros);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.handler;
+
+import com.cloudbees.clickstack.jetty.extras.metrics.LatencyHistogram;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Latency of the requests of a {@link RequestLatencyHandler} or of one of its URL patterns, recorded in
+ * microseconds.
+ */
+public class RequestLatencyStatistics implements RequestLatencyStatisticsMBean {
+
+    /**
+     * Snapshots are shared by the attributes read during a collection of the metrics.
+     */
+    private static final long SNAPSHOT_MAX_AGE_IN_MILLIS = 1000;
+
+    private final RequestLatencyHandler handler;
+    private final String name;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public RequestLatencyStatistics(RequestLatencyHandler handler, String name) {
+        this.handler = handler;
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    void onRequestBegin() {
+        inFlight.incrementAndGet();
+    }
+
+    void onRequestEnd(long latencyInMicros) {
+        inFlight.decrementAndGet();
+        latencies.record(latencyInMicros);
+    }
+
+    @Override
+    public long getRequestCount() {
+        return latencies.getCount();
+    }
+
+    @Override
+    public int getRequestsInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public int getRequestsQueued() {
+        Server server = handler.getServer();
+        ThreadPool threadPool = server == null ? null : server.getThreadPool();
+        return threadPool instanceof QueuedThreadPool ? ((QueuedThreadPool) threadPool).getQueueSize() : 0;
+    }
+
+    @Override
+    public double getLatencyMean() {
+        return toMillis(latencies.getIntervalSnapshot(SNAPSHOT_MAX_AGE_IN_MILLIS).getMean());
+    }
+
+    @Override
+    public double getLatency50thPercentile() {
+        return toMillis(latencies.getIntervalSnapshot(SNAPSHOT_MAX_AGE_IN_MILLIS).getValueAtPercentile(50));
+    }
+
+    @Override
+    public double getLatency90thPercentile() {
+        return toMillis(latencies.getIntervalSnapshot(SNAPSHOT_MAX_AGE_IN_MILLIS).getValueAtPercentile(90));
+    }
+
+    @Override
+    public double getLatency99thPercentile() {
+        return toMillis(latencies.getIntervalSnapshot(SNAPSHOT_MAX_AGE_IN_MILLIS).getValueAtPercentile(99));
+    }
+
+    @Override
+    public double getLatency999thPercentile() {
+        return toMillis(latencies.getIntervalSnapshot(SNAPSHOT_MAX_AGE_IN_MILLIS).getValueAtPercentile(99.9));
+    }
+
+    @Override
+    public double getLatencyMax() {
+        return toMillis(latencies.getIntervalSnapshot(SNAPSHOT_MAX_AGE_IN_MILLIS).getMax());
+    }
+
+    private static double toMillis(long micros) {
+        return micros / 1000.0;
+    }
+}
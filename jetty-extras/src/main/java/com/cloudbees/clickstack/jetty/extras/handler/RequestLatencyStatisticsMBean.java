@@ -0,0 +1,51 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.handler;
+
+import com.cloudbees.clickstack.jetty.extras.metrics.IntervalStatistic;
+
+/**
+ * Latencies are in milliseconds and computed on the requests completed since the previous collection.
+ */
+public interface RequestLatencyStatisticsMBean {
+
+    long getRequestCount();
+
+    int getRequestsInFlight();
+
+    /**
+     * Tasks waiting for a thread in the server thread pool.
+     */
+    int getRequestsQueued();
+
+    @IntervalStatistic
+    double getLatencyMean();
+
+    @IntervalStatistic
+    double getLatency50thPercentile();
+
+    @IntervalStatistic
+    double getLatency90thPercentile();
+
+    @IntervalStatistic
+    double getLatency99thPercentile();
+
+    @IntervalStatistic
+    double getLatency999thPercentile();
+
+    @IntervalStatistic
+    double getLatencyMax();
+}
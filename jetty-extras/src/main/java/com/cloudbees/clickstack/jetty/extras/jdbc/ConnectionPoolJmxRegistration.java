@@ -0,0 +1,78 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.jdbc;
+
+import org.apache.tomcat.jdbc.pool.ConnectionPool;
+import org.apache.tomcat.jdbc.pool.JdbcInterceptor;
+import org.apache.tomcat.jdbc.pool.PooledConnection;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Register the {@code jmxEnabled} connection pool in the platform MBean server as
+ * {@code tomcat.jdbc:type=ConnectionPool,name=${poolName}} when the pool is lazily created.
+ * <p/>
+ * Tomcat registers the pool through its own JMX modeler, Jetty does not.
+ */
+public class ConnectionPoolJmxRegistration extends JdbcInterceptor {
+
+    private static final Logger LOG = Log.getLogger(ConnectionPoolJmxRegistration.class);
+
+    public static ObjectName getObjectName(String poolName) throws Exception {
+        return new ObjectName("tomcat.jdbc:type=ConnectionPool,name=" + poolName);
+    }
+
+    @Override
+    public void poolStarted(ConnectionPool pool) {
+        super.poolStarted(pool);
+        if (pool.getJmxPool() == null) {
+            LOG.info("JMX disabled for connection pool {}", pool.getName());
+            return;
+        }
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = getObjectName(pool.getName());
+            if (!mbeanServer.isRegistered(objectName)) {
+                mbeanServer.registerMBean(pool.getJmxPool(), objectName);
+            }
+        } catch (Exception e) {
+            LOG.warn("Exception registering connection pool " + pool.getName() + " in JMX", e);
+        }
+    }
+
+    @Override
+    public void poolClosed(ConnectionPool pool) {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = getObjectName(pool.getName());
+            if (mbeanServer.isRegistered(objectName)) {
+                mbeanServer.unregisterMBean(objectName);
+            }
+        } catch (Exception e) {
+            LOG.warn("Exception unregistering connection pool " + pool.getName() + " from JMX", e);
+        }
+        super.poolClosed(pool);
+    }
+
+    @Override
+    public void reset(ConnectionPool parent, PooledConnection con) {
+        // stateless
+    }
+}
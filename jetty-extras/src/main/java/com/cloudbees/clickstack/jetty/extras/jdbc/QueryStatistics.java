@@ -0,0 +1,130 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.jdbc;
+
+import com.cloudbees.clickstack.jetty.extras.metrics.LatencyHistogram;
+
+import javax.management.ObjectName;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Query statistics of a connection pool, registered in JMX as
+ * {@code com.cloudbees.clickstack.jetty:type=QueryStatistics,name=${poolName}}.
+ */
+public class QueryStatistics implements QueryStatisticsMBean {
+
+    private static final ConcurrentMap<String, QueryStatistics> statisticsByPool = new ConcurrentHashMap<>();
+
+    /**
+     * Snapshots are shared by the attributes read during a collection of the metrics.
+     */
+    private static final long SNAPSHOT_MAX_AGE_IN_MILLIS = 1000;
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong slowQueryCount = new AtomicLong();
+    private final AtomicLong failedQueryCount = new AtomicLong();
+    private final AtomicLong prepareCount = new AtomicLong();
+
+    public static QueryStatistics forPool(String poolName) {
+        QueryStatistics statistics = statisticsByPool.get(poolName);
+        if (statistics == null) {
+            statisticsByPool.putIfAbsent(poolName, new QueryStatistics());
+            statistics = statisticsByPool.get(poolName);
+        }
+        return statistics;
+    }
+
+    public static void remove(String poolName) {
+        statisticsByPool.remove(poolName);
+    }
+
+    public static ObjectName getObjectName(String poolName) throws Exception {
+        return new ObjectName("com.cloudbees.clickstack.jetty:type=QueryStatistics,name=" + poolName);
+    }
+
+    void onQuery(long timeInMillis, boolean slow) {
+        latencies.record(timeInMillis);
+        if (slow) {
+            slowQueryCount.incrementAndGet();
+        }
+    }
+
+    void onFailedQuery(long timeInMillis) {
+        latencies.record(timeInMillis);
+        failedQueryCount.incrementAndGet();
+    }
+
+    void onPrepare() {
+        prepareCount.incrementAndGet();
+    }
+
+    @Override
+    public long getQueryCount() {
+        return latencies.getCount();
+    }
+
+    @Override
+    public long getSlowQueryCount() {
+        return slowQueryCount.get();
+    }
+
+    @Override
+    public long getFailedQueryCount() {
+        return failedQueryCount.get();
+    }
+
+    @Override
+    public long getPrepareCount() {
+        return prepareCount.get();
+    }
+
+    @Override
+    public long getQueryTime() {
+        return latencies.getSum();
+    }
+
+    @Override
+    public long getLatencyMean() {
+        return latencies.getIntervalSnapshot(SNAPSHOT_MAX_AGE_IN_MILLIS).getMean();
+    }
+
+    @Override
+    public long getLatency50thPercentile() {
+        return latencies.getIntervalSnapshot(SNAPSHOT_MAX_AGE_IN_MILLIS).getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getLatency90thPercentile() {
+        return latencies.getIntervalSnapshot(SNAPSHOT_MAX_AGE_IN_MILLIS).getValueAtPercentile(90);
+    }
+
+    @Override
+    public long getLatency99thPercentile() {
+        return latencies.getIntervalSnapshot(SNAPSHOT_MAX_AGE_IN_MILLIS).getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getLatency999thPercentile() {
+        return latencies.getIntervalSnapshot(SNAPSHOT_MAX_AGE_IN_MILLIS).getValueAtPercentile(99.9);
+    }
+
+    @Override
+    public long getLatencyMax() {
+        return latencies.getIntervalSnapshot(SNAPSHOT_MAX_AGE_IN_MILLIS).getMax();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.jdbc;
+
+import org.apache.tomcat.jdbc.pool.ConnectionPool;
+import org.apache.tomcat.jdbc.pool.PooledConnection;
+import org.apache.tomcat.jdbc.pool.interceptor.AbstractQueryReport;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Record the latency of the queries of the pool in its {@link QueryStatistics}, log the queries slower than the
+ * {@code threshold} property (in milliseconds, default 1000).
+ * <p/>
+ * Usage: {@code jdbcInterceptors="com.cloudbees.clickstack.jetty.extras.jdbc.QueryStatisticsInterceptor(threshold=500)"}
+ */
+public class QueryStatisticsInterceptor extends AbstractQueryReport {
+
+    private static final Logger LOG = Log.getLogger(QueryStatisticsInterceptor.class);
+
+    private volatile QueryStatistics statistics;
+
+    private volatile String poolName;
+
+    @Override
+    public void reset(ConnectionPool parent, PooledConnection con) {
+        super.reset(parent, con);
+        if (parent != null) {
+            poolName = parent.getName();
+            statistics = QueryStatistics.forPool(poolName);
+        }
+    }
+
+    @Override
+    public void poolStarted(ConnectionPool pool) {
+        super.poolStarted(pool);
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = QueryStatistics.getObjectName(pool.getName());
+            if (!mbeanServer.isRegistered(objectName)) {
+                mbeanServer.registerMBean(QueryStatistics.forPool(pool.getName()), objectName);
+            }
+        } catch (Exception e) {
+            LOG.warn("Exception registering query statistics of " + pool.getName() + " in JMX", e);
+        }
+    }
+
+    @Override
+    public void poolClosed(ConnectionPool pool) {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = QueryStatistics.getObjectName(pool.getName());
+            if (mbeanServer.isRegistered(objectName)) {
+                mbeanServer.unregisterMBean(objectName);
+            }
+        } catch (Exception e) {
+            LOG.warn("Exception unregistering query statistics of " + pool.getName() + " from JMX", e);
+        }
+        QueryStatistics.remove(pool.getName());
+        super.poolClosed(pool);
+    }
+
+    @Override
+    public void closeInvoked() {
+        // no state per connection
+    }
+
+    @Override
+    protected void prepareStatement(String sql, long time) {
+        QueryStatistics statistics = this.statistics;
+        if (statistics != null) {
+            statistics.onPrepare();
+        }
+    }
+
+    @Override
+    protected void prepareCall(String query, long time) {
+        prepareStatement(query, time);
+    }
+
+    @Override
+    protected String reportQuery(String query, Object[] args, String name, long start, long delta) {
+        String sql = super.reportQuery(query, args, name, start, delta);
+        QueryStatistics statistics = this.statistics;
+        if (statistics != null) {
+            statistics.onQuery(delta, false);
+        }
+        return sql;
+    }
+
+    @Override
+    protected String reportSlowQuery(String query, Object[] args, String name, long start, long delta) {
+        String sql = super.reportSlowQuery(query, args, name, start, delta);
+        QueryStatistics statistics = this.statistics;
+        if (statistics != null) {
+            statistics.onQuery(delta, true);
+        }
+        LOG.info("Slow query on {} ({}ms): {}", poolName, delta, sql);
+        return sql;
+    }
+
+    @Override
+    protected String reportFailedQuery(String query, Object[] args, String name, long start, Throwable t) {
+        String sql = super.reportFailedQuery(query, args, name, start, t);
+        QueryStatistics statistics = this.statistics;
+        if (statistics != null) {
+            statistics.onFailedQuery(System.currentTimeMillis() - start);
+        }
+        return sql;
+    }
+}
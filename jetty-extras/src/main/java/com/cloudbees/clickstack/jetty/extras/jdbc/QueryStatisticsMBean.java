@@ -0,0 +1,55 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.jdbc;
+
+import com.cloudbees.clickstack.jetty.extras.metrics.IntervalStatistic;
+
+/**
+ * Latencies are in milliseconds and computed on the queries executed since the previous collection.
+ */
+public interface QueryStatisticsMBean {
+
+    long getQueryCount();
+
+    long getSlowQueryCount();
+
+    long getFailedQueryCount();
+
+    /**
+     * Statements actually prepared on the database, not served by the statement cache.
+     */
+    long getPrepareCount();
+
+    long getQueryTime();
+
+    @IntervalStatistic
+    long getLatencyMean();
+
+    @IntervalStatistic
+    long getLatency50thPercentile();
+
+    @IntervalStatistic
+    long getLatency90thPercentile();
+
+    @IntervalStatistic
+    long getLatency99thPercentile();
+
+    @IntervalStatistic
+    long getLatency999thPercentile();
+
+    @IntervalStatistic
+    long getLatencyMax();
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.log;
+
+import org.eclipse.jetty.server.AbstractNCSARequestLog;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * NCSA request log that never blocks the request threads: the log lines are handed to a writer thread through a
+ * lock-free {@link RingBuffer} and dropped (and counted) when the buffer is full because the disk is too slow.
+ * <p/>
+ * The writer thread batches the lines in a buffer of {@link #setBatchSize(int)} bytes written with a single
+ * sequential write when it is full or every {@link #setFlushInterval(long)} milliseconds. The file is rotated when
+ * it reaches {@link #setMaxFileSize(long)} bytes or every {@link #setRotationPeriod(long)} minutes, the last
+ * {@link #setRetainFiles(int)} rotated files are kept.
+ * <p/>
+ * Registered in JMX as {@code com.cloudbees.clickstack.jetty:type=RequestLog,name=${filename}}.
+ */
+public class AsyncBatchingRequestLog extends AbstractNCSARequestLog implements AsyncBatchingRequestLogMBean {
+
+    private static final Logger LOG = Log.getLogger(AsyncBatchingRequestLog.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes(UTF_8);
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private String filename;
+    private int bufferSize = 8192;
+    private int batchSize = 64 * 1024;
+    private long flushInterval = 1000;
+    private long maxFileSize = 100 * 1024 * 1024;
+    private long rotationPeriod = TimeUnit.DAYS.toMinutes(1);
+    private int retainFiles = 7;
+
+    private volatile RingBuffer<String> ringBuffer;
+    private volatile boolean running;
+    private Thread writerThread;
+    private ObjectName objectName;
+
+    private final AtomicLong recordCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile long bytesWritten;
+    private volatile long writeCount;
+    private volatile long rotationCount;
+
+    public static ObjectName getObjectName(String name) throws Exception {
+        return new ObjectName("com.cloudbees.clickstack.jetty:type=RequestLog,name=" + name);
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+    /**
+     * @param bufferSize number of log lines waiting for the writer thread, rounded up to the next power of two
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @param batchSize in bytes
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param flushInterval in milliseconds
+     */
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * @param maxFileSize in bytes
+     */
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * @param rotationPeriod in minutes
+     */
+    public void setRotationPeriod(long rotationPeriod) {
+        this.rotationPeriod = rotationPeriod;
+    }
+
+    public void setRetainFiles(int retainFiles) {
+        this.retainFiles = retainFiles;
+    }
+
+    @Override
+    protected boolean isEnabled() {
+        return ringBuffer != null;
+    }
+
+    @Override
+    public void write(String requestEntry) throws IOException {
+        RingBuffer<String> ringBuffer = this.ringBuffer;
+        if (ringBuffer == null) {
+            return;
+        }
+        if (ringBuffer.offer(requestEntry)) {
+            recordCount.incrementAndGet();
+        } else {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    @Override
+    protected synchronized void doStart() throws Exception {
+        if (filename == null) {
+            throw new IllegalStateException("filename is not defined");
+        }
+        Path file = Paths.get(filename);
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        final Writer writer = new Writer(file);
+
+        running = true;
+        ringBuffer = new RingBuffer<>(bufferSize);
+        writerThread = new Thread(writer, "request-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        objectName = getObjectName(file.getFileName().toString());
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception e) {
+            LOG.warn("Exception registering " + objectName, e);
+            objectName = null;
+        }
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        running = false;
+        if (writerThread != null) {
+            LockSupport.unpark(writerThread);
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+            writerThread = null;
+        }
+        ringBuffer = null;
+        if (objectName != null) {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            try {
+                mbeanServer.unregisterMBean(objectName);
+            } catch (Exception e) {
+                LOG.ignore(e);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public long getRecordCount() {
+        return recordCount.get();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    @Override
+    public long getRotationCount() {
+        return rotationCount;
+    }
+
+    @Override
+    public int getQueueSize() {
+        RingBuffer<String> ringBuffer = this.ringBuffer;
+        return ringBuffer == null ? 0 : ringBuffer.size();
+    }
+
+    @Override
+    public int getBufferSize() {
+        RingBuffer<String> ringBuffer = this.ringBuffer;
+        return ringBuffer == null ? bufferSize : ringBuffer.capacity();
+    }
+
+    /**
+     * Single consumer of the {@link RingBuffer}, owns the file.
+     */
+    private class Writer implements Runnable {
+        private final Path file;
+        private final ByteBuffer buffer;
+        private FileChannel channel;
+        private long fileSize;
+        private long nextRotationInMillis;
+
+        private Writer(Path file) throws IOException {
+            this.file = file;
+            this.buffer = ByteBuffer.allocateDirect(Math.max(batchSize, 4096));
+            open();
+        }
+
+        private void open() throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            fileSize = channel.size();
+            nextRotationInMillis = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(rotationPeriod);
+        }
+
+        @Override
+        public void run() {
+            RingBuffer<String> ringBuffer = AsyncBatchingRequestLog.this.ringBuffer;
+            long lastFlushInMillis = System.currentTimeMillis();
+            try {
+                while (running || ringBuffer.size() > 0) {
+                    String line = ringBuffer.poll();
+                    if (line != null) {
+                        append(line.getBytes(UTF_8));
+                        continue;
+                    }
+                    long now = System.currentTimeMillis();
+                    if (buffer.position() > 0 && now - lastFlushInMillis >= flushInterval) {
+                        flush();
+                        lastFlushInMillis = now;
+                    } else {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                }
+                flush();
+            } catch (Throwable t) {
+                LOG.warn("Request log writer failure, stop logging to " + file, t);
+                AsyncBatchingRequestLog.this.ringBuffer = null;
+            } finally {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOG.ignore(e);
+                }
+            }
+        }
+
+        private void append(byte[] line) throws IOException {
+            if (line.length + LINE_SEPARATOR.length > buffer.remaining()) {
+                flush();
+            }
+            if (line.length + LINE_SEPARATOR.length > buffer.remaining()) {
+                // larger than the batch
+                write(ByteBuffer.wrap(line));
+                write(ByteBuffer.wrap(LINE_SEPARATOR));
+                return;
+            }
+            buffer.put(line).put(LINE_SEPARATOR);
+        }
+
+        private void flush() throws IOException {
+            if (buffer.position() == 0) {
+                return;
+            }
+            buffer.flip();
+            try {
+                write(buffer);
+            } finally {
+                buffer.clear();
+            }
+        }
+
+        private void write(ByteBuffer src) throws IOException {
+            if (fileSize > 0 && (fileSize + src.remaining() > maxFileSize || System.currentTimeMillis() >= nextRotationInMillis)) {
+                rotate();
+            }
+            int length = src.remaining();
+            try {
+                while (src.hasRemaining()) {
+                    channel.write(src);
+                }
+            } catch (IOException e) {
+                // do not stop logging because of a transient failure (e.g. disk full)
+                LOG.warn("Exception writing " + length + " bytes to " + file, e);
+                return;
+            }
+            fileSize += length;
+            bytesWritten += length;
+            writeCount++;
+        }
+
+        private void rotate() throws IOException {
+            channel.close();
+            String timestamp = new SimpleDateFormat("yyyy-MM-dd-HHmmss.SSS").format(new Date());
+            Path target = file.resolveSibling(file.getFileName() + "." + timestamp);
+            // more than one rotation in the same millisecond, the suffix sorts before the next timestamp
+            for (int i = 1; Files.exists(target); i++) {
+                target = file.resolveSibling(file.getFileName() + "." + timestamp + "-" + i);
+            }
+            Files.move(file, target);
+            open();
+            rotationCount++;
+
+            List<Path> rotatedFiles = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(file.toAbsolutePath().getParent(), file.getFileName() + ".*")) {
+                for (Path rotatedFile : stream) {
+                    rotatedFiles.add(rotatedFile);
+                }
+            }
+            // timestamp suffix sorts chronologically
+            Collections.sort(rotatedFiles);
+            for (int i = 0; i < rotatedFiles.size() - retainFiles; i++) {
+                Files.deleteIfExists(rotatedFiles.get(i));
+            }
+        }
+    }
+}
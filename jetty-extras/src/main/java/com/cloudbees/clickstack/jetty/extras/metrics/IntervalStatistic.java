@@ -0,0 +1,40 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.metrics;
+
+import javax.management.DescriptorKey;
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Attribute of a standard MBean computed on a {@link LatencyHistogram#getIntervalSnapshot(long)}: reading it starts
+ * a new interval, it must only be read by the collector of the metrics (the jmxtrans agent).
+ * <p/>
+ * Exposed as the {@value #DESCRIPTOR_FIELD} field of the descriptor of the attribute.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface IntervalStatistic {
+
+    String DESCRIPTOR_FIELD = "intervalStatistic";
+
+    @DescriptorKey(DESCRIPTOR_FIELD)
+    boolean value() default true;
+}
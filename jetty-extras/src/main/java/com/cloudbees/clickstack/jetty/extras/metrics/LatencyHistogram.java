@@ -0,0 +1,166 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free and allocation-free histogram of latencies with log-linear buckets: each power of two is split in
+ * {@value #SUB_BUCKETS} linear sub-buckets, values are recorded with a relative error below 12.5%.
+ * <p/>
+ * Writers only perform atomic increments. Percentiles are computed by readers on {@link Snapshot}s of the values
+ * recorded since the previous snapshot, the interval between two collections of the metrics.
+ */
+public class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong intervalMax = new AtomicLong();
+
+    // guarded by this
+    private final long[] previousCounts = new long[BUCKETS];
+    private long previousCount;
+    private long previousSum;
+    private Snapshot lastSnapshot = new Snapshot(new long[BUCKETS], 0, 0, 0);
+    private long lastSnapshotTimeInMillis;
+
+    static int getIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the highest value of the bucket
+     */
+    static long getHighestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        long lowest = ((long) (SUB_BUCKETS + subBucket)) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public void record(long value) {
+        counts.incrementAndGet(getIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long max;
+        while (value > (max = intervalMax.get())) {
+            if (intervalMax.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return total number of recorded values
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return sum of the recorded values
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * Values recorded since the previous snapshot. A snapshot younger than {@code maxAgeInMillis} is reused so
+     * that the attributes read by a single collection of the metrics are consistent.
+     */
+    public synchronized Snapshot getIntervalSnapshot(long maxAgeInMillis) {
+        long now = System.currentTimeMillis();
+        if (now - lastSnapshotTimeInMillis < maxAgeInMillis) {
+            return lastSnapshot;
+        }
+        long[] intervalCounts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            long current = counts.get(i);
+            intervalCounts[i] = current - previousCounts[i];
+            previousCounts[i] = current;
+        }
+        long currentCount = count.get();
+        long currentSum = sum.get();
+        lastSnapshot = new Snapshot(intervalCounts, currentCount - previousCount, currentSum - previousSum, intervalMax.getAndSet(0));
+        previousCount = currentCount;
+        previousSum = currentSum;
+        lastSnapshotTimeInMillis = now;
+        return lastSnapshot;
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         */
+        public long getValueAtPercentile(double percentile) {
+            long total = 0;
+            for (long bucketCount : counts) {
+                total += bucketCount;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long cumulated = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulated += counts[i];
+                if (cumulated >= rank) {
+                    return Math.min(getHighestValue(i), max == 0 ? Long.MAX_VALUE : max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publish the metrics of the jmxtrans agent configuration {@link #setQueriesFile(String)} in a memory-mapped file
+ * every {@link #setInterval(long)} milliseconds, and optionally on a loopback HTTP endpoint, so that the control
+ * scripts read the current values without attaching a JVM.
+ * <p/>
+ * The attributes are read in-process with one {@link MBeanServer#getAttributes(ObjectName, String[])} per MBean.
+ * The {@link #setMetricsFile(String)} has a fixed layout of {@link #LINE_LENGTH} bytes ASCII lines, a header
+ * followed by one line per query in the order of the configuration:
+ * <pre>
+ * # clickstack-metrics 1 seq=00000000000000000042 time=1384512345678 count=00051
+ * request_requestCount                                     c                12345
+ * os_system_load                                           g                 0.42
+ * </pre>
+ * The type is {@code c} for the counters (cumulative values, not the deltas of jmxtrans) and {@code g} for the
+ * gauges, the value is {@code NaN} when the MBean or the attribute is not available. The sequence is odd while the
+ * values are updated: a reader retries until the header read before and after the values is the same even sequence.
+ * <p/>
+ * The {@link IntervalStatistic} attributes (latency percentiles, means and maxima) are not read, their value stays
+ * {@code NaN}: reading them would start a new interval and truncate the one collected by the jmxtrans agent.
+ * <p/>
+ * With {@link #setHttpPort(int)}, the values of the last publication are served in the Prometheus text format on
+ * {@code http://127.0.0.1:${httpPort}/metrics}.
+ * <p/>
+ * Added to the server as a bean, registered in JMX as
+ * {@code com.cloudbees.clickstack.jetty:type=MetricsExporter,name=shared}.
+ */
+public class SharedMetricsExporter extends AbstractLifeCycle implements SharedMetricsExporterMBean {
+
+    public static final int VERSION = 1;
+
+    public static final int LINE_LENGTH = 80;
+
+    static final int NAME_LENGTH = 56;
+
+    static final int VALUE_LENGTH = 20;
+
+    private static final Logger LOG = Log.getLogger(SharedMetricsExporter.class);
+
+    private String queriesFile;
+    private String metricsFile;
+    private long interval = 500;
+    private int httpPort;
+
+    private final List<Query> queries = new ArrayList<>();
+    private final Map<ObjectName, List<Query>> queriesByObjectName = new LinkedHashMap<>();
+    /**
+     * MBeans whose {@link IntervalStatistic} attributes have been looked up, accessed by the publisher thread only.
+     */
+    private final Set<ObjectName> inspectedObjectNames = new HashSet<>();
+    private volatile double[] values = new double[0];
+
+    private volatile long publishCount;
+    private volatile long publishDurationInMicros;
+    private volatile int unavailableCount;
+    private volatile int skippedCount;
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long sequence;
+    private volatile boolean running;
+    private Thread publisherThread;
+    private HttpServer httpServer;
+    private ObjectName objectName;
+
+    public static ObjectName getObjectName() throws Exception {
+        return new ObjectName("com.cloudbees.clickstack.jetty:type=MetricsExporter,name=shared");
+    }
+
+    /**
+     * @param queriesFile jmxtrans agent configuration, {@code /jmxtrans-agent/queries/query} elements
+     */
+    public void setQueriesFile(String queriesFile) {
+        this.queriesFile = queriesFile;
+    }
+
+    public void setMetricsFile(String metricsFile) {
+        this.metricsFile = metricsFile;
+    }
+
+    /**
+     * @param interval in milliseconds
+     */
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * @param httpPort loopback port of the HTTP endpoint, {@code 0} to disable it
+     */
+    public void setHttpPort(int httpPort) {
+        this.httpPort = httpPort;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        if (queriesFile == null || metricsFile == null) {
+            throw new IllegalStateException("queriesFile and metricsFile must be defined");
+        }
+        loadQueries(Paths.get(queriesFile));
+        values = new double[queries.size()];
+
+        openMetricsFile(Paths.get(metricsFile));
+        publish();
+
+        running = true;
+        publisherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long intervalInNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+                long next = System.nanoTime() + intervalInNanos;
+                while (running) {
+                    LockSupport.parkNanos(next - System.nanoTime());
+                    if (!running) {
+                        break;
+                    }
+                    try {
+                        publish();
+                    } catch (RuntimeException e) {
+                        LOG.warn("Exception publishing metrics", e);
+                    }
+                    next += intervalInNanos;
+                    long now = System.nanoTime();
+                    if (next < now) {
+                        // too slow or suspended, skip the missed publications
+                        next = now + intervalInNanos;
+                    }
+                }
+            }
+        }, "metrics-exporter");
+        publisherThread.setDaemon(true);
+        publisherThread.start();
+
+        if (httpPort > 0) {
+            startHttpServer();
+        }
+
+        try {
+            objectName = getObjectName();
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception e) {
+            LOG.warn("Exception registering " + objectName, e);
+            objectName = null;
+        }
+        LOG.info("Publish {} metrics every {}ms in {}", queries.size(), interval, metricsFile);
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        running = false;
+        if (publisherThread != null) {
+            LockSupport.unpark(publisherThread);
+            publisherThread.join(TimeUnit.SECONDS.toMillis(5));
+            publisherThread = null;
+        }
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            buffer = null;
+        }
+        // stale values must not be read as the current ones
+        Files.deleteIfExists(Paths.get(metricsFile));
+        queries.clear();
+        queriesByObjectName.clear();
+        inspectedObjectNames.clear();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                LOG.ignore(e);
+            }
+            objectName = null;
+        }
+    }
+
+    private void loadQueries(Path file) throws Exception {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file.toFile());
+        NodeList nodes = document.getElementsByTagName("query");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Element element = (Element) nodes.item(i);
+            String name = element.getAttribute("resultAlias");
+            if (name.isEmpty()) {
+                name = element.getAttribute("objectName") + "." + element.getAttribute("attribute");
+            }
+            name = name.replace(' ', '_');
+            if (name.length() > NAME_LENGTH) {
+                LOG.warn("Truncate metric name {} to {} characters", name, NAME_LENGTH);
+                name = name.substring(0, NAME_LENGTH);
+            }
+            Query query = new Query(queries.size(), name, new ObjectName(element.getAttribute("objectName")),
+                    element.getAttribute("attribute"), element.getAttribute("key"),
+                    "counter".equals(element.getAttribute("type")));
+            queries.add(query);
+            List<Query> sameObjectName = queriesByObjectName.get(query.objectName);
+            if (sameObjectName == null) {
+                sameObjectName = new ArrayList<>();
+                queriesByObjectName.put(query.objectName, sameObjectName);
+            }
+            sameObjectName.add(query);
+        }
+    }
+
+    /**
+     * Create the file aside and move it in place to never expose a partial layout.
+     */
+    private void openMetricsFile(Path file) throws IOException {
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) LINE_LENGTH * (queries.size() + 1));
+        sequence = 0;
+        writeHeader(System.currentTimeMillis());
+        for (Query query : queries) {
+            buffer.position(LINE_LENGTH * (query.index + 1));
+            putPadded(query.name, NAME_LENGTH, false);
+            buffer.put((byte) ' ').put((byte) (query.counter ? 'c' : 'g')).put((byte) ' ');
+            putPadded("NaN", VALUE_LENGTH, true);
+            buffer.put((byte) '\n');
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read the attributes and update the metrics file, single writer: {@link #doStart()} then the publisher thread.
+     */
+    void publish() {
+        long startTimeInNanos = System.nanoTime();
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        double[] newValues = new double[queries.size()];
+        int unavailable = 0;
+        int skipped = 0;
+        for (Map.Entry<ObjectName, List<Query>> entry : queriesByObjectName.entrySet()) {
+            List<Query> mbeanQueries = entry.getValue();
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            if (mbeanServer.isRegistered(entry.getKey())) {
+                if (inspectedObjectNames.add(entry.getKey())) {
+                    skipIntervalStatistics(mbeanServer, entry.getKey(), mbeanQueries);
+                }
+                List<String> attributeNames = new ArrayList<>(mbeanQueries.size());
+                for (Query query : mbeanQueries) {
+                    if (!query.skipped) {
+                        attributeNames.add(query.attribute);
+                    }
+                }
+                try {
+                    AttributeList attributeList = mbeanServer.getAttributes(entry.getKey(), attributeNames.toArray(new String[attributeNames.size()]));
+                    for (Attribute attribute : attributeList.asList()) {
+                        attributes.put(attribute.getName(), attribute.getValue());
+                    }
+                } catch (Exception e) {
+                    LOG.ignore(e);
+                }
+            }
+            for (Query query : mbeanQueries) {
+                double value = query.skipped ? Double.NaN : query.toDouble(attributes.get(query.attribute));
+                if (query.skipped) {
+                    skipped++;
+                } else if (Double.isNaN(value)) {
+                    unavailable++;
+                }
+                newValues[query.index] = value;
+            }
+        }
+
+        // seqlock, odd while the values are updated
+        sequence++;
+        writeHeader(System.currentTimeMillis());
+        for (Query query : queries) {
+            buffer.position(LINE_LENGTH * (query.index + 1) + NAME_LENGTH + 3);
+            putPadded(format(newValues[query.index]), VALUE_LENGTH, true);
+        }
+        sequence++;
+        writeHeader(System.currentTimeMillis());
+
+        values = newValues;
+        unavailableCount = unavailable;
+        skippedCount = skipped;
+        publishCount++;
+        publishDurationInMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTimeInNanos);
+    }
+
+    private void skipIntervalStatistics(MBeanServer mbeanServer, ObjectName objectName, List<Query> mbeanQueries) {
+        MBeanAttributeInfo[] attributeInfos;
+        try {
+            attributeInfos = mbeanServer.getMBeanInfo(objectName).getAttributes();
+        } catch (Exception e) {
+            LOG.ignore(e);
+            return;
+        }
+        for (MBeanAttributeInfo attributeInfo : attributeInfos) {
+            Object intervalStatistic = attributeInfo.getDescriptor().getFieldValue(IntervalStatistic.DESCRIPTOR_FIELD);
+            if (!Boolean.TRUE.equals(intervalStatistic) && !"true".equals(intervalStatistic)) {
+                continue;
+            }
+            for (Query query : mbeanQueries) {
+                if (query.attribute.equals(attributeInfo.getName())) {
+                    LOG.info("Skip interval statistic {}, collected by the jmxtrans agent only", query.name);
+                    query.skipped = true;
+                }
+            }
+        }
+    }
+
+    private void writeHeader(long timeInMillis) {
+        buffer.position(0);
+        putPadded(String.format(Locale.ROOT, "# clickstack-metrics %d seq=%020d time=%013d count=%05d",
+                VERSION, sequence, timeInMillis, queries.size()), LINE_LENGTH - 1, false);
+        buffer.put((byte) '\n');
+    }
+
+    private void putPadded(String value, int length, boolean rightAligned) {
+        if (value.length() > length) {
+            value = value.substring(0, length);
+        }
+        int padding = length - value.length();
+        if (!rightAligned) {
+            buffer.put(value.getBytes(StandardCharsets.US_ASCII));
+        }
+        for (int i = 0; i < padding; i++) {
+            buffer.put((byte) ' ');
+        }
+        if (rightAligned) {
+            buffer.put(value.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    static String format(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return "NaN";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e18) {
+            return Long.toString((long) value);
+        }
+        return String.format(Locale.ROOT, "%.6g", value);
+    }
+
+    private void startHttpServer() throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+        httpServer.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    byte[] body = toPrometheusFormat().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        httpServer.start();
+        LOG.info("Serve metrics on http://127.0.0.1:{}/metrics", httpServer.getAddress().getPort());
+    }
+
+    String toPrometheusFormat() {
+        double[] snapshot = values;
+        StringBuilder sb = new StringBuilder(queries.size() * 64);
+        for (Query query : queries) {
+            if (query.skipped) {
+                continue;
+            }
+            String name = query.name.replaceAll("[^a-zA-Z0-9_:]", "_");
+            sb.append("# TYPE ").append(name).append(query.counter ? " counter\n" : " gauge\n");
+            sb.append(name).append(' ').append(format(snapshot[query.index])).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public int getMetricCount() {
+        return queries.size();
+    }
+
+    @Override
+    public int getUnavailableCount() {
+        return unavailableCount;
+    }
+
+    @Override
+    public int getSkippedCount() {
+        return skippedCount;
+    }
+
+    @Override
+    public long getPublishCount() {
+        return publishCount;
+    }
+
+    @Override
+    public long getPublishDuration() {
+        return publishDurationInMicros;
+    }
+
+    private static class Query {
+        final int index;
+        final String name;
+        final ObjectName objectName;
+        final String attribute;
+        final String key;
+        final boolean counter;
+        /**
+         * {@link IntervalStatistic} attribute
+         */
+        volatile boolean skipped;
+
+        Query(int index, String name, ObjectName objectName, String attribute, String key, boolean counter) {
+            this.index = index;
+            this.name = name;
+            this.objectName = objectName;
+            this.attribute = attribute;
+            this.key = key.isEmpty() ? null : key;
+            this.counter = counter;
+        }
+
+        double toDouble(Object value) {
+            if (key != null && value instanceof CompositeData) {
+                CompositeData compositeData = (CompositeData) value;
+                value = compositeData.containsKey(key) ? compositeData.get(key) : null;
+            }
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            } else if (value instanceof Boolean) {
+                return (Boolean) value ? 1 : 0;
+            }
+            return Double.NaN;
+        }
+    }
+}
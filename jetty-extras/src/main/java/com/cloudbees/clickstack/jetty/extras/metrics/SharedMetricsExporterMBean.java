@@ -0,0 +1,38 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.metrics;
+
+public interface SharedMetricsExporterMBean {
+
+    int getMetricCount();
+
+    /**
+     * Metrics whose MBean or attribute was not available at the last publication.
+     */
+    int getUnavailableCount();
+
+    /**
+     * {@link IntervalStatistic} metrics, not read to not reset the interval of the jmxtrans agent.
+     */
+    int getSkippedCount();
+
+    long getPublishCount();
+
+    /**
+     * Duration of the last publication in microseconds.
+     */
+    long getPublishDuration();
+}
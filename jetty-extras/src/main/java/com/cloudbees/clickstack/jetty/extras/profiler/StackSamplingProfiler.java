@@ -0,0 +1,410 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.profiler;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sample the stacks of the request threads of the server every {@link #setInterval(long)} milliseconds and fold
+ * them in collapsed stack files ({@code frame;frame;...;frame count} per line, the input of {@code flamegraph.pl})
+ * written in {@link #setDirectory(String)} every {@link #setRotationPeriod(long)} minutes, the last
+ * {@link #setRetainFiles(int)} files are kept.
+ * <p/>
+ * Only the busy threads of the server thread pool are sampled: the threads waiting for a job, selecting or
+ * accepting connections are skipped. The stacks of the threads not running end with a {@code [BLOCKED]},
+ * {@code [WAITING]} or {@code [TIMED_WAITING]} frame to also show where the requests wait. The virtual threads are
+ * not visible to the {@link ThreadMXBean} and are not sampled.
+ * <p/>
+ * The stacks are captured with {@link ThreadMXBean#getThreadInfo(long[], int)}. Although only the stacks of the
+ * sampled threads are walked, each sample is a global safepoint: all the threads of the JVM are paused, for tens to
+ * hundreds of microseconds depending on the number of threads and the depth of the stacks. The default interval is
+ * therefore long, one second. The CPU time spent sampling and writing by the sampler thread is reported as the
+ * overhead of the profiler, the pauses of the application threads are not included.
+ * <p/>
+ * Added to the server as a bean, registered in JMX as
+ * {@code com.cloudbees.clickstack.jetty:type=StackSamplingProfiler,name=requests}.
+ */
+public class StackSamplingProfiler extends AbstractLifeCycle implements StackSamplingProfilerMBean {
+
+    public static final String FILE_PREFIX = "profile-";
+
+    public static final String FILE_SUFFIX = ".collapsed";
+
+    static final int TOP_FRAMES = 20;
+
+    /**
+     * Frames of the threads of the thread pool that do not process a request
+     */
+    static final String[] IDLE_FRAMES = {
+            "org.eclipse.jetty.util.thread.QueuedThreadPool.idleJobPoll",
+            "org.eclipse.jetty.io.SelectorManager$ManagedSelector.select",
+            "org.eclipse.jetty.server.ServerConnector.accept"
+    };
+
+    private static final Logger LOG = Log.getLogger(StackSamplingProfiler.class);
+
+    private final Server server;
+    private String directory;
+    private String threadNamePrefix;
+    private long interval = 1000;
+    private int maxDepth = 128;
+    private long rotationPeriod = 5;
+    private int retainFiles = 288;
+    private int maxStacks = 10000;
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    /**
+     * Samples of the current period, only accessed by the sampler thread
+     */
+    private Map<String, long[]> stacks = new HashMap<>();
+    private Map<String, long[]> selfFrames = new HashMap<>();
+    private long periodSampleCount;
+    private long periodStartTimeInNanos;
+    private long periodOverheadInNanos;
+
+    private volatile String[] topFrames = new String[0];
+    private volatile double overhead;
+    private volatile long sampleCount;
+    private volatile long droppedSampleCount;
+    private volatile long overheadInNanos;
+
+    private volatile boolean running;
+    private Thread samplerThread;
+    private ObjectName objectName;
+
+    public StackSamplingProfiler(Server server) {
+        this.server = server;
+    }
+
+    public static ObjectName getObjectName() throws Exception {
+        return new ObjectName("com.cloudbees.clickstack.jetty:type=StackSamplingProfiler,name=requests");
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param threadNamePrefix name prefix of the sampled threads, default to the name of the server thread pool
+     */
+    public void setThreadNamePrefix(String threadNamePrefix) {
+        this.threadNamePrefix = threadNamePrefix;
+    }
+
+    /**
+     * @param interval in milliseconds
+     */
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * @param rotationPeriod in minutes
+     */
+    public void setRotationPeriod(long rotationPeriod) {
+        this.rotationPeriod = rotationPeriod;
+    }
+
+    public void setRetainFiles(int retainFiles) {
+        this.retainFiles = retainFiles;
+    }
+
+    /**
+     * @param maxStacks distinct stacks per file, the samples of the other stacks are dropped and counted
+     */
+    public void setMaxStacks(int maxStacks) {
+        this.maxStacks = maxStacks;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        if (directory == null) {
+            throw new IllegalStateException("directory is not defined");
+        }
+        Files.createDirectories(Paths.get(directory));
+        if (threadNamePrefix == null) {
+            threadNamePrefix = server.getThreadPool() instanceof QueuedThreadPool ?
+                    ((QueuedThreadPool) server.getThreadPool()).getName() + "-" : "qtp";
+        }
+
+        running = true;
+        periodStartTimeInNanos = System.nanoTime();
+        samplerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long intervalInNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+                long rotationPeriodInNanos = TimeUnit.MINUTES.toNanos(rotationPeriod);
+                long next = System.nanoTime() + intervalInNanos;
+                while (running) {
+                    LockSupport.parkNanos(next - System.nanoTime());
+                    if (!running) {
+                        break;
+                    }
+                    try {
+                        sample();
+                        if (System.nanoTime() - periodStartTimeInNanos >= rotationPeriodInNanos) {
+                            rotate();
+                        }
+                    } catch (Exception e) {
+                        LOG.warn("Exception sampling the request threads", e);
+                    }
+                    next += intervalInNanos;
+                    long now = System.nanoTime();
+                    if (next < now) {
+                        next = now + intervalInNanos;
+                    }
+                }
+                try {
+                    rotate();
+                } catch (Exception e) {
+                    LOG.warn("Exception writing the last samples", e);
+                }
+            }
+        }, "stack-sampler");
+        samplerThread.setDaemon(true);
+        samplerThread.start();
+
+        try {
+            objectName = getObjectName();
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception e) {
+            LOG.warn("Exception registering " + objectName, e);
+            objectName = null;
+        }
+        LOG.info("Sample the threads {}* every {}ms in {}", threadNamePrefix, interval, directory);
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        running = false;
+        if (samplerThread != null) {
+            LockSupport.unpark(samplerThread);
+            samplerThread.join(TimeUnit.SECONDS.toMillis(5));
+            samplerThread = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                LOG.ignore(e);
+            }
+            objectName = null;
+        }
+    }
+
+    void sample() {
+        long startCpuTimeInNanos = threadMXBean.getCurrentThreadCpuTime();
+
+        // enumerating the threads does not need a safepoint, getThreadInfo(...) pauses all the threads of the JVM
+        ThreadGroup root = Thread.currentThread().getThreadGroup();
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+        Thread[] threads = new Thread[root.activeCount() + 16];
+        int count = root.enumerate(threads, true);
+        long[] threadIds = new long[count];
+        int sampled = 0;
+        for (int i = 0; i < count; i++) {
+            if (threads[i].getName().startsWith(threadNamePrefix)) {
+                threadIds[sampled++] = threads[i].getId();
+            }
+        }
+        if (sampled > 0) {
+            long[] ids = new long[sampled];
+            System.arraycopy(threadIds, 0, ids, 0, sampled);
+            StringBuilder sb = new StringBuilder(4096);
+            for (ThreadInfo threadInfo : threadMXBean.getThreadInfo(ids, maxDepth)) {
+                if (threadInfo != null) {
+                    fold(threadInfo, sb);
+                }
+            }
+        }
+
+        long cpuTimeInNanos = threadMXBean.getCurrentThreadCpuTime() - startCpuTimeInNanos;
+        periodOverheadInNanos += cpuTimeInNanos;
+        overheadInNanos += cpuTimeInNanos;
+    }
+
+    private void fold(ThreadInfo threadInfo, StringBuilder sb) {
+        StackTraceElement[] frames = threadInfo.getStackTrace();
+        if (frames.length == 0) {
+            return;
+        }
+        for (StackTraceElement frame : frames) {
+            String method = frame.getClassName() + "." + frame.getMethodName();
+            for (String idleFrame : IDLE_FRAMES) {
+                if (idleFrame.equals(method)) {
+                    return;
+                }
+            }
+        }
+        sb.setLength(0);
+        for (int i = frames.length - 1; i >= 0; i--) {
+            sb.append(frames[i].getClassName()).append('.').append(frames[i].getMethodName()).append(';');
+        }
+        Thread.State state = threadInfo.getThreadState();
+        if (state != Thread.State.RUNNABLE) {
+            sb.append('[').append(state).append(']');
+        } else {
+            sb.setLength(sb.length() - 1);
+        }
+        String stack = sb.toString();
+
+        long[] stackCount = stacks.get(stack);
+        if (stackCount == null) {
+            if (stacks.size() >= maxStacks) {
+                droppedSampleCount++;
+                return;
+            }
+            stackCount = new long[1];
+            stacks.put(stack, stackCount);
+        }
+        stackCount[0]++;
+
+        String selfFrame = frames[0].getClassName() + "." + frames[0].getMethodName();
+        long[] selfCount = selfFrames.get(selfFrame);
+        if (selfCount == null) {
+            selfCount = new long[1];
+            selfFrames.put(selfFrame, selfCount);
+        }
+        selfCount[0]++;
+
+        periodSampleCount++;
+        sampleCount++;
+    }
+
+    /**
+     * Write the samples of the period, publish its top frames and overhead, delete the oldest files.
+     */
+    void rotate() throws IOException {
+        long startCpuTimeInNanos = threadMXBean.getCurrentThreadCpuTime();
+        Path dir = Paths.get(directory);
+        if (!stacks.isEmpty()) {
+            String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+            Path file = dir.resolve(FILE_PREFIX + timestamp + FILE_SUFFIX);
+            Path tmpFile = dir.resolve(FILE_PREFIX + timestamp + FILE_SUFFIX + ".tmp");
+            try (Writer writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, long[]> entry : stacks.entrySet()) {
+                    writer.write(entry.getKey());
+                    writer.write(' ');
+                    writer.write(Long.toString(entry.getValue()[0]));
+                    writer.write('\n');
+                }
+            }
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            deleteOldestFiles(dir);
+        }
+
+        List<Map.Entry<String, long[]>> frames = new ArrayList<>(selfFrames.entrySet());
+        Collections.sort(frames, new Comparator<Map.Entry<String, long[]>>() {
+            @Override
+            public int compare(Map.Entry<String, long[]> e1, Map.Entry<String, long[]> e2) {
+                return Long.compare(e2.getValue()[0], e1.getValue()[0]);
+            }
+        });
+        String[] newTopFrames = new String[Math.min(TOP_FRAMES, frames.size())];
+        for (int i = 0; i < newTopFrames.length; i++) {
+            long count = frames.get(i).getValue()[0];
+            newTopFrames[i] = String.format(Locale.ROOT, "%5.1f%% %8d %s", 100.0 * count / periodSampleCount, count, frames.get(i).getKey());
+        }
+        topFrames = newTopFrames;
+
+        long cpuTimeInNanos = threadMXBean.getCurrentThreadCpuTime() - startCpuTimeInNanos;
+        periodOverheadInNanos += cpuTimeInNanos;
+        overheadInNanos += cpuTimeInNanos;
+        long now = System.nanoTime();
+        overhead = 100.0 * periodOverheadInNanos / Math.max(1, now - periodStartTimeInNanos);
+
+        stacks = new HashMap<>();
+        selfFrames = new HashMap<>();
+        periodSampleCount = 0;
+        periodOverheadInNanos = 0;
+        periodStartTimeInNanos = now;
+    }
+
+    private void deleteOldestFiles(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        // the timestamp of the file names sorts them chronologically
+        Collections.sort(files);
+        for (int i = 0; i < files.size() - retainFiles; i++) {
+            Files.deleteIfExists(files.get(i));
+        }
+    }
+
+    @Override
+    public String[] getTopFrames() {
+        return topFrames;
+    }
+
+    @Override
+    public double getOverhead() {
+        return overhead;
+    }
+
+    @Override
+    public long getOverheadTime() {
+        return TimeUnit.NANOSECONDS.toMillis(overheadInNanos);
+    }
+
+    @Override
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    @Override
+    public long getDroppedSampleCount() {
+        return droppedSampleCount;
+    }
+}
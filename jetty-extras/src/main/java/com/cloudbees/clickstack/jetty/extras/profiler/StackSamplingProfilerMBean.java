@@ -0,0 +1,43 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.profiler;
+
+public interface StackSamplingProfilerMBean {
+
+    /**
+     * Frames on top of the sampled stacks during the last rotation period, {@code percentage count frame}.
+     */
+    String[] getTopFrames();
+
+    /**
+     * CPU time spent sampling and writing by the sampler thread during the last rotation period, in percentage of one
+     * CPU. Does not include the global safepoint of each sample that pauses all the threads of the JVM.
+     */
+    double getOverhead();
+
+    /**
+     * Total CPU time spent sampling and writing by the sampler thread in milliseconds. Does not include the global
+     * safepoint of each sample that pauses all the threads of the JVM.
+     */
+    long getOverheadTime();
+
+    long getSampleCount();
+
+    /**
+     * Samples of stacks dropped because of the maximum number of distinct stacks per file.
+     */
+    long getDroppedSampleCount();
+}
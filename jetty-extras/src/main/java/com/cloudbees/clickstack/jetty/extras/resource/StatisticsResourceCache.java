@@ -0,0 +1,165 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.resource;
+
+import org.eclipse.jetty.http.HttpContent;
+import org.eclipse.jetty.server.ResourceCache;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.resource.Resource;
+import org.eclipse.jetty.util.resource.ResourceFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.MalformedURLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link ResourceCache} of the static resources of a context, shared with the {@code DefaultServlet} through the
+ * {@code resourceCache} context attribute, counting the hits, misses and evictions. The least recently used files are
+ * evicted when the cache is full.
+ * <p/>
+ * Registered in JMX as {@code com.cloudbees.clickstack.jetty:type=ResourceCache,name=${name}} while the context is
+ * started.
+ */
+public class StatisticsResourceCache extends ResourceCache implements StatisticsResourceCacheMBean {
+
+    private static final Logger LOG = Log.getLogger(StatisticsResourceCache.class);
+
+    private final AtomicLong lookupCount = new AtomicLong();
+    private final AtomicLong notFoundCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong cacheableCount = new AtomicLong();
+
+    /**
+     * @param useFileMappedBuffer serve the cached files from memory-mapped buffers rather than from heap copies
+     * @param etags               add {@code ETag} headers and handle {@code If-None-Match}
+     */
+    public StatisticsResourceCache(final ContextHandler context, String name, boolean useFileMappedBuffer, boolean etags) throws Exception {
+        super(null, new ContextResourceFactory(context), context.getMimeTypes(), useFileMappedBuffer, etags);
+
+        final ObjectName objectName = getObjectName(name);
+        context.addLifeCycleListener(new AbstractLifeCycle.AbstractLifeCycleListener() {
+            @Override
+            public void lifeCycleStarted(LifeCycle event) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(StatisticsResourceCache.this, objectName);
+                } catch (Exception e) {
+                    LOG.warn("Exception registering " + objectName, e);
+                }
+            }
+
+            @Override
+            public void lifeCycleStopped(LifeCycle event) {
+                MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+                try {
+                    if (mbeanServer.isRegistered(objectName)) {
+                        mbeanServer.unregisterMBean(objectName);
+                    }
+                } catch (Exception e) {
+                    LOG.ignore(e);
+                }
+                flushCache();
+            }
+        });
+    }
+
+    public static ObjectName getObjectName(String name) throws Exception {
+        return new ObjectName("com.cloudbees.clickstack.jetty:type=ResourceCache,name=" + name);
+    }
+
+    @Override
+    public HttpContent lookup(String pathInContext) throws IOException {
+        lookupCount.incrementAndGet();
+        HttpContent content = super.lookup(pathInContext);
+        if (content == null) {
+            notFoundCount.incrementAndGet();
+        }
+        return content;
+    }
+
+    /**
+     * Only invoked by {@link ResourceCache} for the existing files that are not in the cache.
+     */
+    @Override
+    protected boolean isCacheable(Resource resource) {
+        missCount.incrementAndGet();
+        boolean cacheable = super.isCacheable(resource);
+        if (cacheable) {
+            cacheableCount.incrementAndGet();
+        }
+        return cacheable;
+    }
+
+    @Override
+    public long getLookupCount() {
+        return lookupCount.get();
+    }
+
+    @Override
+    public long getHitCount() {
+        return Math.max(0, lookupCount.get() - notFoundCount.get() - missCount.get());
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = getHitCount();
+        long total = hits + missCount.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        // approximation: concurrent loads of the same file are counted once in the cache
+        return Math.max(0, cacheableCount.get() - getCachedFiles());
+    }
+
+    @Override
+    public int getCachedBytes() {
+        return getCachedSize();
+    }
+
+    /**
+     * The resources of the context are only known once the webapp is unpacked, resolve them on lookup.
+     */
+    private static class ContextResourceFactory implements ResourceFactory {
+        private final ContextHandler context;
+
+        private ContextResourceFactory(ContextHandler context) {
+            this.context = context;
+        }
+
+        @Override
+        public Resource getResource(String path) {
+            try {
+                return context.getResource(path);
+            } catch (MalformedURLException e) {
+                LOG.ignore(e);
+                return null;
+            }
+        }
+    }
+}
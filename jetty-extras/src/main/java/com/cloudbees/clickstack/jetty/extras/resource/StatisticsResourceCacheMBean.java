@@ -0,0 +1,48 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.resource;
+
+public interface StatisticsResourceCacheMBean {
+
+    long getLookupCount();
+
+    long getHitCount();
+
+    /**
+     * Lookups of existing files not in the cache (not cached yet or not cacheable).
+     */
+    long getMissCount();
+
+    /**
+     * Ratio of the lookups of existing files served from the cache.
+     */
+    double getHitRatio();
+
+    /**
+     * Files removed from the cache because it was full or because they have been modified.
+     */
+    long getEvictionCount();
+
+    int getCachedBytes();
+
+    int getCachedFiles();
+
+    int getMaxCacheSize();
+
+    int getMaxCachedFileSize();
+
+    int getMaxCachedFiles();
+}
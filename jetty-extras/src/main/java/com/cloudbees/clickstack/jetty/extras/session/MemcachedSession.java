@@ -0,0 +1,172 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.session;
+
+import org.eclipse.jetty.server.session.AbstractSession;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Session of a {@link MemcachedSessionManager}, flagged as dirty when one of its attributes or its max inactive
+ * interval is modified. The names of the modified attributes are kept to apply them on the session stored by another
+ * node when both modified it concurrently.
+ */
+public class MemcachedSession extends AbstractSession {
+
+    private final MemcachedSessionManager manager;
+
+    private volatile boolean dirty;
+
+    /**
+     * Version of the session in memcached this copy is based on, {@code 0} if it has never been written. Versions
+     * are unique across the nodes, see {@link MemcachedSessionManager}.
+     */
+    private volatile long version;
+
+    /**
+     * Attributes modified since the last write, guarded by this.
+     */
+    private final Set<String> modifiedAttributes = new HashSet<>();
+
+    /**
+     * Last time the session has been written to memcached or validated against it.
+     */
+    private volatile long lastSynchronized;
+
+    /**
+     * Last time the session has been written to memcached, the expiration of memcached is not extended by reads.
+     */
+    private volatile long lastWritten;
+
+    protected MemcachedSession(MemcachedSessionManager manager, HttpServletRequest request) {
+        super(manager, request);
+        this.manager = manager;
+        this.dirty = true;
+        this.lastSynchronized = this.lastWritten = System.currentTimeMillis();
+    }
+
+    protected MemcachedSession(MemcachedSessionManager manager, long created, long accessed, String clusterId, long version) {
+        super(manager, created, accessed, clusterId);
+        this.manager = manager;
+        this.version = version;
+        this.lastSynchronized = this.lastWritten = System.currentTimeMillis();
+    }
+
+    @Override
+    protected Object doPutOrRemove(String name, Object value) {
+        synchronized (this) {
+            modifiedAttributes.add(name);
+            dirty = true;
+        }
+        return super.doPutOrRemove(name, value);
+    }
+
+    @Override
+    public void setMaxInactiveInterval(int seconds) {
+        super.setMaxInactiveInterval(seconds);
+        dirty = true;
+    }
+
+    @Override
+    protected void complete() {
+        super.complete();
+        manager.sessionCompleted(this);
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * @return a snapshot of the attributes to serialize, the session is no longer dirty
+     */
+    synchronized Map<String, Object> markClean() {
+        dirty = false;
+        lastSynchronized = lastWritten = System.currentTimeMillis();
+        return new HashMap<>(getAttributeMap());
+    }
+
+    /**
+     * @return the names of the attributes modified since the previous call
+     */
+    synchronized Set<String> takeModifiedAttributes() {
+        Set<String> result = new HashSet<>(modifiedAttributes);
+        modifiedAttributes.clear();
+        return result;
+    }
+
+    /**
+     * Loaded from memcached, not modified.
+     */
+    synchronized void loaded() {
+        dirty = false;
+        modifiedAttributes.clear();
+    }
+
+    void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * The write of the given modified attributes failed, they will be written with the next write.
+     */
+    synchronized void markDirty(Collection<String> attributeNames) {
+        modifiedAttributes.addAll(attributeNames);
+        dirty = true;
+    }
+
+    /**
+     * Written in memcached, this copy is the session of the given version.
+     */
+    void written(long version) {
+        this.version = version;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    long getLastSynchronized() {
+        return lastSynchronized;
+    }
+
+    long getLastWritten() {
+        return lastWritten;
+    }
+
+    void validated() {
+        lastSynchronized = System.currentTimeMillis();
+    }
+
+    void restoreAttributes(Map<String, Object> attributes) {
+        addAttributes(attributes);
+    }
+
+    void expire() {
+        timeout();
+    }
+
+    void renewId(String clusterId, String nodeId) {
+        setClusterId(clusterId);
+        setNodeId(nodeId);
+        dirty = true;
+    }
+}
@@ -0,0 +1,684 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.session;
+
+import net.spy.memcached.AddrUtil;
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.ConnectionFactoryBuilder;
+import net.spy.memcached.FailureMode;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.auth.AuthDescriptor;
+import org.eclipse.jetty.server.session.AbstractSession;
+import org.eclipse.jetty.server.session.AbstractSessionManager;
+import org.eclipse.jetty.util.ClassLoadingObjectInputStream;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Session manager storing the sessions in memcached, with a bounded local near-cache.
+ * <ul>
+ * <li>Write-behind: the sessions modified by a request are written by a background thread once all the requests of
+ * the session are completed, the requests that did not modify their session do not write it.</li>
+ * <li>Near-cache: the sessions are kept locally, up to {@link #setMaxLocalSessions(int)}, least recently accessed
+ * sessions are evicted first. Before being used by a new request, a cached session older than
+ * {@link #setStalePeriod(int)} seconds is validated against its version in memcached (a small read) and reloaded if
+ * another node modified it, so that sticky sessions are not required.</li>
+ * <li>Versions: a session is stored in a single item holding its version and its attributes. The versions are
+ * generated by an {@code incr} of the version item of the session, they are unique across the nodes and the version
+ * item is always greater than or equal to the version of the stored session: a copy whose version differs is stale.
+ * The session item is written with {@code gets}/{@code cas}: when another node wrote the session since the copy was
+ * loaded, the attributes modified locally are applied on the attributes written by the other node (the last writer
+ * wins for an attribute modified by both) and the local copy is reloaded by its next request.</li>
+ * <li>Expiration: memcached expires the sessions after their max inactive interval, the expiration is extended by
+ * rewriting the sessions read but not modified for more than half of their max inactive interval.</li>
+ * </ul>
+ * Attributes modified without {@code setAttribute} (mutable objects) are only written with the next modification
+ * of the session.
+ * <p/>
+ * Registered in JMX as {@code com.cloudbees.clickstack.jetty:type=SessionStore,name=memcached}.
+ */
+public class MemcachedSessionManager extends AbstractSessionManager implements SessionStoreStatisticsMBean {
+
+    private static final Logger LOG = Log.getLogger(MemcachedSessionManager.class);
+
+    /**
+     * Longer expirations are interpreted by memcached as absolute unix times
+     */
+    private static final int MAX_RELATIVE_EXPIRATION_IN_SECONDS = (int) TimeUnit.DAYS.toSeconds(30);
+
+    /**
+     * Attempts to write a session modified concurrently by other nodes
+     */
+    private static final int MAX_WRITE_ATTEMPTS = 5;
+
+    private String servers = "localhost:11211";
+    private String username;
+    private String password;
+    private String keyPrefix = "jetty-session:";
+    private int maxLocalSessions = 1000;
+    private int stalePeriod = 0;
+    private long writeBehindDelay = 100;
+    private int scavengePeriod = 60;
+    private long operationTimeout = 1000;
+
+    private final ConcurrentMap<String, MemcachedSession> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, MemcachedSession> pendingWrites = new ConcurrentHashMap<>();
+
+    private MemcachedClient client;
+    private ScheduledExecutorService executor;
+    private ObjectName objectName;
+
+    private final AtomicLong localHitCount = new AtomicLong();
+    private final AtomicLong remoteHitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicLong writeFailureCount = new AtomicLong();
+    private final AtomicLong conflictCount = new AtomicLong();
+    private final AtomicLong cleanSessionCount = new AtomicLong();
+    private final AtomicLong serializationTime = new AtomicLong();
+    private final AtomicLong deserializationTime = new AtomicLong();
+    private final AtomicLong serializedBytes = new AtomicLong();
+
+    public static ObjectName getObjectName() throws Exception {
+        return new ObjectName("com.cloudbees.clickstack.jetty:type=SessionStore,name=memcached");
+    }
+
+    /**
+     * @param servers {@code host:port} separated by spaces or commas
+     */
+    public void setServers(String servers) {
+        this.servers = servers;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    public void setKeyPrefix(String keyPrefix) {
+        this.keyPrefix = keyPrefix;
+    }
+
+    public void setMaxLocalSessions(int maxLocalSessions) {
+        this.maxLocalSessions = maxLocalSessions;
+    }
+
+    /**
+     * @param stalePeriod in seconds, {@code -1} to never validate the cached sessions (sticky sessions)
+     */
+    public void setStalePeriod(int stalePeriod) {
+        this.stalePeriod = stalePeriod;
+    }
+
+    /**
+     * @param writeBehindDelay in milliseconds
+     */
+    public void setWriteBehindDelay(long writeBehindDelay) {
+        this.writeBehindDelay = writeBehindDelay;
+    }
+
+    /**
+     * @param scavengePeriod in seconds
+     */
+    public void setScavengePeriod(int scavengePeriod) {
+        this.scavengePeriod = scavengePeriod;
+    }
+
+    /**
+     * @param operationTimeout in milliseconds
+     */
+    public void setOperationTimeout(long operationTimeout) {
+        this.operationTimeout = operationTimeout;
+    }
+
+    @Override
+    public void doStart() throws Exception {
+        ConnectionFactoryBuilder connectionFactoryBuilder = new ConnectionFactoryBuilder()
+                .setOpTimeout(operationTimeout)
+                .setDaemon(true)
+                .setFailureMode(FailureMode.Redistribute);
+        if (username != null && !username.isEmpty()) {
+            // SASL requires the binary protocol
+            connectionFactoryBuilder
+                    .setProtocol(ConnectionFactoryBuilder.Protocol.BINARY)
+                    .setAuthDescriptor(AuthDescriptor.typical(username, password));
+        }
+        client = new MemcachedClient(connectionFactoryBuilder.build(), AddrUtil.getAddresses(servers));
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "memcached-session-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, writeBehindDelay, writeBehindDelay, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                scavenge();
+            }
+        }, scavengePeriod, scavengePeriod, TimeUnit.SECONDS);
+
+        super.doStart();
+
+        objectName = getObjectName();
+        try {
+            // the MBean interface is not named after the class
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, SessionStoreStatisticsMBean.class), objectName);
+        } catch (Exception e) {
+            LOG.warn("Exception registering " + objectName, e);
+            objectName = null;
+        }
+    }
+
+    @Override
+    public void doStop() throws Exception {
+        // invalidateSessions() writes the pending sessions
+        super.doStop();
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+        client.shutdown(5, TimeUnit.SECONDS);
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                LOG.ignore(e);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    protected AbstractSession newSession(HttpServletRequest request) {
+        return new MemcachedSession(this, request);
+    }
+
+    @Override
+    protected void addSession(AbstractSession session) {
+        sessions.put(session.getClusterId(), (MemcachedSession) session);
+        if (sessions.size() > maxLocalSessions && isRunning()) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    evict();
+                }
+            });
+        }
+    }
+
+    @Override
+    public AbstractSession getSession(String clusterId) {
+        MemcachedSession session = sessions.get(clusterId);
+        if (session != null) {
+            if (!isStale(session)) {
+                localHitCount.incrementAndGet();
+                return session;
+            }
+            Object remoteVersion;
+            try {
+                remoteVersion = client.get(getVersionKey(clusterId));
+            } catch (RuntimeException e) {
+                LOG.warn("Exception validating session " + clusterId + ", use the local copy", e);
+                localHitCount.incrementAndGet();
+                return session;
+            }
+            if (remoteVersion != null && parseVersion(remoteVersion) == session.getVersion()) {
+                session.validated();
+                localHitCount.incrementAndGet();
+                return session;
+            }
+            // modified by another node, or invalidated or expired
+            if (sessions.remove(clusterId, session)) {
+                _sessionIdManager.removeSession(session);
+            }
+            if (remoteVersion == null) {
+                missCount.incrementAndGet();
+                return null;
+            }
+        }
+
+        MemcachedSession loadedSession = load(clusterId);
+        if (loadedSession == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        remoteHitCount.incrementAndGet();
+        synchronized (this) {
+            session = sessions.get(clusterId);
+            if (session != null) {
+                // loaded concurrently
+                return session;
+            }
+            addSession(loadedSession, false);
+        }
+        loadedSession.didActivate();
+        return loadedSession;
+    }
+
+    private boolean isStale(MemcachedSession session) {
+        if (stalePeriod < 0 || session.getRequests() > 0 || session.isDirty() || pendingWrites.containsKey(session.getClusterId())) {
+            return false;
+        }
+        return System.currentTimeMillis() - session.getLastSynchronized() >= TimeUnit.SECONDS.toMillis(stalePeriod);
+    }
+
+    @Override
+    protected boolean removeSession(String clusterId) {
+        MemcachedSession session = sessions.remove(clusterId);
+        pendingWrites.remove(clusterId);
+        delete(clusterId);
+        return session != null;
+    }
+
+    @Override
+    public void renewSessionId(String oldClusterId, String oldNodeId, String newClusterId, String newNodeId) {
+        MemcachedSession session = sessions.remove(oldClusterId);
+        if (session == null) {
+            return;
+        }
+        pendingWrites.remove(oldClusterId);
+        delete(oldClusterId);
+        session.renewId(newClusterId, newNodeId);
+        sessions.put(newClusterId, session);
+        super.renewSessionId(oldClusterId, oldNodeId, newClusterId, newNodeId);
+    }
+
+    /**
+     * Wait for the deletion so that the other nodes no longer find the session once the request completes.
+     */
+    private void delete(String clusterId) {
+        try {
+            Future<Boolean> sessionDeleted = client.delete(getKey(clusterId));
+            Future<Boolean> versionDeleted = client.delete(getVersionKey(clusterId));
+            sessionDeleted.get(operationTimeout, TimeUnit.MILLISECONDS);
+            versionDeleted.get(operationTimeout, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            LOG.warn("Exception deleting session " + clusterId, e);
+        }
+    }
+
+    /**
+     * Write the pending sessions and clear the near-cache, the sessions are not invalidated as they outlive the
+     * server in memcached.
+     */
+    @Override
+    protected void invalidateSessions() throws Exception {
+        for (MemcachedSession session : sessions.values()) {
+            if (session.isValid() && session.isDirty()) {
+                pendingWrites.put(session.getClusterId(), session);
+            }
+        }
+        flush();
+        sessions.clear();
+    }
+
+    /**
+     * Invoked when a request completes.
+     */
+    void sessionCompleted(MemcachedSession session) {
+        if (session.getRequests() > 0 || !session.isValid()) {
+            return;
+        }
+        long maxInactiveInMillis = TimeUnit.SECONDS.toMillis(session.getMaxInactiveInterval());
+        if (session.isDirty() || (maxInactiveInMillis > 0 && System.currentTimeMillis() - session.getLastWritten() > maxInactiveInMillis / 2)) {
+            pendingWrites.put(session.getClusterId(), session);
+        } else {
+            cleanSessionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Write the pending sessions, executed by the write-behind thread.
+     */
+    protected void flush() {
+        for (String clusterId : pendingWrites.keySet()) {
+            MemcachedSession session = pendingWrites.remove(clusterId);
+            if (session == null || !session.isValid()) {
+                continue;
+            }
+            if (session.getRequests() > 0) {
+                // written when the last request completes
+                session.markDirty();
+                continue;
+            }
+            write(session);
+        }
+    }
+
+    private void write(MemcachedSession session) {
+        String clusterId = session.getClusterId();
+        Map<String, Object> attributes;
+        Set<String> modifiedAttributes;
+        long baseVersion;
+        int maxInactiveInterval;
+        synchronized (session) {
+            attributes = session.markClean();
+            modifiedAttributes = session.takeModifiedAttributes();
+            baseVersion = session.getVersion();
+            maxInactiveInterval = session.getMaxInactiveInterval();
+        }
+        try {
+            int expiration = getExpiration(maxInactiveInterval);
+            for (int attempt = 1; ; attempt++) {
+                CASValue<Object> stored = client.gets(getKey(clusterId));
+                StoredSession storedSession = stored == null ? null : deserialize(clusterId, (byte[]) stored.getValue());
+                boolean conflict = storedSession != null && storedSession.version != baseVersion;
+                Map<String, Object> storedAttributes = attributes;
+                if (conflict) {
+                    // written by another node since this copy was loaded
+                    storedAttributes = new HashMap<>(storedSession.attributes);
+                    for (String name : modifiedAttributes) {
+                        Object value = attributes.get(name);
+                        if (value == null) {
+                            storedAttributes.remove(name);
+                        } else {
+                            storedAttributes.put(name, value);
+                        }
+                    }
+                }
+
+                long version = nextVersion(clusterId, expiration);
+                byte[] data = serialize(session, maxInactiveInterval, version, storedAttributes);
+                boolean written;
+                if (stored == null) {
+                    written = client.add(getKey(clusterId), expiration, data).get(operationTimeout, TimeUnit.MILLISECONDS);
+                } else {
+                    written = client.cas(getKey(clusterId), stored.getCas(), expiration, data) == CASResponse.OK;
+                }
+                if (written) {
+                    // incr does not extend the expiration of the version
+                    client.touch(getVersionKey(clusterId), expiration);
+                    if (conflict) {
+                        // the local copy lacks the attributes of the other node, its version is kept to reload it
+                        conflictCount.incrementAndGet();
+                    } else {
+                        session.written(version);
+                    }
+                    writeCount.incrementAndGet();
+                    return;
+                }
+                if (attempt >= MAX_WRITE_ATTEMPTS) {
+                    throw new IOException("Session modified concurrently by other nodes, " + attempt + " attempts");
+                }
+            }
+        } catch (Exception e) {
+            writeFailureCount.incrementAndGet();
+            session.markDirty(modifiedAttributes);
+            LOG.warn("Exception writing session " + clusterId, e);
+        }
+    }
+
+    /**
+     * The initial value is the current time so that the versions keep increasing if memcached evicted the version
+     * item.
+     */
+    private long nextVersion(String clusterId, int expiration) throws IOException {
+        long version = client.incr(getVersionKey(clusterId), 1L, System.currentTimeMillis(), expiration);
+        if (version < 0) {
+            throw new IOException("memcached refused to increment the version of the session");
+        }
+        return version;
+    }
+
+    private byte[] serialize(MemcachedSession session, int maxInactiveInterval, long version, Map<String, Object> attributes) throws IOException {
+        long startInNanos = System.nanoTime();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeLong(session.getCreationTime());
+            out.writeLong(session.getAccessed());
+            out.writeInt(maxInactiveInterval);
+            out.writeLong(version);
+            out.writeObject(attributes);
+        }
+        byte[] data = bytes.toByteArray();
+        serializationTime.addAndGet(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startInNanos));
+        serializedBytes.addAndGet(data.length);
+        return data;
+    }
+
+    private MemcachedSession load(String clusterId) {
+        byte[] data;
+        try {
+            data = (byte[]) client.get(getKey(clusterId));
+        } catch (RuntimeException e) {
+            LOG.warn("Exception loading session " + clusterId, e);
+            return null;
+        }
+        StoredSession storedSession = data == null ? null : deserialize(clusterId, data);
+        if (storedSession == null) {
+            return null;
+        }
+        MemcachedSession session = new MemcachedSession(this, storedSession.created, storedSession.accessed, clusterId, storedSession.version);
+        session.setMaxInactiveInterval(storedSession.maxInactiveInterval);
+        session.restoreAttributes(storedSession.attributes);
+        session.loaded();
+        // the restore constructor counts a request, the request is counted by access()
+        session.setRequests(0);
+        return session;
+    }
+
+    /**
+     * @return {@code null} if the session cannot be deserialized
+     */
+    private StoredSession deserialize(String clusterId, byte[] data) {
+        long startInNanos = System.nanoTime();
+        Thread currentThread = Thread.currentThread();
+        ClassLoader contextClassLoader = currentThread.getContextClassLoader();
+        if (_loader != null) {
+            // resolve the classes of the attributes with the webapp class loader
+            currentThread.setContextClassLoader(_loader);
+        }
+        try (ObjectInputStream in = new ClassLoadingObjectInputStream(new ByteArrayInputStream(data))) {
+            StoredSession storedSession = new StoredSession();
+            storedSession.created = in.readLong();
+            storedSession.accessed = in.readLong();
+            storedSession.maxInactiveInterval = in.readInt();
+            storedSession.version = in.readLong();
+            @SuppressWarnings("unchecked")
+            Map<String, Object> attributes = (Map<String, Object>) in.readObject();
+            storedSession.attributes = attributes;
+            return storedSession;
+        } catch (Exception e) {
+            LOG.warn("Exception deserializing session " + clusterId + ", ignore it", e);
+            return null;
+        } finally {
+            currentThread.setContextClassLoader(contextClassLoader);
+            deserializationTime.addAndGet(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startInNanos));
+        }
+    }
+
+    /**
+     * Drop the expired sessions from the near-cache (invalidate them if they also expired in memcached) and evict the
+     * least recently accessed sessions above {@link #setMaxLocalSessions(int)}.
+     */
+    protected void scavenge() {
+        long now = System.currentTimeMillis();
+        for (MemcachedSession session : sessions.values()) {
+            long maxInactiveInMillis = TimeUnit.SECONDS.toMillis(session.getMaxInactiveInterval());
+            if (session.getRequests() > 0 || maxInactiveInMillis <= 0 || session.getAccessed() + maxInactiveInMillis > now) {
+                continue;
+            }
+            try {
+                if (client.get(getVersionKey(session.getClusterId())) == null) {
+                    // fire the session listeners
+                    session.expire();
+                } else if (sessions.remove(session.getClusterId(), session)) {
+                    // accessed through another node
+                    _sessionIdManager.removeSession(session);
+                }
+            } catch (Exception e) {
+                LOG.warn("Exception scavenging session " + session.getClusterId(), e);
+            }
+        }
+        evict();
+    }
+
+    private void evict() {
+        int excess = sessions.size() - maxLocalSessions;
+        if (excess <= 0) {
+            return;
+        }
+        List<MemcachedSession> candidates = new ArrayList<>();
+        for (MemcachedSession session : sessions.values()) {
+            if (session.getRequests() == 0) {
+                candidates.add(session);
+            }
+        }
+        Collections.sort(candidates, new Comparator<MemcachedSession>() {
+            @Override
+            public int compare(MemcachedSession s1, MemcachedSession s2) {
+                return Long.compare(s1.getAccessed(), s2.getAccessed());
+            }
+        });
+        for (int i = 0; i < excess && i < candidates.size(); i++) {
+            MemcachedSession session = candidates.get(i);
+            if (session.isDirty() || pendingWrites.remove(session.getClusterId()) != null) {
+                write(session);
+            }
+            if (sessions.remove(session.getClusterId(), session)) {
+                session.willPassivate();
+                _sessionIdManager.removeSession(session);
+            }
+        }
+    }
+
+    private String getKey(String clusterId) {
+        return keyPrefix + clusterId;
+    }
+
+    private String getVersionKey(String clusterId) {
+        return keyPrefix + clusterId + ":version";
+    }
+
+    /**
+     * The version item is a counter, memcached may pad it with spaces.
+     */
+    private static long parseVersion(Object version) {
+        try {
+            return Long.parseLong(String.valueOf(version).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int getExpiration(int maxInactiveIntervalInSeconds) {
+        return maxInactiveIntervalInSeconds <= 0 ? 0 : Math.min(maxInactiveIntervalInSeconds, MAX_RELATIVE_EXPIRATION_IN_SECONDS);
+    }
+
+    @Override
+    public long getLocalHitCount() {
+        return localHitCount.get();
+    }
+
+    @Override
+    public long getRemoteHitCount() {
+        return remoteHitCount.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    @Override
+    public long getWriteFailureCount() {
+        return writeFailureCount.get();
+    }
+
+    @Override
+    public long getConflictCount() {
+        return conflictCount.get();
+    }
+
+    @Override
+    public long getCleanSessionCount() {
+        return cleanSessionCount.get();
+    }
+
+    @Override
+    public long getSerializationTime() {
+        return serializationTime.get();
+    }
+
+    @Override
+    public long getDeserializationTime() {
+        return deserializationTime.get();
+    }
+
+    @Override
+    public long getSerializedBytes() {
+        return serializedBytes.get();
+    }
+
+    @Override
+    public int getLocalSessionCount() {
+        return sessions.size();
+    }
+
+    @Override
+    public int getPendingWriteCount() {
+        return pendingWrites.size();
+    }
+
+    private static class StoredSession {
+        long created;
+        long accessed;
+        int maxInactiveInterval;
+        long version;
+        Map<String, Object> attributes;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.session;
+
+public interface SessionStoreStatisticsMBean {
+
+    /**
+     * Sessions found in the local near-cache.
+     */
+    long getLocalHitCount();
+
+    /**
+     * Sessions loaded from memcached (not in the near-cache or stale).
+     */
+    long getRemoteHitCount();
+
+    /**
+     * Sessions found neither in the near-cache nor in memcached.
+     */
+    long getMissCount();
+
+    long getWriteCount();
+
+    long getWriteFailureCount();
+
+    /**
+     * Writes of sessions modified concurrently by another node, the local modifications were applied on the
+     * attributes written by the other node.
+     */
+    long getConflictCount();
+
+    /**
+     * Completed requests that did not modify their session and did not require a write.
+     */
+    long getCleanSessionCount();
+
+    /**
+     * Total serialization time in microseconds.
+     */
+    long getSerializationTime();
+
+    /**
+     * Total deserialization time in microseconds.
+     */
+    long getDeserializationTime();
+
+    long getSerializedBytes();
+
+    int getLocalSessionCount();
+
+    int getPendingWriteCount();
+}
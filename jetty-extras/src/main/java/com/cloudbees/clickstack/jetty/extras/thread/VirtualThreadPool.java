@@ -0,0 +1,132 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.thread;
+
+import org.eclipse.jetty.io.SelectorManager;
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread pool of the server dispatching the tasks on virtual threads, except the acceptor and selector loops of the
+ * connectors that run on a small pool of platform threads: a loop never ends, it would pin a carrier thread of the
+ * virtual threads scheduler for the life of the server.
+ * <p/>
+ * The connectors get the thread pool of the server as executor, which also runs the request processing, the loops
+ * are recognized by their class.
+ * <p/>
+ * A loop never returns its thread: a loop beyond the size of the platform pool is rejected instead of waiting forever
+ * in the queue of the pool, which would hang the connections of a selector without error.
+ * <p/>
+ * The virtual threads executor ({@code Executors.newVirtualThreadPerTaskExecutor()}, Java 21+) is given by the
+ * configuration, this class is compiled for older JVMs.
+ */
+public class VirtualThreadPool extends ContainerLifeCycle implements ThreadPool {
+
+    private static final Logger LOG = Log.getLogger(VirtualThreadPool.class);
+
+    /**
+     * {@code AbstractConnector.Acceptor} is package private
+     */
+    private static final String ACCEPTOR_CLASS_NAME = "org.eclipse.jetty.server.AbstractConnector$Acceptor";
+
+    private final Executor virtualThreadExecutor;
+    private final QueuedThreadPool loopThreadPool;
+    private final AtomicInteger runningLoops = new AtomicInteger();
+
+    /**
+     * @param virtualThreadExecutor executor starting a virtual thread per task
+     * @param loopThreads           maximum number of acceptor and selector loops of the connectors
+     */
+    public VirtualThreadPool(Executor virtualThreadExecutor, int loopThreads) {
+        this.virtualThreadExecutor = virtualThreadExecutor;
+        this.loopThreadPool = new QueuedThreadPool(loopThreads, 1);
+        this.loopThreadPool.setName("jetty-loops");
+        addBean(loopThreadPool);
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        if (isLoop(task)) {
+            int loops = runningLoops.incrementAndGet();
+            if (loops > loopThreadPool.getMaxThreads()) {
+                runningLoops.decrementAndGet();
+                LOG.warn("No platform thread for {}, {} loops already running, increase the loop threads", task, loops - 1);
+                throw new RejectedExecutionException("No platform thread for " + task + ", " + (loops - 1) + " loops already running");
+            }
+            LOG.debug("Run {} on a platform thread", task);
+            loopThreadPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        runningLoops.decrementAndGet();
+                    }
+                }
+
+                @Override
+                public String toString() {
+                    return task.toString();
+                }
+            });
+        } else {
+            virtualThreadExecutor.execute(task);
+        }
+    }
+
+    static boolean isLoop(Runnable task) {
+        return task instanceof SelectorManager.ManagedSelector || ACCEPTOR_CLASS_NAME.equals(task.getClass().getName());
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        if (virtualThreadExecutor instanceof ExecutorService) {
+            ((ExecutorService) virtualThreadExecutor).shutdownNow();
+        }
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        loopThreadPool.join();
+    }
+
+    /**
+     * @return platform threads of the acceptor and selector loops, the virtual threads are not pooled
+     */
+    @Override
+    public int getThreads() {
+        return loopThreadPool.getThreads();
+    }
+
+    @Override
+    public int getIdleThreads() {
+        return loopThreadPool.getIdleThreads();
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.warmup;
+
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.NetworkConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Warm up the JIT compiler and the caches of the application once the server accepts connections: replay the
+ * requests of {@link #setRequestsFile(String)} against the loopback interface until the JIT compilation activity
+ * settles, then create the {@link #setReadinessFile(String)}.
+ * <p/>
+ * One request per line, {@code GET /path?query}, {@code HEAD /path} or {@code /path}. Other methods are ignored to
+ * not modify the state of the application. The requests are sent with the {@code User-Agent} {@link #USER_AGENT}.
+ * <p/>
+ * The compilation activity is settled when the JIT compiler spent less than
+ * {@link #setSettledCompilationTime(long)} milliseconds per second during {@link #SETTLED_PERIODS} consecutive
+ * seconds, after at least one replay of all the requests. The warm-up ends anyway after
+ * {@link #setMaxDuration(long)} milliseconds or {@link #setMaxRequests(int)} requests.
+ * <p/>
+ * Added to the server as a lifecycle listener, registered in JMX as
+ * {@code com.cloudbees.clickstack.jetty:type=WarmUp,name=replay}.
+ */
+public class WarmUp extends AbstractLifeCycle.AbstractLifeCycleListener implements WarmUpMBean {
+
+    public static final String USER_AGENT = "clickstack-warmup";
+
+    static final int SETTLED_PERIODS = 3;
+
+    private static final Logger LOG = Log.getLogger(WarmUp.class);
+
+    private String requestsFile;
+    private String readinessFile;
+    private int concurrency = 4;
+    private long maxDuration = 60000;
+    private int maxRequests = 10000;
+    private long settledCompilationTime = 20;
+
+    private volatile boolean ready;
+    private volatile long durationInMillis;
+    private volatile long compilationTimeInMillis;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+
+    private Thread thread;
+    private ObjectName objectName;
+
+    public static ObjectName getObjectName() throws Exception {
+        return new ObjectName("com.cloudbees.clickstack.jetty:type=WarmUp,name=replay");
+    }
+
+    public void setRequestsFile(String requestsFile) {
+        this.requestsFile = requestsFile;
+    }
+
+    public void setReadinessFile(String readinessFile) {
+        this.readinessFile = readinessFile;
+    }
+
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @param maxDuration in milliseconds
+     */
+    public void setMaxDuration(long maxDuration) {
+        this.maxDuration = maxDuration;
+    }
+
+    public void setMaxRequests(int maxRequests) {
+        this.maxRequests = maxRequests;
+    }
+
+    /**
+     * @param settledCompilationTime in milliseconds of compilation per second
+     */
+    public void setSettledCompilationTime(long settledCompilationTime) {
+        this.settledCompilationTime = settledCompilationTime;
+    }
+
+    @Override
+    public void lifeCycleStarting(LifeCycle event) {
+        if (!(event instanceof Server)) {
+            return;
+        }
+        deleteReadinessFile();
+        try {
+            objectName = getObjectName();
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception e) {
+            LOG.warn("Exception registering " + objectName, e);
+            objectName = null;
+        }
+    }
+
+    @Override
+    public void lifeCycleStarted(LifeCycle event) {
+        if (!(event instanceof Server)) {
+            return;
+        }
+        int port = -1;
+        for (Connector connector : ((Server) event).getConnectors()) {
+            if (connector instanceof NetworkConnector) {
+                port = ((NetworkConnector) connector).getLocalPort();
+                break;
+            }
+        }
+        if (port <= 0) {
+            LOG.warn("No network connector, skip warm-up");
+            markReady(System.nanoTime());
+            return;
+        }
+        final int serverPort = port;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                warmUp(serverPort);
+            }
+        }, "warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void lifeCycleStopping(LifeCycle event) {
+        if (event instanceof Server && thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    @Override
+    public void lifeCycleStopped(LifeCycle event) {
+        if (!(event instanceof Server)) {
+            return;
+        }
+        deleteReadinessFile();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                LOG.ignore(e);
+            }
+            objectName = null;
+        }
+    }
+
+    private void warmUp(final int port) {
+        long startTimeInNanos = System.nanoTime();
+        final List<String[]> requests;
+        try {
+            requests = loadRequests();
+        } catch (IOException e) {
+            LOG.warn("Exception loading warm-up requests from " + requestsFile, e);
+            markReady(startTimeInNanos);
+            return;
+        }
+        if (requests.isEmpty()) {
+            LOG.info("No warm-up request in {}", requestsFile);
+            markReady(startTimeInNanos);
+            return;
+        }
+        LOG.info("Warm up with {} requests on port {}", requests.size(), port);
+
+        final AtomicInteger index = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger(concurrency);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int i;
+                        while (!Thread.currentThread().isInterrupted() && (i = index.getAndIncrement()) < maxRequests) {
+                            String[] request = requests.get(i % requests.size());
+                            send(port, request[0], request[1]);
+                        }
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                }
+            }, "warm-up-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+
+        CompilationMXBean compilation = ManagementFactory.getCompilationMXBean();
+        boolean compilationMonitored = compilation != null && compilation.isCompilationTimeMonitoringSupported();
+        long initialCompilationTime = compilationMonitored ? compilation.getTotalCompilationTime() : 0;
+        long previousCompilationTime = initialCompilationTime;
+        int settledPeriods = 0;
+        try {
+            while (running.get() > 0 && System.nanoTime() - startTimeInNanos < TimeUnit.MILLISECONDS.toNanos(maxDuration)) {
+                Thread.sleep(1000);
+                if (compilationMonitored) {
+                    long compilationTime = compilation.getTotalCompilationTime();
+                    settledPeriods = compilationTime - previousCompilationTime < settledCompilationTime ? settledPeriods + 1 : 0;
+                    previousCompilationTime = compilationTime;
+                    compilationTimeInMillis = compilationTime - initialCompilationTime;
+                    if (settledPeriods >= SETTLED_PERIODS && index.get() >= requests.size()) {
+                        break;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            // server stopping
+            return;
+        }
+        markReady(startTimeInNanos);
+        LOG.info("Warm-up completed in {}ms, {} requests, {} errors, {}ms of JIT compilation",
+                durationInMillis, requestCount.get(), errorCount.get(), compilationTimeInMillis);
+    }
+
+    private List<String[]> loadRequests() throws IOException {
+        List<String[]> requests = new ArrayList<>();
+        if (requestsFile == null || !Files.exists(Paths.get(requestsFile))) {
+            return requests;
+        }
+        for (String line : Files.readAllLines(Paths.get(requestsFile), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] methodAndUri = line.split("\\s+");
+            if (methodAndUri.length == 1 && line.startsWith("/")) {
+                requests.add(new String[]{"GET", line});
+            } else if (methodAndUri.length == 2 && ("GET".equals(methodAndUri[0]) || "HEAD".equals(methodAndUri[0])) && methodAndUri[1].startsWith("/")) {
+                requests.add(methodAndUri);
+            } else {
+                LOG.debug("Ignore warm-up request '{}'", line);
+            }
+        }
+        return requests;
+    }
+
+    private void send(int port, String method, String uri) {
+        requestCount.incrementAndGet();
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL("http", "127.0.0.1", port, uri).openConnection();
+            connection.setRequestMethod(method);
+            connection.setRequestProperty("User-Agent", USER_AGENT);
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(10000);
+            connection.setReadTimeout(10000);
+            int status = connection.getResponseCode();
+            if (status >= 500) {
+                errorCount.incrementAndGet();
+            }
+            // read the response to reuse the connection
+            InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (in != null) {
+                byte[] buffer = new byte[8192];
+                while (in.read(buffer) != -1) {
+                }
+                in.close();
+            }
+        } catch (IOException e) {
+            errorCount.incrementAndGet();
+            LOG.debug("Exception warming up " + method + " " + uri, e);
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private void markReady(long startTimeInNanos) {
+        durationInMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTimeInNanos));
+        ready = true;
+        if (readinessFile != null) {
+            try {
+                Path file = Paths.get(readinessFile);
+                if (!Files.exists(file)) {
+                    Files.createFile(file);
+                }
+            } catch (IOException e) {
+                LOG.warn("Exception creating readiness file " + readinessFile, e);
+            }
+        }
+    }
+
+    private void deleteReadinessFile() {
+        if (readinessFile != null) {
+            try {
+                Files.deleteIfExists(Paths.get(readinessFile));
+            } catch (IOException e) {
+                LOG.warn("Exception deleting readiness file " + readinessFile, e);
+            }
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public long getDuration() {
+        return durationInMillis;
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    @Override
+    public long getCompilationTime() {
+        return compilationTimeInMillis;
+    }
+}
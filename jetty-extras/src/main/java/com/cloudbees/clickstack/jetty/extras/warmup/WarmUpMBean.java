@@ -0,0 +1,38 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.warmup;
+
+public interface WarmUpMBean {
+
+    /**
+     * @return {@code true} once the warm-up is completed
+     */
+    boolean isReady();
+
+    /**
+     * Duration of the warm-up in milliseconds, {@code 0} until the warm-up is completed.
+     */
+    long getDuration();
+
+    long getRequestCount();
+
+    long getErrorCount();
+
+    /**
+     * Time spent by the JIT compiler during the warm-up in milliseconds.
+     */
+    long getCompilationTime();
+}
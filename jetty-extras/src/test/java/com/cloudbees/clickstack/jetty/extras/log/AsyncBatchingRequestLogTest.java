@@ -0,0 +1,143 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class AsyncBatchingRequestLogTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path file;
+    private AsyncBatchingRequestLog requestLog;
+
+    @Before
+    public void before() throws Exception {
+        file = temporaryFolder.getRoot().toPath().resolve("access.log");
+        requestLog = new AsyncBatchingRequestLog();
+        requestLog.setFilename(file.toString());
+        // each line is written as soon as the writer thread is idle
+        requestLog.setFlushInterval(0);
+    }
+
+    @After
+    public void after() throws Exception {
+        requestLog.stop();
+    }
+
+    /**
+     * Write the line and wait for the writer thread to write it to the file.
+     */
+    private void log(String line) throws Exception {
+        long writeCount = requestLog.getWriteCount();
+        requestLog.write(line);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (requestLog.getWriteCount() == writeCount) {
+            assertThat("timeout writing " + line, System.nanoTime() < deadline, is(true));
+            Thread.sleep(1);
+        }
+    }
+
+    private static String line(int index) {
+        StringBuilder line = new StringBuilder("line-").append(index).append(' ');
+        while (line.length() < 99) {
+            line.append('x');
+        }
+        return line.toString();
+    }
+
+    /**
+     * @return the rotated files, oldest first
+     */
+    private List<Path> rotatedFiles() throws Exception {
+        List<Path> rotatedFiles = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(file.getParent(), "access.log.*")) {
+            for (Path rotatedFile : stream) {
+                rotatedFiles.add(rotatedFile);
+            }
+        }
+        Collections.sort(rotatedFiles);
+        return rotatedFiles;
+    }
+
+    @Test
+    public void file_is_rotated_by_size_and_the_oldest_files_are_deleted() throws Exception {
+        // two lines of 100 bytes per file
+        requestLog.setMaxFileSize(250);
+        requestLog.setRetainFiles(2);
+        requestLog.start();
+
+        for (int i = 0; i < 10; i++) {
+            log(line(i));
+        }
+
+        assertThat(requestLog.getRotationCount(), is(4L));
+        assertThat(requestLog.getRecordCount(), is(10L));
+        assertThat(requestLog.getDroppedCount(), is(0L));
+        assertThat(Files.readAllLines(file, StandardCharsets.UTF_8), contains(line(8), line(9)));
+        List<Path> rotatedFiles = rotatedFiles();
+        assertThat(rotatedFiles, hasSize(2));
+        assertThat(Files.readAllLines(rotatedFiles.get(0), StandardCharsets.UTF_8), contains(line(4), line(5)));
+        assertThat(Files.readAllLines(rotatedFiles.get(1), StandardCharsets.UTF_8), contains(line(6), line(7)));
+    }
+
+    @Test
+    public void file_is_rotated_by_period() throws Exception {
+        // every write is after the end of the period
+        requestLog.setRotationPeriod(0);
+        requestLog.setRetainFiles(10);
+        requestLog.start();
+
+        for (int i = 0; i < 3; i++) {
+            log(line(i));
+        }
+
+        assertThat(requestLog.getRotationCount(), is(2L));
+        assertThat(Files.readAllLines(file, StandardCharsets.UTF_8), contains(line(2)));
+        List<Path> rotatedFiles = rotatedFiles();
+        assertThat(rotatedFiles, hasSize(2));
+        assertThat(Files.readAllLines(rotatedFiles.get(0), StandardCharsets.UTF_8), contains(line(0)));
+        assertThat(Files.readAllLines(rotatedFiles.get(1), StandardCharsets.UTF_8), contains(line(1)));
+    }
+
+    @Test
+    public void existing_file_is_appended() throws Exception {
+        Files.write(file, Collections.singleton(line(0)), StandardCharsets.UTF_8);
+        requestLog.start();
+
+        log(line(1));
+
+        assertThat(requestLog.getRotationCount(), is(0L));
+        assertThat(Files.readAllLines(file, StandardCharsets.UTF_8), contains(line(0), line(1)));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.log;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class RingBufferTest {
+
+    @Test
+    public void capacity_is_rounded_up_to_a_power_of_two() {
+        assertThat(new RingBuffer<Integer>(1).capacity(), is(2));
+        assertThat(new RingBuffer<Integer>(4).capacity(), is(4));
+        assertThat(new RingBuffer<Integer>(5).capacity(), is(8));
+    }
+
+    @Test
+    public void offer_fails_when_full() {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertThat(ringBuffer.offer(i), is(true));
+        }
+        assertThat(ringBuffer.offer(4), is(false));
+        assertThat(ringBuffer.size(), is(4));
+
+        assertThat(ringBuffer.poll(), is(0));
+        assertThat(ringBuffer.offer(4), is(true));
+        assertThat(ringBuffer.offer(5), is(false));
+    }
+
+    @Test
+    public void elements_are_polled_in_order_across_wrap_arounds() {
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>(4);
+        int next = 0;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 3; i++) {
+                assertThat(ringBuffer.offer(round * 3 + i), is(true));
+            }
+            for (int i = 0; i < 3; i++) {
+                assertThat(ringBuffer.poll(), is(next++));
+            }
+            assertThat(ringBuffer.poll(), nullValue());
+            assertThat(ringBuffer.size(), is(0));
+        }
+    }
+
+    /**
+     * Producers retry when the buffer is full: each element is polled exactly once and the elements of a producer
+     * are polled in the order they were offered.
+     */
+    @Test
+    public void concurrent_producers_lose_and_duplicate_nothing() throws Exception {
+        final int producers = 4;
+        final int elementsPerProducer = 50000;
+        final RingBuffer<Integer> ringBuffer = new RingBuffer<>(64);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < elementsPerProducer; i++) {
+                        while (!ringBuffer.offer(producer * elementsPerProducer + i)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            }, "producer-" + p);
+            thread.start();
+            threads.add(thread);
+        }
+
+        boolean[] polled = new boolean[producers * elementsPerProducer];
+        int[] lastPolled = new int[producers];
+        for (int p = 0; p < producers; p++) {
+            lastPolled[p] = -1;
+        }
+        start.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        for (int count = 0; count < polled.length; ) {
+            Integer element = ringBuffer.poll();
+            if (element == null) {
+                assertThat("timeout after " + count + " elements", System.nanoTime() < deadline, is(true));
+                Thread.yield();
+                continue;
+            }
+            assertThat("duplicate " + element, polled[element], is(false));
+            polled[element] = true;
+            int producer = element / elementsPerProducer;
+            int index = element % elementsPerProducer;
+            assertThat(index, greaterThan(lastPolled[producer]));
+            lastPolled[producer] = index;
+            count++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(ringBuffer.poll(), nullValue());
+        assertThat(ringBuffer.size(), is(0));
+    }
+}
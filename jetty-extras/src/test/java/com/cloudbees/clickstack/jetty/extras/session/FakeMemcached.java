@@ -0,0 +1,219 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.session;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-process memcached speaking the subset of the text protocol used by spymemcached: {@code get}, {@code gets},
+ * {@code set}, {@code add}, {@code cas}, {@code incr}, {@code touch} and {@code delete}. Expirations are ignored.
+ */
+class FakeMemcached implements Closeable {
+
+    private final ServerSocket serverSocket;
+
+    // guarded by this
+    private final Map<String, Item> items = new HashMap<>();
+    private long nextCas = 1;
+
+    FakeMemcached() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        Thread connection = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }, "fake-memcached-connection");
+                        connection.setDaemon(true);
+                        connection.start();
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            }
+        }, "fake-memcached-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    String getAddress() {
+        return "127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    synchronized byte[] get(String key) {
+        Item item = items.get(key);
+        return item == null ? null : item.data;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String line;
+            while ((line = readLine(in)) != null) {
+                String[] tokens = line.trim().split(" +");
+                boolean noReply = "noreply".equals(tokens[tokens.length - 1]);
+                String response = execute(tokens, in);
+                if (!noReply && response != null) {
+                    out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            // connection closed by the client
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private String execute(String[] tokens, InputStream in) throws IOException {
+        String command = tokens[0];
+        switch (command) {
+            case "get":
+            case "gets":
+                StringBuilder response = new StringBuilder();
+                synchronized (this) {
+                    for (int i = 1; i < tokens.length; i++) {
+                        Item item = items.get(tokens[i]);
+                        if (item != null) {
+                            response.append("VALUE ").append(tokens[i]).append(' ').append(item.flags).append(' ').append(item.data.length);
+                            if (command.equals("gets")) {
+                                response.append(' ').append(item.cas);
+                            }
+                            response.append("\r\n").append(new String(item.data, StandardCharsets.ISO_8859_1)).append("\r\n");
+                        }
+                    }
+                }
+                return response.append("END\r\n").toString();
+            case "set":
+            case "add":
+            case "cas": {
+                String key = tokens[1];
+                int flags = Integer.parseInt(tokens[2]);
+                byte[] data = readData(in, Integer.parseInt(tokens[4]));
+                synchronized (this) {
+                    Item item = items.get(key);
+                    if (command.equals("add") && item != null) {
+                        return "NOT_STORED\r\n";
+                    }
+                    if (command.equals("cas")) {
+                        if (item == null) {
+                            return "NOT_FOUND\r\n";
+                        }
+                        if (item.cas != Long.parseLong(tokens[5])) {
+                            return "EXISTS\r\n";
+                        }
+                    }
+                    items.put(key, new Item(flags, data, nextCas++));
+                }
+                return "STORED\r\n";
+            }
+            case "incr":
+            case "decr": {
+                synchronized (this) {
+                    Item item = items.get(tokens[1]);
+                    if (item == null) {
+                        return "NOT_FOUND\r\n";
+                    }
+                    long value = Long.parseLong(new String(item.data, StandardCharsets.ISO_8859_1).trim());
+                    long delta = Long.parseLong(tokens[2]);
+                    value = command.equals("incr") ? value + delta : Math.max(0, value - delta);
+                    items.put(tokens[1], new Item(item.flags, String.valueOf(value).getBytes(StandardCharsets.ISO_8859_1), nextCas++));
+                    return value + "\r\n";
+                }
+            }
+            case "touch":
+                synchronized (this) {
+                    return items.containsKey(tokens[1]) ? "TOUCHED\r\n" : "NOT_FOUND\r\n";
+                }
+            case "delete":
+                synchronized (this) {
+                    return items.remove(tokens[1]) != null ? "DELETED\r\n" : "NOT_FOUND\r\n";
+                }
+            case "version":
+                return "VERSION 1.4.15\r\n";
+            default:
+                return "ERROR\r\n";
+        }
+    }
+
+    private static byte[] readData(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length + 2];
+        for (int offset = 0; offset < data.length; ) {
+            int read = in.read(data, offset, data.length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(data, 0, result, 0, length);
+        return result;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            line.write(b);
+        }
+        return null;
+    }
+
+    private static class Item {
+        final int flags;
+        final byte[] data;
+        final long cas;
+
+        Item(int flags, byte[] data, long cas) {
+            this.flags = flags;
+            this.data = data;
+            this.cas = cas;
+        }
+    }
+}
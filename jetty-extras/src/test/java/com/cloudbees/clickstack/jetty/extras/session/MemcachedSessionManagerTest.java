@@ -0,0 +1,170 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty.extras.session;
+
+import org.eclipse.jetty.server.session.AbstractSession;
+import org.eclipse.jetty.server.session.HashSessionIdManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Two nodes sharing the sessions through a {@link FakeMemcached}, without sticky sessions.
+ */
+public class MemcachedSessionManagerTest {
+
+    private FakeMemcached memcached;
+    private MemcachedSessionManager node1;
+    private MemcachedSessionManager node2;
+
+    @Before
+    public void before() throws Exception {
+        memcached = new FakeMemcached();
+        node1 = newNode();
+        node2 = newNode();
+    }
+
+    @After
+    public void after() throws Exception {
+        node1.stop();
+        node2.stop();
+        memcached.close();
+    }
+
+    private MemcachedSessionManager newNode() throws Exception {
+        MemcachedSessionManager node = new MemcachedSessionManager();
+        node.setServers(memcached.getAddress());
+        node.setSessionIdManager(new HashSessionIdManager());
+        // the tests flush the sessions explicitly
+        node.setWriteBehindDelay(TimeUnit.HOURS.toMillis(1));
+        node.setScavengePeriod((int) TimeUnit.HOURS.toSeconds(1));
+        node.start();
+        return node;
+    }
+
+    /**
+     * @return the id of a session created by {@code node} and written to memcached
+     */
+    private String createSession(MemcachedSessionManager node, String name, Object value) {
+        AbstractSession session = (AbstractSession) node.newHttpSession(null);
+        session.setAttribute(name, value);
+        node.complete(session);
+        node.flush();
+        return session.getClusterId();
+    }
+
+    /**
+     * Begin a request of the session on {@code node}.
+     */
+    private AbstractSession access(MemcachedSessionManager node, String clusterId) {
+        AbstractSession session = node.getSession(clusterId);
+        assertThat(session, notNullValue());
+        node.access(session, false);
+        return session;
+    }
+
+    @Test
+    public void session_written_by_a_node_is_read_by_the_other() throws Exception {
+        String clusterId = createSession(node1, "user", "alice");
+
+        AbstractSession session = access(node2, clusterId);
+        assertThat(session.getAttribute("user"), is((Object) "alice"));
+        assertThat(node2.getRemoteHitCount(), is(1L));
+    }
+
+    @Test
+    public void concurrent_modifications_of_different_attributes_are_merged() throws Exception {
+        String clusterId = createSession(node1, "user", "alice");
+        // both nodes hold the same version of the session
+        AbstractSession session1 = access(node1, clusterId);
+        AbstractSession session2 = access(node2, clusterId);
+
+        session1.setAttribute("cart", "book");
+        session2.setAttribute("locale", "fr");
+        session2.removeAttribute("user");
+        node1.complete(session1);
+        node2.complete(session2);
+        node1.flush();
+        node2.flush();
+
+        assertThat(node2.getConflictCount(), is(1L));
+        for (MemcachedSessionManager node : new MemcachedSessionManager[]{node1, node2}) {
+            AbstractSession session = access(node, clusterId);
+            assertThat(session.getAttribute("cart"), is((Object) "book"));
+            assertThat(session.getAttribute("locale"), is((Object) "fr"));
+            assertThat(session.getAttribute("user"), nullValue());
+            node.complete(session);
+        }
+    }
+
+    @Test
+    public void concurrent_modifications_of_an_attribute_converge_to_the_last_write() throws Exception {
+        String clusterId = createSession(node1, "counter", 0);
+        AbstractSession session1 = access(node1, clusterId);
+        AbstractSession session2 = access(node2, clusterId);
+
+        session1.setAttribute("counter", 1);
+        session2.setAttribute("counter", 2);
+        node1.complete(session1);
+        node2.complete(session2);
+        node1.flush();
+        node2.flush();
+
+        assertThat(access(node1, clusterId).getAttribute("counter"), is((Object) 2));
+        assertThat(access(node2, clusterId).getAttribute("counter"), is((Object) 2));
+    }
+
+    @Test
+    public void stale_copy_is_reloaded_after_a_write_of_the_other_node() throws Exception {
+        String clusterId = createSession(node1, "step", 1);
+        AbstractSession session2 = access(node2, clusterId);
+        node2.complete(session2);
+
+        for (int step = 2; step <= 5; step++) {
+            // alternate the nodes, each write must be seen by the other node
+            MemcachedSessionManager writer = step % 2 == 0 ? node1 : node2;
+            MemcachedSessionManager reader = step % 2 == 0 ? node2 : node1;
+            AbstractSession session = access(writer, clusterId);
+            assertThat(session.getAttribute("step"), is((Object) (step - 1)));
+            session.setAttribute("step", step);
+            writer.complete(session);
+            writer.flush();
+
+            AbstractSession read = access(reader, clusterId);
+            assertThat(read.getAttribute("step"), is((Object) step));
+            reader.complete(read);
+        }
+        assertThat(node1.getConflictCount() + node2.getConflictCount(), is(0L));
+    }
+
+    @Test
+    public void invalidation_is_seen_by_the_other_node() throws Exception {
+        String clusterId = createSession(node1, "user", "alice");
+        AbstractSession session2 = access(node2, clusterId);
+        node2.complete(session2);
+
+        AbstractSession session1 = access(node1, clusterId);
+        session1.invalidate();
+
+        assertThat(node2.getSession(clusterId), nullValue());
+        assertThat(memcached.get("jetty-session:" + clusterId), nullValue());
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Application class data sharing archive of the classes of Jetty, of its modules and of the webapp: the classes are
+ * loaded and verified once during a training start of the server at setup time instead of at each start.
+ * <p/>
+ * Requires Java 13+ (dynamic archive, {@code -XX:ArchiveClassesAtExit}), the only kind of archive that contains the
+ * classes loaded by the class loaders of {@code start.jar} and of the webapp.
+ * <p/>
+ * A fingerprint of the war, of the JDK, of the Jetty distribution and of the JVM options is stored next to the archive,
+ * the archive is rebuilt when the fingerprint changes. The archive is used with {@code -Xshare:auto}: the JVM ignores
+ * an archive that does not match the JDK or the class path instead of failing.
+ */
+public class ClassDataSharingArchive {
+
+    public static final int MIN_JAVA_VERSION = 13;
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Nonnull
+    private final Path archiveFile;
+    @Nonnull
+    private final Path fingerprintFile;
+    private final int javaMajorVersion;
+
+    public ClassDataSharingArchive(@Nonnull Path archiveFile, int javaMajorVersion) {
+        this.archiveFile = archiveFile;
+        this.fingerprintFile = archiveFile.resolveSibling(archiveFile.getFileName() + ".fingerprint");
+        this.javaMajorVersion = javaMajorVersion;
+    }
+
+    public boolean isSupported() {
+        return javaMajorVersion >= MIN_JAVA_VERSION;
+    }
+
+    /**
+     * @return the JVM options using the archive
+     */
+    @Nonnull
+    public String getJavaOpts() {
+        return "-XX:SharedArchiveFile=\"" + archiveFile + "\" -Xshare:auto";
+    }
+
+    /**
+     * @return fingerprint of the inputs of the archive
+     */
+    @Nonnull
+    public String getFingerprint(@Nonnull Path warFile, @Nonnull Path javaHome, @Nonnull Path jettyHome, @Nonnull String javaOpts) throws IOException {
+        Hasher hasher = Hashing.sha1().newHasher()
+                .putBytes(com.google.common.io.Files.hash(warFile.toFile(), Hashing.sha1()).asBytes())
+                .putString(javaHome.toRealPath().toString(), Charsets.UTF_8)
+                .putString(jettyHome.toRealPath().toString(), Charsets.UTF_8)
+                .putString(javaOpts, Charsets.UTF_8);
+        Path releaseFile = javaHome.resolve("release");
+        if (Files.exists(releaseFile)) {
+            hasher.putBytes(Files.readAllBytes(releaseFile));
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * @return {@code true} if the archive exists and has been built from inputs of the given fingerprint
+     */
+    public boolean isUpToDate(@Nonnull String fingerprint) throws IOException {
+        if (!Files.exists(archiveFile) || !Files.exists(fingerprintFile)) {
+            return false;
+        }
+        List<String> lines = Files.readAllLines(fingerprintFile, Charsets.UTF_8);
+        return !lines.isEmpty() && fingerprint.equals(lines.get(0).trim());
+    }
+
+    /**
+     * Start Jetty with the given JVM options, request the root context once the server accepts connections to load
+     * the classes of the request processing, stop Jetty and write the archive of the loaded classes.
+     *
+     * @param java             java command
+     * @param javaOpts         JVM options of the server without the options of the archive, as written in the
+     *                         {@code java-opts-*} files of the control directory
+     * @param startProperties  properties of {@code start.jar} overriding the ones of {@code start.ini} and
+     *                         {@code start.d}, e.g. to write the files of the training start in another directory
+     * @param logFile          output of the training start
+     * @param timeoutInSeconds maximum duration of the training start
+     * @return {@code true} if the archive has been written
+     */
+    public boolean build(@Nonnull Path java, @Nonnull String javaOpts, @Nonnull Path jettyHome, @Nonnull Path jettyBase,
+                         @Nonnull Map<String, String> startProperties, @Nonnull String fingerprint, @Nonnull Path logFile, int timeoutInSeconds) throws IOException, InterruptedException {
+        int port = getFreePort();
+        int stopPort = getFreePort();
+        String stopKey = UUID.randomUUID().toString();
+        Path temporaryArchiveFile = archiveFile.resolveSibling(archiveFile.getFileName() + ".tmp");
+        Files.deleteIfExists(temporaryArchiveFile);
+        Files.deleteIfExists(fingerprintFile);
+
+        // the training instance must not bind the port of the application that may still be running
+        StringBuilder command = new StringBuilder()
+                .append(java).append(' ')
+                .append(javaOpts.replaceAll("-Djetty\\.port=\\d+", "-Djetty.port=" + port))
+                .append(" -XX:ArchiveClassesAtExit=\"").append(temporaryArchiveFile).append('"')
+                .append(" -jar \"").append(jettyHome.resolve("start.jar")).append('"')
+                .append(" jetty.port=").append(port).append(" STOP.PORT=").append(stopPort).append(" STOP.KEY=").append(stopKey);
+        for (Map.Entry<String, String> startProperty : startProperties.entrySet()) {
+            command.append(" \"").append(startProperty.getKey()).append('=').append(startProperty.getValue()).append('"');
+        }
+        logger.debug("Class data sharing training start: {}", command);
+
+        Process process = new ProcessBuilder("bash", "-c", "exec " + command)
+                .directory(jettyBase.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(logFile.toFile())
+                .start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutInSeconds);
+        try {
+            if (!awaitPort(process, port, deadline)) {
+                logger.warn("Jetty did not accept connections within {}s, no class data sharing archive, see {}", timeoutInSeconds, logFile);
+                return false;
+            }
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/").openConnection();
+                connection.setReadTimeout((int) TimeUnit.SECONDS.toMillis(timeoutInSeconds));
+                logger.debug("Class data sharing training request: {}", connection.getResponseCode());
+                connection.disconnect();
+            } catch (IOException e) {
+                logger.debug("Exception requesting the root context", e);
+            }
+
+            // the archive is written when the JVM exits normally
+            try (Socket socket = new Socket("127.0.0.1", stopPort)) {
+                OutputStream out = socket.getOutputStream();
+                out.write((stopKey + "\r\nstop\r\n").getBytes(Charsets.US_ASCII));
+                out.flush();
+            }
+            long remainingInNanos = deadline - System.nanoTime();
+            while (remainingInNanos > 0 && isAlive(process)) {
+                Thread.sleep(100);
+                remainingInNanos = deadline - System.nanoTime();
+            }
+            if (isAlive(process)) {
+                logger.warn("Jetty did not stop within {}s, no class data sharing archive, see {}", timeoutInSeconds, logFile);
+                return false;
+            }
+        } finally {
+            process.destroy();
+        }
+
+        if (!Files.exists(temporaryArchiveFile)) {
+            logger.warn("No class data sharing archive written by the training start (exit code {}), see {}", process.exitValue(), logFile);
+            return false;
+        }
+        Files.move(temporaryArchiveFile, archiveFile, StandardCopyOption.REPLACE_EXISTING);
+        Files.write(fingerprintFile, Collections.singleton(fingerprint), Charsets.UTF_8);
+        logger.info("Class data sharing archive {} written ({} KB)", archiveFile, Files.size(archiveFile) / 1024);
+        return true;
+    }
+
+    private boolean awaitPort(@Nonnull Process process, int port, long deadlineInNanos) throws InterruptedException {
+        while (System.nanoTime() < deadlineInNanos) {
+            if (!isAlive(process)) {
+                return false;
+            }
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+                return true;
+            } catch (IOException e) {
+                Thread.sleep(200);
+            }
+        }
+        return false;
+    }
+
+    private static boolean isAlive(@Nonnull Process process) {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    private static int getFreePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    @Nonnull
+    public Path getArchiveFile() {
+        return archiveFile;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty;
+
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import com.google.common.base.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * CPU and memory available to the application: cgroup (v2 or v1) limits of the container, physical resources of the
+ * host otherwise.
+ * <p/>
+ * Can be overwritten with the {@code cpus} and {@code memory_mb} runtime parameters of the {@code jetty} section.
+ */
+public class ContainerResources {
+
+    protected static final Logger logger = LoggerFactory.getLogger(ContainerResources.class);
+
+    private final int cpus;
+
+    private final long memoryInBytes;
+
+    public ContainerResources(int cpus, long memoryInBytes) {
+        this.cpus = cpus;
+        this.memoryInBytes = memoryInBytes;
+    }
+
+    @Nonnull
+    public static ContainerResources detect(@Nonnull Metadata metadata) {
+        return detect(metadata, Paths.get("/sys/fs/cgroup"));
+    }
+
+    @Nonnull
+    static ContainerResources detect(@Nonnull Metadata metadata, @Nonnull Path cgroupDir) {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        Double cgroupCpus = readCgroupCpus(cgroupDir);
+        if (cgroupCpus != null) {
+            cpus = Math.max(1, Math.min(cpus, (int) Math.ceil(cgroupCpus)));
+        }
+
+        long memoryInBytes = getPhysicalMemoryInBytes();
+        Long cgroupMemoryInBytes = readCgroupMemoryInBytes(cgroupDir);
+        if (cgroupMemoryInBytes != null && (memoryInBytes <= 0 || cgroupMemoryInBytes < memoryInBytes)) {
+            memoryInBytes = cgroupMemoryInBytes;
+        }
+
+        cpus = Integer.parseInt(metadata.getRuntimeParameter("jetty", "cpus", String.valueOf(cpus)));
+        long memoryInMegaBytes = Long.parseLong(metadata.getRuntimeParameter("jetty", "memory_mb", String.valueOf(memoryInBytes / 1024 / 1024)));
+
+        ContainerResources resources = new ContainerResources(cpus, memoryInMegaBytes * 1024 * 1024);
+        logger.info("Container resources: {}", resources);
+        return resources;
+    }
+
+    @Nullable
+    static Double readCgroupCpus(@Nonnull Path cgroupDir) {
+        // cgroup v2: "$MAX $PERIOD" or "max $PERIOD"
+        String cpuMax = readFirstLine(cgroupDir.resolve("cpu.max"));
+        if (cpuMax != null) {
+            String[] quotaAndPeriod = cpuMax.split("\\s+");
+            if (quotaAndPeriod.length == 2 && !"max".equals(quotaAndPeriod[0])) {
+                return Double.parseDouble(quotaAndPeriod[0]) / Double.parseDouble(quotaAndPeriod[1]);
+            }
+            return null;
+        }
+        // cgroup v1: quota is -1 when unlimited
+        String quota = readFirstLine(cgroupDir.resolve("cpu/cpu.cfs_quota_us"));
+        String period = readFirstLine(cgroupDir.resolve("cpu/cpu.cfs_period_us"));
+        if (quota != null && period != null && Long.parseLong(quota) > 0) {
+            return Double.parseDouble(quota) / Double.parseDouble(period);
+        }
+        return null;
+    }
+
+    @Nullable
+    static Long readCgroupMemoryInBytes(@Nonnull Path cgroupDir) {
+        String memoryMax = readFirstLine(cgroupDir.resolve("memory.max"));
+        if (memoryMax == null) {
+            // cgroup v1: unlimited is a value close to Long.MAX_VALUE, discarded by the comparison with physical memory
+            memoryMax = readFirstLine(cgroupDir.resolve("memory/memory.limit_in_bytes"));
+        }
+        if (memoryMax == null || "max".equals(memoryMax)) {
+            return null;
+        }
+        return Long.parseLong(memoryMax);
+    }
+
+    static long getPhysicalMemoryInBytes() {
+        OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+        if (operatingSystem instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) operatingSystem).getTotalPhysicalMemorySize();
+        }
+        return -1;
+    }
+
+    @Nullable
+    private static String readFirstLine(@Nonnull Path file) {
+        if (!Files.isReadable(file)) {
+            return null;
+        }
+        try {
+            List<String> lines = Files.readAllLines(file, Charsets.UTF_8);
+            return lines.isEmpty() ? null : lines.get(0).trim();
+        } catch (IOException e) {
+            logger.debug("Exception reading {}", file, e);
+            return null;
+        }
+    }
+
+    public int getCpus() {
+        return cpus;
+    }
+
+    public long getMemoryInBytes() {
+        return memoryInBytes;
+    }
+
+    public long getMemoryInMegaBytes() {
+        return memoryInBytes / 1024 / 1024;
+    }
+
+    @Override
+    public String toString() {
+        return "ContainerResources{" +
+                "cpus=" + cpus +
+                ", memoryInMegaBytes=" + getMemoryInMegaBytes() +
+                '}';
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty;
+
+import com.google.common.base.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Version of the JVM of a Java home, read from its {@code release} file.
+ */
+public class JavaVersion {
+
+    public static final int UNKNOWN = -1;
+
+    private static final Logger logger = LoggerFactory.getLogger(JavaVersion.class);
+
+    private static final Pattern JAVA_VERSION = Pattern.compile("^JAVA_VERSION=\"(1\\.)?(\\d+).*\"$");
+
+    private JavaVersion() {
+    }
+
+    /**
+     * @return the major version ({@code 7} for {@code 1.7.0_45}, {@code 21} for {@code 21.0.1}) or {@link #UNKNOWN}
+     */
+    public static int getMajorVersion(@Nonnull Path javaHome) {
+        Path releaseFile = javaHome.resolve("release");
+        if (Files.exists(releaseFile)) {
+            try {
+                for (String line : Files.readAllLines(releaseFile, Charsets.UTF_8)) {
+                    Matcher matcher = JAVA_VERSION.matcher(line.trim());
+                    if (matcher.matches()) {
+                        return Integer.parseInt(matcher.group(2));
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Exception reading {}", releaseFile, e);
+            }
+        }
+        logger.warn("Unknown java version for {}", javaHome);
+        return UNKNOWN;
+    }
+}
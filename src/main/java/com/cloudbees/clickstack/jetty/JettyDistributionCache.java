@@ -0,0 +1,293 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty;
+
+import com.cloudbees.clickstack.util.Files2;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node wide cache of the unpacked Jetty distributions, keyed by the SHA-256 of the distribution zip.
+ * <p/>
+ * Entries are unpacked in a temporary directory and published with an atomic rename under an exclusive file lock,
+ * they are read-only once published. Each app gets its Jetty home either as a tree of hard links to the entry
+ * (survives the eviction of the entry) or as a symbolic link to the entry.
+ * <p/>
+ * The last access time of an entry is the modification time of its lock file, the least recently used entries
+ * above {@link #maxEntries} are evicted. Entries are never evicted in {@link LinkMode#SYMLINK} mode: the Jetty home of
+ * the running apps are links to the entries.
+ */
+public class JettyDistributionCache {
+
+    public enum LinkMode {
+        HARDLINK, SYMLINK
+    }
+
+    private static final long STALE_TEMP_DIR_AGE_IN_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Nonnull
+    private final Path cacheDir;
+
+    private final int maxEntries;
+
+    @Nonnull
+    private final LinkMode linkMode;
+
+    /**
+     * @param cacheDir created with the {@code rwx------} permissions if needed, it must be owned by the current user
+     *                 and writable only by this user: the entries of the cache are trusted by name
+     */
+    public JettyDistributionCache(@Nonnull Path cacheDir, int maxEntries, @Nonnull LinkMode linkMode) throws IOException {
+        Preconditions.checkArgument(maxEntries > 0, "Invalid maxEntries %s", maxEntries);
+        this.cacheDir = createPrivateDirectory(cacheDir);
+        this.maxEntries = maxEntries;
+        this.linkMode = Preconditions.checkNotNull(linkMode, "linkMode");
+    }
+
+    @Nonnull
+    private static Path createPrivateDirectory(@Nonnull Path dir) throws IOException {
+        if (!Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+            Files.createDirectories(dir.toAbsolutePath().getParent());
+            try {
+                Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            } catch (FileAlreadyExistsException e) {
+                // created by a concurrent setup, checked below
+            }
+        }
+        PosixFileAttributes attributes = Files.readAttributes(dir, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        Preconditions.checkState(attributes.isDirectory(), "Jetty distribution cache %s is not a directory", dir);
+
+        UserPrincipal user = dir.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+        Preconditions.checkState(attributes.owner().equals(user),
+                "Jetty distribution cache %s is owned by %s instead of %s", dir, attributes.owner(), user);
+        Set<PosixFilePermission> permissions = attributes.permissions();
+        Preconditions.checkState(!permissions.contains(PosixFilePermission.GROUP_WRITE) && !permissions.contains(PosixFilePermission.OTHERS_WRITE),
+                "Jetty distribution cache %s is writable by other users (%s)", dir, PosixFilePermissions.toString(permissions));
+        return dir;
+    }
+
+    /**
+     * Install the given Jetty distribution in {@code targetDir}, unpacking it in the cache if needed.
+     *
+     * @return the installed jetty home ({@code targetDir/jetty-distribution-...})
+     */
+    @Nonnull
+    public Path install(@Nonnull Path distributionZip, @Nonnull Path targetDir) throws IOException {
+        String key = com.google.common.io.Files.hash(distributionZip.toFile(), Hashing.sha256()).toString();
+        Path entry = cacheDir.resolve(key);
+
+        Path jettyHome;
+        try (FileChannel lockChannel = FileChannel.open(cacheDir.resolve(key + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // held until the entry is linked, a concurrent setup cannot evict it meanwhile
+            FileLock lock = lockChannel.lock();
+            try {
+                if (Files.isDirectory(entry)) {
+                    logger.info("Jetty distribution cache hit {}", entry);
+                } else {
+                    logger.info("Jetty distribution cache miss, unpack {} in {}", distributionZip, entry);
+                    Path tmpEntry = Files.createTempDirectory(cacheDir, key + ".tmp-");
+                    Files2.unzip(distributionZip, tmpEntry);
+                    Files2.chmodReadOnly(tmpEntry);
+                    Files.move(tmpEntry, entry, StandardCopyOption.ATOMIC_MOVE);
+                }
+                Files.setLastModifiedTime(cacheDir.resolve(key + ".lock"), FileTime.fromMillis(System.currentTimeMillis()));
+                jettyHome = link(entry, targetDir);
+            } finally {
+                lock.release();
+            }
+        }
+
+        evict(key);
+        return jettyHome;
+    }
+
+    /**
+     * @return the jetty home of the given cache entry linked in {@code targetDir}
+     */
+    @Nonnull
+    private Path link(@Nonnull Path entry, @Nonnull Path targetDir) throws IOException {
+        Path cachedJettyHome = Files2.findUniqueDirectoryBeginningWith(entry, "jetty-distribution");
+        Path jettyHome = targetDir.resolve(cachedJettyHome.getFileName().toString());
+        try {
+            switch (linkMode) {
+                case SYMLINK:
+                    Files.createSymbolicLink(jettyHome, cachedJettyHome);
+                    break;
+                case HARDLINK:
+                    linkDirectory(cachedJettyHome, jettyHome);
+                    break;
+                default:
+                    throw new IllegalStateException("Unsupported linkMode " + linkMode);
+            }
+        } catch (IOException | RuntimeException e) {
+            // don't leave a partial Jetty home behind
+            if (Files.exists(jettyHome, LinkOption.NOFOLLOW_LINKS)) {
+                deleteDirectory(jettyHome);
+            }
+            throw e;
+        }
+        return jettyHome;
+    }
+
+    private void linkDirectory(@Nonnull final Path source, @Nonnull final Path target) throws IOException {
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path link = target.resolve(source.relativize(file).toString());
+                try {
+                    Files.createLink(link, file);
+                } catch (FileSystemException e) {
+                    if (!isCrossDeviceLink(e)) {
+                        throw e;
+                    }
+                    // EXDEV, the cache and the app are not on the same file system
+                    logger.debug("Copy {}, cannot link it across file systems", file);
+                    Files.copy(file, link, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * @return {@code true} if the given exception is an {@code EXDEV} error ("Invalid cross-device link"), the NIO
+     * file system provider does not map it to a dedicated exception
+     */
+    private static boolean isCrossDeviceLink(@Nonnull FileSystemException e) {
+        return e.getReason() != null && e.getReason().toLowerCase(Locale.ENGLISH).contains("cross-device");
+    }
+
+    /**
+     * Evict the least recently used entries above {@link #maxEntries} and the leftovers of interrupted unpacks.
+     */
+    protected void evict(@Nonnull String currentKey) {
+        if (linkMode != LinkMode.SYMLINK) {
+            evictLeastRecentlyUsedEntries(currentKey);
+        }
+        deleteStaleTempEntries();
+    }
+
+    private void evictLeastRecentlyUsedEntries(@Nonnull String currentKey) {
+        final Map<String, FileTime> lastAccessTimes = new HashMap<>();
+        try (DirectoryStream<Path> lockFiles = Files.newDirectoryStream(cacheDir, "*.lock")) {
+            for (Path lockFile : lockFiles) {
+                String key = lockFile.getFileName().toString();
+                key = key.substring(0, key.length() - ".lock".length());
+                if (!key.equals(currentKey) && Files.isDirectory(cacheDir.resolve(key))) {
+                    lastAccessTimes.put(key, Files.getLastModifiedTime(lockFile));
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Exception listing the entries of the Jetty distribution cache {}", cacheDir, e);
+            return;
+        }
+
+        List<String> keys = new ArrayList<>(lastAccessTimes.keySet());
+        Collections.sort(keys, new Comparator<String>() {
+            @Override
+            public int compare(String key1, String key2) {
+                return lastAccessTimes.get(key2).compareTo(lastAccessTimes.get(key1));
+            }
+        });
+        // the current entry is one of the maxEntries
+        for (String key : keys.subList(Math.min(keys.size(), maxEntries - 1), keys.size())) {
+            Path lockFile = cacheDir.resolve(key + ".lock");
+            try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.WRITE);
+                 FileLock lock = lockChannel.tryLock()) {
+                if (lock == null) {
+                    logger.debug("Skip eviction of Jetty distribution {}, entry is locked", key);
+                    continue;
+                }
+                logger.info("Evict Jetty distribution {} from cache", key);
+                // a partially deleted entry would be a cache hit, deleted as a leftover if the deletion fails
+                Path evictedEntry = cacheDir.resolve(key + ".tmp-evicted-" + System.nanoTime());
+                Files.move(cacheDir.resolve(key), evictedEntry, StandardCopyOption.ATOMIC_MOVE);
+                deleteDirectory(evictedEntry);
+            } catch (IOException e) {
+                logger.warn("Exception evicting Jetty distribution {} from cache", key, e);
+            }
+        }
+    }
+
+    private void deleteStaleTempEntries() {
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> tmpEntries = Files.newDirectoryStream(cacheDir, "*.tmp-*")) {
+            for (Path tmpEntry : tmpEntries) {
+                if (now - Files.getLastModifiedTime(tmpEntry).toMillis() > STALE_TEMP_DIR_AGE_IN_MILLIS) {
+                    logger.info("Delete leftover of interrupted unpack {}", tmpEntry);
+                    deleteDirectory(tmpEntry);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Exception deleting leftovers of interrupted unpacks in {}", cacheDir, e);
+        }
+    }
+
+    /**
+     * Delete a directory, even read-only, or a symbolic link.
+     */
+    static void deleteDirectory(@Nonnull Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                // entries are read-only
+                Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(dir);
+                permissions.add(PosixFilePermission.OWNER_WRITE);
+                Files.setPosixFilePermissions(dir, permissions);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty;
+
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * JVM options sized according to the {@link ContainerResources}: heap, garbage collector, direct memory, code cache
+ * and metaspace (perm gen before Java 8).
+ * <p/>
+ * The garbage collector comes from the {@code gc_profile} runtime parameter of the {@code java} section:
+ * {@link #GC_PROFILE_THROUGHPUT} (default, parallel collector) or {@link #GC_PROFILE_LOW_PAUSE} (G1, CMS before
+ * Java 8). The options of the {@code opts} runtime parameter are applied on top of the generated options: a user
+ * defined heap size or garbage collector replaces the generated one.
+ * <p/>
+ * With the {@code ergonomics} runtime parameter set to {@code false}, only the {@code opts} are given to the JVM and
+ * the collector is the one of the {@code opts}, if any: the default collector of the JVM depends on the machine and
+ * its memory pools are not known.
+ */
+public class JvmErgonomics {
+
+    public static final String GC_PROFILE_THROUGHPUT = "throughput";
+    public static final String GC_PROFILE_LOW_PAUSE = "low_pause";
+
+    /**
+     * Native memory of a thread stack
+     */
+    static final int THREAD_STACK_IN_MEGA_BYTES = 1;
+
+    private static final Pattern GC_OPTION = Pattern.compile("^-XX:[+-]Use\\w*GC$");
+    private static final Pattern HEAP_OPTION = Pattern.compile("^(-Xm[sx].*|-XX:(Max|Min|Initial)?RAM(Percentage|Fraction)?=.*|-XX:(Max|Initial)HeapSize=.*)$");
+    private static final Pattern XX_OPTION = Pattern.compile("^(-XX:[+-]?\\w+).*$");
+    private static final Pattern CODE_CACHE_OPTION = Pattern.compile("^-XX:ReservedCodeCacheSize=(\\d+)([kKmMgG]?)$");
+
+    /**
+     * Default {@code ReservedCodeCacheSize} of the JVM with tiered compilation, and minimum size for which HotSpot
+     * segments the code cache (Java 9+)
+     */
+    static final long SEGMENTED_CODE_CACHE_MIN_IN_MEGA_BYTES = 240;
+
+    public enum Collector {
+        PARALLEL("-XX:+UseParallelGC", Arrays.asList("PS Scavenge", "PS MarkSweep"),
+                Arrays.asList("PS Eden Space", "PS Survivor Space", "PS Old Gen"), "PS Perm Gen"),
+        CMS("-XX:+UseConcMarkSweepGC", Arrays.asList("ParNew", "ConcurrentMarkSweep"),
+                Arrays.asList("Par Eden Space", "Par Survivor Space", "CMS Old Gen"), "CMS Perm Gen"),
+        G1("-XX:+UseG1GC", Arrays.asList("G1 Young Generation", "G1 Old Generation"),
+                Arrays.asList("G1 Eden Space", "G1 Survivor Space", "G1 Old Gen"), "G1 Perm Gen"),
+        SERIAL("-XX:+UseSerialGC", Arrays.asList("Copy", "MarkSweepCompact"),
+                Arrays.asList("Eden Space", "Survivor Space", "Tenured Gen"), "Perm Gen"),
+        /**
+         * Collector chosen by the user that is not known by the clickstack (ZGC, Shenandoah...)
+         */
+        OTHER(null, Collections.<String>emptyList(), Collections.<String>emptyList(), null);
+
+        @Nullable
+        final String option;
+        @Nonnull
+        final List<String> garbageCollectorNames;
+        @Nonnull
+        final List<String> heapMemoryPoolNames;
+        @Nullable
+        final String permGenMemoryPoolName;
+
+        Collector(@Nullable String option, @Nonnull List<String> garbageCollectorNames, @Nonnull List<String> heapMemoryPoolNames, @Nullable String permGenMemoryPoolName) {
+            this.option = option;
+            this.garbageCollectorNames = garbageCollectorNames;
+            this.heapMemoryPoolNames = heapMemoryPoolNames;
+            this.permGenMemoryPoolName = permGenMemoryPoolName;
+        }
+
+        @Nonnull
+        static Collector fromOption(@Nonnull String option) {
+            switch (option) {
+                case "-XX:+UseParallelGC":
+                case "-XX:+UseParallelOldGC":
+                    return PARALLEL;
+                case "-XX:+UseConcMarkSweepGC":
+                    return CMS;
+                case "-XX:+UseG1GC":
+                    return G1;
+                case "-XX:+UseSerialGC":
+                    return SERIAL;
+                default:
+                    return OTHER;
+            }
+        }
+    }
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    final int javaMajorVersion;
+    /**
+     * {@code false} if the generated options are disabled by the {@code ergonomics} runtime parameter
+     */
+    final boolean enabled;
+    @Nonnull
+    final String gcProfile;
+    @Nonnull
+    final Collector collector;
+    /**
+     * {@code 0} if unknown
+     */
+    final long heapInMegaBytes;
+    final long maxDirectMemoryInMegaBytes;
+    final long codeCacheInMegaBytes;
+    final long metaspaceInMegaBytes;
+    /**
+     * Code cache split in the {@code non-nmethods}, {@code profiled nmethods} and {@code non-profiled nmethods} heaps
+     */
+    final boolean segmentedCodeCache;
+    @Nonnull
+    final List<String> generatedOptions = new ArrayList<>();
+    @Nonnull
+    final String userOptions;
+
+    public JvmErgonomics(@Nonnull ContainerResources resources, @Nonnull ServerSizing serverSizing, @Nonnull Metadata metadata, int javaMajorVersion) {
+        this.javaMajorVersion = javaMajorVersion;
+        this.enabled = Boolean.parseBoolean(metadata.getRuntimeParameter("java", "ergonomics", "true"));
+        this.userOptions = metadata.getRuntimeParameter("java", "opts", "").trim();
+        long memoryInMegaBytes = resources.getMemoryInBytes() > 0 ? resources.getMemoryInMegaBytes() : 0;
+
+        this.gcProfile = metadata.getRuntimeParameter("java", "gc_profile", GC_PROFILE_THROUGHPUT);
+        Collector collector;
+        if (GC_PROFILE_LOW_PAUSE.equals(gcProfile)) {
+            // CMS is removed in Java 14, G1 is not mature before Java 8
+            collector = javaMajorVersion == JavaVersion.UNKNOWN || javaMajorVersion >= 8 ? Collector.G1 : Collector.CMS;
+        } else if (GC_PROFILE_THROUGHPUT.equals(gcProfile)) {
+            collector = Collector.PARALLEL;
+        } else {
+            throw new IllegalArgumentException("Invalid java.gc_profile '" + gcProfile + "', expected '" + GC_PROFILE_THROUGHPUT + "' or '" + GC_PROFILE_LOW_PAUSE + "'");
+        }
+
+        // native memory: metaspace, code cache, direct buffers of the connectors and thread stacks
+        this.metaspaceInMegaBytes = getParameter(metadata, "metaspace_mb", clamp(memoryInMegaBytes / 8, 96, 512));
+        this.codeCacheInMegaBytes = getParameter(metadata, "code_cache_mb", clamp(memoryInMegaBytes / 16, 48, 240));
+        this.maxDirectMemoryInMegaBytes = getParameter(metadata, "max_direct_memory_mb", clamp(memoryInMegaBytes / 10, 32, 1024));
+        long nativeMemoryInMegaBytes = metaspaceInMegaBytes + codeCacheInMegaBytes + maxDirectMemoryInMegaBytes
+                + serverSizing.threadsMax * THREAD_STACK_IN_MEGA_BYTES;
+
+        double heapRatio = Double.parseDouble(metadata.getRuntimeParameter("java", "heap_ratio", memoryInMegaBytes < 1024 ? "0.6" : "0.7"));
+        if (memoryInMegaBytes > 0) {
+            this.heapInMegaBytes = Math.max(64, Math.min((long) (memoryInMegaBytes * heapRatio), memoryInMegaBytes - nativeMemoryInMegaBytes));
+        } else {
+            this.heapInMegaBytes = 0;
+        }
+
+        // the user options override the generated ones
+        boolean userHeap = false;
+        Collector userCollector = null;
+        Long userCodeCacheInMegaBytes = null;
+        List<String> userXXOptions = new ArrayList<>();
+        for (String option : userOptions.split("\\s+")) {
+            Matcher codeCacheMatcher = CODE_CACHE_OPTION.matcher(option);
+            if (GC_OPTION.matcher(option).matches() && option.startsWith("-XX:+")) {
+                userCollector = Collector.fromOption(option);
+            } else if (HEAP_OPTION.matcher(option).matches()) {
+                userHeap = true;
+            } else if (codeCacheMatcher.matches()) {
+                userCodeCacheInMegaBytes = toMegaBytes(Long.parseLong(codeCacheMatcher.group(1)), codeCacheMatcher.group(2));
+            }
+            Matcher matcher = XX_OPTION.matcher(option);
+            if (matcher.matches()) {
+                userXXOptions.add(matcher.group(1).replaceFirst("^-XX:[+-]", "-XX:"));
+            }
+        }
+
+        if (heapInMegaBytes > 0 && !userHeap) {
+            // fixed size heap, no resizing of the generations
+            generatedOptions.add("-Xms" + heapInMegaBytes + "m");
+            generatedOptions.add("-Xmx" + heapInMegaBytes + "m");
+        }
+        if (userCollector == null) {
+            generatedOptions.add(collector.option);
+            // GC threads sized on the cgroup cpus rather than the host cpus
+            generatedOptions.add("-XX:ParallelGCThreads=" + resources.getCpus());
+            if (collector == Collector.G1) {
+                generatedOptions.add("-XX:MaxGCPauseMillis=200");
+                generatedOptions.add("-XX:ConcGCThreads=" + Math.max(1, resources.getCpus() / 4));
+            } else if (collector == Collector.CMS) {
+                generatedOptions.add("-XX:+UseCMSInitiatingOccupancyOnly");
+                generatedOptions.add("-XX:CMSInitiatingOccupancyFraction=75");
+                generatedOptions.add("-XX:ConcGCThreads=" + Math.max(1, resources.getCpus() / 4));
+            }
+        } else {
+            collector = userCollector;
+        }
+        if (!enabled) {
+            collector = userCollector == null ? Collector.OTHER : userCollector;
+        }
+        this.collector = collector;
+
+        // HotSpot segments the code cache from 240m unless the tiered compilation or the segmentation is disabled
+        long effectiveCodeCacheInMegaBytes;
+        if (userCodeCacheInMegaBytes != null) {
+            effectiveCodeCacheInMegaBytes = userCodeCacheInMegaBytes;
+        } else {
+            effectiveCodeCacheInMegaBytes = enabled ? codeCacheInMegaBytes : SEGMENTED_CODE_CACHE_MIN_IN_MEGA_BYTES;
+        }
+        List<String> userOptionList = Arrays.asList(userOptions.split("\\s+"));
+        if (javaMajorVersion < 9 || userOptionList.contains("-XX:-SegmentedCodeCache")) {
+            this.segmentedCodeCache = false;
+        } else if (userOptionList.contains("-XX:+SegmentedCodeCache")) {
+            this.segmentedCodeCache = true;
+        } else {
+            this.segmentedCodeCache = effectiveCodeCacheInMegaBytes >= SEGMENTED_CODE_CACHE_MIN_IN_MEGA_BYTES
+                    && !userOptionList.contains("-XX:-TieredCompilation");
+        }
+
+        generatedOptions.add("-XX:MaxDirectMemorySize=" + maxDirectMemoryInMegaBytes + "m");
+        generatedOptions.add("-XX:ReservedCodeCacheSize=" + codeCacheInMegaBytes + "m");
+        if (javaMajorVersion >= 8) {
+            generatedOptions.add("-XX:MaxMetaspaceSize=" + metaspaceInMegaBytes + "m");
+        } else if (javaMajorVersion != JavaVersion.UNKNOWN) {
+            generatedOptions.add("-XX:MaxPermSize=" + metaspaceInMegaBytes + "m");
+        }
+
+        // remove the generated -XX options redefined by the user
+        for (int i = generatedOptions.size() - 1; i >= 0; i--) {
+            Matcher matcher = XX_OPTION.matcher(generatedOptions.get(i));
+            if (matcher.matches() && userXXOptions.contains(matcher.group(1).replaceFirst("^-XX:[+-]", "-XX:"))) {
+                generatedOptions.remove(i);
+            }
+        }
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * @param unit {@code g}, {@code m}, {@code k} or empty for bytes, like the JVM size options
+     */
+    private static long toMegaBytes(long value, @Nonnull String unit) {
+        switch (unit.toLowerCase()) {
+            case "g":
+                return value * 1024;
+            case "m":
+                return value;
+            case "k":
+                return value / 1024;
+            default:
+                return value / 1024 / 1024;
+        }
+    }
+
+    private static long getParameter(@Nonnull Metadata metadata, @Nonnull String name, long defaultValue) {
+        return Long.parseLong(metadata.getRuntimeParameter("java", name, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * @return the generated options followed by the user defined options, only the user defined options if the
+     * ergonomics are disabled
+     */
+    @Nonnull
+    public String getJavaOpts() {
+        logger.info("JVM ergonomics: {}", this);
+        if (!enabled) {
+            return userOptions;
+        }
+
+        StringBuilder javaOpts = new StringBuilder();
+        for (String option : generatedOptions) {
+            javaOpts.append(option).append(' ');
+        }
+        return javaOpts.append(userOptions).toString().trim();
+    }
+
+    @Nonnull
+    public Collector getCollector() {
+        return collector;
+    }
+
+    /**
+     * @return names of the {@code java.lang:type=GarbageCollector} MBeans of the collector
+     */
+    @Nonnull
+    public List<String> getGarbageCollectorNames() {
+        return collector.garbageCollectorNames;
+    }
+
+    /**
+     * @return names of the {@code java.lang:type=MemoryPool} MBeans of the heap, of the metaspace (or perm gen) and
+     * of the code cache
+     */
+    @Nonnull
+    public List<String> getMemoryPoolNames() {
+        List<String> names = new ArrayList<>(collector.heapMemoryPoolNames);
+        if (javaMajorVersion >= 8) {
+            names.add("Metaspace");
+        } else if (javaMajorVersion != JavaVersion.UNKNOWN && collector.permGenMemoryPoolName != null) {
+            names.add(collector.permGenMemoryPoolName);
+        }
+        if (segmentedCodeCache) {
+            names.add("CodeHeap 'non-nmethods'");
+            names.add("CodeHeap 'profiled nmethods'");
+            names.add("CodeHeap 'non-profiled nmethods'");
+        } else if (javaMajorVersion >= 9) {
+            names.add("CodeCache");
+        } else if (javaMajorVersion != JavaVersion.UNKNOWN) {
+            names.add("Code Cache");
+        }
+        return names;
+    }
+
+    @Override
+    public String toString() {
+        return "JvmErgonomics{" +
+                "javaMajorVersion=" + javaMajorVersion +
+                ", enabled=" + enabled +
+                ", gcProfile=" + gcProfile +
+                ", collector=" + collector +
+                ", heapInMegaBytes=" + heapInMegaBytes +
+                ", maxDirectMemoryInMegaBytes=" + maxDirectMemoryInMegaBytes +
+                ", codeCacheInMegaBytes=" + codeCacheInMegaBytes +
+                ", metaspaceInMegaBytes=" + metaspaceInMegaBytes +
+                ", segmentedCodeCache=" + segmentedCodeCache +
+                ", generatedOptions=" + generatedOptions +
+                ", userOptions='" + userOptions + '\'' +
+                '}';
+    }
+}
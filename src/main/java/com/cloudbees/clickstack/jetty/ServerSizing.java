@@ -0,0 +1,109 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty;
+
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Size the Jetty thread pool and the HTTP connector according to the {@link ContainerResources}.
+ * <p/>
+ * Each value can be overwritten with the runtime parameter of the {@code jetty} section of the same name
+ * ({@code threads_min}, {@code threads_max}, ...).
+ */
+public class ServerSizing {
+
+    /**
+     * Memory budget of a request thread: stack and request processing
+     */
+    static final int MEMORY_PER_THREAD_IN_MEGA_BYTES = 4;
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    final int threadsMin;
+    final int threadsMax;
+    final int threadsTimeout;
+    final int acceptors;
+    final int selectors;
+    final int acceptQueueSize;
+    final int idleTimeout;
+
+    public ServerSizing(@Nonnull ContainerResources resources, @Nonnull Metadata metadata) {
+        int cpus = resources.getCpus();
+        long memoryInMegaBytes = resources.getMemoryInMegaBytes();
+
+        // blocking request threads: 50 per cpu, bounded by the memory of the container
+        int threadsMax = clamp(cpus * 50, 20, 500);
+        if (memoryInMegaBytes > 0) {
+            threadsMax = (int) Math.max(20, Math.min(threadsMax, memoryInMegaBytes / MEMORY_PER_THREAD_IN_MEGA_BYTES));
+        }
+        this.threadsMax = getParameter(metadata, "threads_max", threadsMax);
+        this.threadsMin = getParameter(metadata, "threads_min", clamp(cpus * 4, 4, this.threadsMax));
+        this.threadsTimeout = getParameter(metadata, "threads_timeout", 60000);
+
+        // Jetty computes its defaults from Runtime.availableProcessors() which ignores the cgroup limits
+        this.acceptors = getParameter(metadata, "acceptors", clamp(cpus / 8, 1, 4));
+        this.selectors = getParameter(metadata, "selectors", clamp(cpus / 2, 1, 32));
+        this.acceptQueueSize = getParameter(metadata, "accept_queue_size", clamp(this.threadsMax * 2, 128, 1024));
+        this.idleTimeout = getParameter(metadata, "idle_timeout", memoryInMegaBytes > 0 && memoryInMegaBytes < 512 ? 15000 : 30000);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static int getParameter(@Nonnull Metadata metadata, @Nonnull String name, int defaultValue) {
+        return Integer.parseInt(metadata.getRuntimeParameter("jetty", name, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * Write the sizing in {@code start.ini} and {@code start.d/http.ini}.
+     */
+    public void writeTo(@Nonnull Path jettyBase) throws IOException {
+        logger.info("Server sizing: {}", this);
+
+        StartIni.load(jettyBase.resolve("start.ini"))
+                .setProperty("threads.min", String.valueOf(threadsMin))
+                .setProperty("threads.max", String.valueOf(threadsMax))
+                .setProperty("threads.timeout", String.valueOf(threadsTimeout))
+                .save();
+
+        StartIni.load(jettyBase.resolve("start.d/http.ini"))
+                .setProperty("http.timeout", String.valueOf(idleTimeout))
+                .setProperty("http.acceptors", String.valueOf(acceptors))
+                .setProperty("http.selectors", String.valueOf(selectors))
+                .setProperty("http.acceptQueueSize", String.valueOf(acceptQueueSize))
+                .save();
+    }
+
+    @Override
+    public String toString() {
+        return "ServerSizing{" +
+                "threadsMin=" + threadsMin +
+                ", threadsMax=" + threadsMax +
+                ", threadsTimeout=" + threadsTimeout +
+                ", acceptors=" + acceptors +
+                ", selectors=" + selectors +
+                ", acceptQueueSize=" + acceptQueueSize +
+                ", idleTimeout=" + idleTimeout +
+                '}';
+    }
+}
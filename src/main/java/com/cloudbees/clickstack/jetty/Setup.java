@@ -22,7 +22,6 @@ import com.cloudbees.clickstack.domain.metadata.Metadata;
 import com.cloudbees.clickstack.domain.metadata.SessionStore;
 import com.cloudbees.clickstack.plugin.java.JavaPlugin;
 import com.cloudbees.clickstack.plugin.java.JavaPluginResult;
-import com.cloudbees.clickstack.util.ApplicationUtils;
 import com.cloudbees.clickstack.util.CommandLineUtils;
 import com.cloudbees.clickstack.util.Files2;
 import com.cloudbees.clickstack.util.Manifests;
@@ -30,6 +29,8 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,14 +39,38 @@ import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.InetAddress;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Setup {
 
+    /**
+     * JVM options of the jmxtrans agent in the control directory
+     */
+    static final String JMXTRANS_AGENT_OPTS_FILE = "java-opts-60-jmxtrans-agent";
+    /**
+     * JFR recording of the pinned virtual threads in the log directory, Java 24+
+     */
+    static final String VIRTUAL_THREADS_PINNED_RECORDING_FILE = "virtual-threads-pinned.jfr";
+    /**
+     * {@code META-INF/warmup-requests.txt} of the war in jetty base, replayed instead of the captured requests
+     */
+    static final String BUNDLED_WARM_UP_REQUESTS_FILE = "warmup-requests-bundled.txt";
+
     protected final Logger logger = LoggerFactory.getLogger(getClass());
     @Nonnull
     final Path appDir;
@@ -57,6 +82,10 @@ public class Setup {
     final Path clickstackDir;
     @Nonnull
     final Path javaHome;
+    /**
+     * See {@link JavaVersion}
+     */
+    final int javaMajorVersion;
     @Nonnull
     final Path warFile;
     @Nonnull
@@ -71,6 +100,18 @@ public class Setup {
     final Metadata metadata;
     @Nonnull
     final Environment env;
+    @Nonnull
+    final ContainerResources containerResources;
+    @Nonnull
+    final ServerSizing serverSizing;
+    @Nonnull
+    final JvmErgonomics jvmErgonomics;
+    @Nonnull
+    final ClassDataSharingArchive classDataSharingArchive;
+    @Nullable
+    private String clickstackFingerprint;
+    @Nullable
+    private String warFingerprint;
     /**
      * initialised by {@link #installJettyHome()}
      */
@@ -111,8 +152,14 @@ public class Setup {
 
         this.metadata = metadata;
 
+        this.containerResources = ContainerResources.detect(metadata);
+        this.serverSizing = new ServerSizing(containerResources, metadata);
+
         this.javaHome = Preconditions.checkNotNull(javaHome, "javaHome");
         Preconditions.checkArgument(Files.exists(javaHome), "JavaHome does not exist %s", javaHome);
+        this.javaMajorVersion = JavaVersion.getMajorVersion(javaHome);
+        this.jvmErgonomics = new JvmErgonomics(containerResources, serverSizing, metadata, javaMajorVersion);
+        this.classDataSharingArchive = new ClassDataSharingArchive(appDir.resolve("app-cds.jsa"), javaMajorVersion);
 
         logger.debug("warFile: {}", warFile.toAbsolutePath());
         logger.debug("jettyBase: {}", jettyBase.toAbsolutePath());
@@ -149,21 +196,282 @@ public class Setup {
     }
 
     public void setup() throws Exception {
-        installJettyHome();
-        installSkeleton();
-        Path jettyBase = installJettyBase();
-        installCloudBeesJavaAgent();
-        installJmxTransAgent();
-        writeJavaOpts();
-        writeConfig();
-        installControlScripts();
-        installJettyJavaOpts();
-
-        SetupJettyConfigurationFiles setupTomcatConfigurationFiles = new SetupJettyConfigurationFiles(metadata);
-        setupTomcatConfigurationFiles.buildJettyConfiguration(jettyBase, jettyHome);
+        int parallelism = Integer.parseInt(metadata.getRuntimeParameter("jetty", "setup_parallelism",
+                String.valueOf(Math.min(4, Runtime.getRuntime().availableProcessors()))));
+
+        boolean incremental = Boolean.parseBoolean(metadata.getRuntimeParameter("jetty", "incremental_setup", "true"));
+        SetupPipeline pipeline = new SetupPipeline(parallelism)
+                .withManifest(incremental ? genappDir.resolve("setup-manifest.json") : null)
+                .addPhase("installSkeleton", new SetupPipeline.IncrementalPhase() {
+                    @Override
+                    public void execute() throws Exception {
+                        installSkeleton();
+                    }
+
+                    @Nonnull
+                    @Override
+                    public String getInputsFingerprint() throws Exception {
+                        return fingerprint(getClickstackFingerprint(), appDir);
+                    }
+                })
+                .addPhase("installJettyHome", new SetupPipeline.IncrementalPhase() {
+                    @Override
+                    public void execute() throws Exception {
+                        installJettyHome();
+                    }
+
+                    @Nonnull
+                    @Override
+                    public String getInputsFingerprint() throws Exception {
+                        return fingerprint(getClickstackFingerprint(), appDir, jettyBase,
+                                metadata.getRuntimeParameter("jetty", "distribution_cache_dir", ""),
+                                metadata.getRuntimeParameter("jetty", "distribution_cache_link_mode", ""),
+                                getResourcesFingerprint());
+                    }
+
+                    @Override
+                    public void skip() throws Exception {
+                        jettyHome = Files2.findUniqueDirectoryBeginningWith(appDir, "jetty-distribution");
+                    }
+                })
+                .addPhase("installJettyBase", new SetupPipeline.IncrementalPhase() {
+                    @Override
+                    public void execute() throws Exception {
+                        installJettyBase();
+                    }
+
+                    @Nonnull
+                    @Override
+                    public String getInputsFingerprint() throws Exception {
+                        return fingerprint(getClickstackFingerprint(), getWarFingerprint(), jettyBase, appExtraFilesDir,
+                                metadata.getRuntimeParameter("jetty", "webapp_mode", ""),
+                                SetupJettyConfigurationFiles.isCompressionEnabled(metadata),
+                                metadata.getRuntimeParameter("jetty", "compression_min_size", ""),
+                                metadata.getRuntimeParameter("jetty", "precompress_static_resources", ""),
+                                SetupJettyConfigurationFiles.isWarmUpEnabled(metadata));
+                    }
+                }, "installSkeleton", "installJettyHome")
+                .addPhase("writeServerSizing", new SetupPipeline.IncrementalPhase() {
+                    @Override
+                    public void execute() throws Exception {
+                        writeServerSizing();
+                    }
+
+                    @Nonnull
+                    @Override
+                    public String getInputsFingerprint() throws Exception {
+                        return fingerprint(jettyBase, serverSizing);
+                    }
+                }, "installSkeleton")
+                .addPhase("installCloudBeesJavaAgent", new SetupPipeline.IncrementalPhase() {
+                    @Override
+                    public void execute() throws Exception {
+                        installCloudBeesJavaAgent();
+                    }
+
+                    @Nonnull
+                    @Override
+                    public String getInputsFingerprint() throws Exception {
+                        return fingerprint(getClickstackFingerprint(), agentLibDir, controlDir);
+                    }
+                }, "installSkeleton")
+                .addPhase("writeJavaOpts", new SetupPipeline.IncrementalPhase() {
+                    @Override
+                    public void execute() throws Exception {
+                        writeJavaOpts();
+                    }
+
+                    @Nonnull
+                    @Override
+                    public String getInputsFingerprint() throws Exception {
+                        return fingerprint(controlDir, jvmErgonomics, containerResources, javaMajorVersion,
+                                SetupJettyConfigurationFiles.isVirtualThreadMode(metadata, javaMajorVersion));
+                    }
+                }, "installSkeleton")
+                .addPhase("writeConfig", new SetupPipeline.IncrementalPhase() {
+                    @Override
+                    public void execute() throws Exception {
+                        writeConfig();
+                    }
+
+                    @Nonnull
+                    @Override
+                    public String getInputsFingerprint() throws Exception {
+                        return fingerprint(controlDir, appDir, logDir, jettyBase, genappDir, env.appPort, getJavaHomeFingerprint());
+                    }
+                }, "installSkeleton", "installJettyHome")
+                .addPhase("installControlScripts", new SetupPipeline.IncrementalPhase() {
+                    @Override
+                    public void execute() throws Exception {
+                        installControlScripts();
+                    }
+
+                    @Nonnull
+                    @Override
+                    public String getInputsFingerprint() throws Exception {
+                        return fingerprint(getClickstackFingerprint(), controlDir, genappDir);
+                    }
+                }, "installSkeleton")
+                .addPhase("installJettyJavaOpts", new SetupPipeline.IncrementalPhase() {
+                    @Override
+                    public void execute() throws Exception {
+                        installJettyJavaOpts();
+                    }
+
+                    @Nonnull
+                    @Override
+                    public String getInputsFingerprint() throws Exception {
+                        return fingerprint(controlDir, tmpDir, jettyBase, appExtraFilesDir, env.appPort, javaMajorVersion,
+                                metadata.getRuntimeParameter("jetty", "class_data_sharing", ""));
+                    }
+                }, "installSkeleton", "installJettyHome")
+                .addPhase("buildJettyConfiguration", new SetupPipeline.IncrementalPhase() {
+                    @Override
+                    public void execute() throws Exception {
+                        buildJettyConfiguration();
+                    }
+
+                    @Nonnull
+                    @Override
+                    public String getInputsFingerprint() throws Exception {
+                        return fingerprint(getClickstackFingerprint(), getMetadataFingerprint(), javaMajorVersion,
+                                serverSizing, jvmErgonomics, jettyBase, logDir, genappDir);
+                    }
+                }, "installJettyBase")
+                // the agent is configured with the jetty-metrics.xml generated by buildJettyConfiguration
+                .addPhase("installJmxTransAgent", new SetupPipeline.IncrementalPhase() {
+                    @Override
+                    public void execute() throws Exception {
+                        installJmxTransAgent();
+                    }
+
+                    @Nonnull
+                    @Override
+                    public String getInputsFingerprint() throws Exception {
+                        return fingerprint(getClickstackFingerprint(), agentLibDir, controlDir, jettyBase, logDir);
+                    }
+                }, "installSkeleton", "buildJettyConfiguration");
+        List<String> trainingDependencies = new ArrayList<>(Arrays.asList("installJettyBase", "buildJettyConfiguration",
+                "writeServerSizing", "installCloudBeesJavaAgent", "installJmxTransAgent", "writeJavaOpts", "writeConfig",
+                "installJettyJavaOpts"));
+        if (SetupJettyConfigurationFiles.isWarmUpEnabled(metadata)) {
+            // not incremental, the access log changes on each run of the application
+            pipeline.addPhase("captureWarmUpRequests", new SetupPipeline.Phase() {
+                @Override
+                public void execute() throws Exception {
+                    captureWarmUpRequests();
+                }
+            }, "installJettyBase");
+            trainingDependencies.add("captureWarmUpRequests");
+        }
+        if (isClassDataSharingEnabled()) {
+            // training start of the fully configured server
+            pipeline.addPhase("buildClassDataSharingArchive", new SetupPipeline.Phase() {
+                @Override
+                public void execute() throws Exception {
+                    buildClassDataSharingArchive();
+                }
+            }, trainingDependencies.toArray(new String[trainingDependencies.size()]));
+        }
+
+        try {
+            pipeline.execute();
+        } finally {
+            pipeline.writeTimings(logDir.resolve("setup-timings.json"));
+        }
         logger.info("Clickstack successfully installed");
     }
 
+    /**
+     * Generate {@code jetty.xml}, {@code app.xml} and {@code jetty-metrics.xml} from their original version, the
+     * generation modifies {@code app.xml} and {@code jetty-metrics.xml} in place.
+     */
+    public void buildJettyConfiguration() throws Exception {
+        logger.debug("buildJettyConfiguration() {}", jettyBase);
+
+        Path skeletonJettyBase = clickstackDir.resolve("dist").resolve(appDir.relativize(jettyBase).toString());
+        Path bundledContextXml = tmpDir.resolve("app-bundled.xml");
+        Files.copy(Files.exists(bundledContextXml) ? bundledContextXml : skeletonJettyBase.resolve("webapps/app.xml"),
+                jettyBase.resolve("webapps/app.xml"), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(skeletonJettyBase.resolve("jetty-metrics.xml"), jettyBase.resolve("jetty-metrics.xml"), StandardCopyOption.REPLACE_EXISTING);
+
+        SetupJettyConfigurationFiles setupJettyConfigurationFiles = new SetupJettyConfigurationFiles(metadata, javaMajorVersion)
+                .withServerSizing(serverSizing)
+                .withJvmErgonomics(jvmErgonomics)
+                .withLogDir(logDir)
+                .withReadinessFile(genappDir.resolve("app_ready"))
+                .withSharedMetricsFile(genappDir.resolve("app_metrics"));
+        setupJettyConfigurationFiles.buildJettyConfiguration(jettyBase, jettyHome);
+    }
+
+    /**
+     * @return SHA-1 of the {@link String#valueOf(Object)} of the given inputs
+     */
+    @Nonnull
+    static String fingerprint(@Nonnull Object... inputs) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (Object input : inputs) {
+            hasher.putString(String.valueOf(input), Charsets.UTF_8).putByte((byte) 0);
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Path, size and modification date of the files of the clickstack: skeleton, Jetty distribution and libraries.
+     */
+    @Nonnull
+    synchronized String getClickstackFingerprint() throws IOException {
+        if (clickstackFingerprint == null) {
+            final Hasher hasher = Hashing.sha1().newHasher();
+            Files.walkFileTree(clickstackDir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    hasher.putString(clickstackDir.relativize(file).toString(), Charsets.UTF_8)
+                            .putLong(attrs.size())
+                            .putLong(attrs.lastModifiedTime().toMillis());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            clickstackFingerprint = hasher.hash().toString();
+        }
+        return clickstackFingerprint;
+    }
+
+    @Nonnull
+    synchronized String getWarFingerprint() throws IOException {
+        if (warFingerprint == null) {
+            warFingerprint = com.google.common.io.Files.hash(warFile.toFile(), Hashing.sha1()).toString();
+        }
+        return warFingerprint;
+    }
+
+    @Nonnull
+    String getMetadataFingerprint() throws IOException {
+        Path metadataFile = genappDir.resolve("metadata.json");
+        return Files.exists(metadataFile) ? Hashing.sha1().hashBytes(Files.readAllBytes(metadataFile)).toString() : String.valueOf(metadata);
+    }
+
+    @Nonnull
+    String getJavaHomeFingerprint() throws IOException {
+        Path releaseFile = javaHome.resolve("release");
+        return fingerprint(javaHome.toRealPath(), Files.exists(releaseFile) ? Hashing.sha1().hashBytes(Files.readAllBytes(releaseFile)) : null);
+    }
+
+    /**
+     * Types of the resources, they define the extra libraries of Jetty.
+     */
+    @Nonnull
+    String getResourcesFingerprint() {
+        List<String> resources = new ArrayList<>();
+        for (Database database : metadata.getResources(Database.class)) {
+            resources.add("database:" + database.getDriver());
+        }
+        resources.add("email:" + !metadata.getResources(Email.class).isEmpty());
+        resources.add("sessionStore:" + !metadata.getResources(SessionStore.class).isEmpty());
+        Collections.sort(resources);
+        return resources.toString();
+    }
+
     public void installSkeleton() throws IOException {
         logger.debug("installSkeleton() {}", appDir);
 
@@ -179,15 +487,108 @@ public class Setup {
                 "-Djetty.base=\"" + jettyBase + "\" " +
                 "-Dapp_extra_files=\"" + appExtraFilesDir + "\" " +
                 "-Djetty.port=" + env.appPort + "";
+        if (isClassDataSharingEnabled()) {
+            opts += " " + classDataSharingArchive.getJavaOpts();
+        }
 
         Files.write(optsFile, Collections.singleton(opts), Charsets.UTF_8);
     }
 
+    /**
+     * @return {@code true} if the {@code class_data_sharing} runtime parameter is {@code true} and the JVM supports
+     * dynamic class data sharing archives
+     */
+    boolean isClassDataSharingEnabled() {
+        if (!Boolean.parseBoolean(metadata.getRuntimeParameter("jetty", "class_data_sharing", "false"))) {
+            return false;
+        } else if (!classDataSharingArchive.isSupported()) {
+            logger.warn("Class data sharing requires java {}+, ignore it with java {}", ClassDataSharingArchive.MIN_JAVA_VERSION, javaMajorVersion);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Build the class data sharing archive with a training start of Jetty unless the archive of a previous setup has
+     * been built from the same war, JDK, Jetty distribution and JVM options.
+     */
+    public void buildClassDataSharingArchive() throws Exception {
+        logger.debug("buildClassDataSharingArchive() {}", classDataSharingArchive.getArchiveFile());
+
+        // JVM options of control/start without the options using the archive
+        StringBuilder javaOpts = new StringBuilder();
+        try (DirectoryStream<Path> optsFiles = Files.newDirectoryStream(controlDir, "java-opts-*")) {
+            List<Path> sortedOptsFiles = new ArrayList<>();
+            for (Path optsFile : optsFiles) {
+                sortedOptsFiles.add(optsFile);
+            }
+            Collections.sort(sortedOptsFiles);
+            for (Path optsFile : sortedOptsFiles) {
+                if (optsFile.getFileName().toString().equals(JMXTRANS_AGENT_OPTS_FILE)) {
+                    // the training instance must not collect in the jetty-metrics.data of the running application
+                    continue;
+                }
+                for (String line : Files.readAllLines(optsFile, Charsets.UTF_8)) {
+                    javaOpts.append(' ').append(line.trim());
+                }
+            }
+        }
+        String trainingJavaOpts = javaOpts.toString().replace(classDataSharingArchive.getJavaOpts(), "").trim();
+
+        String fingerprint = classDataSharingArchive.getFingerprint(warFile, javaHome, jettyHome, trainingJavaOpts.replaceAll("-Djetty\\.port=\\d+", ""));
+        if (classDataSharingArchive.isUpToDate(fingerprint)) {
+            logger.info("Class data sharing archive {} is up to date", classDataSharingArchive.getArchiveFile());
+            return;
+        }
+        int timeoutInSeconds = Integer.parseInt(metadata.getRuntimeParameter("jetty", "class_data_sharing_training_timeout", "180"));
+
+        // the training instance shares the jetty base of the application that may still be running, its access log,
+        // readiness file, shared metrics, profiles, sessions and JFR recording are written in a temporary directory
+        Path trainingDir = Files.createTempDirectory(tmpDir, "class-data-sharing-training-");
+        try {
+            Map<String, String> startProperties = new LinkedHashMap<>();
+            startProperties.put("requestlog.filename", trainingDir.resolve("access.log").toString());
+            startProperties.put("warmup.readinessFile", trainingDir.resolve("app_ready").toString());
+            startProperties.put("metrics.sharedFile", trainingDir.resolve("app_metrics").toString());
+            startProperties.put("metrics.httpPort", "0");
+            startProperties.put("profiler.directory", trainingDir.toString());
+            String sessionStoreDirectoryOpt = " -D" + SetupJettyConfigurationFiles.SESSION_STORE_DIRECTORY_PROPERTY + "=\"" + trainingDir.resolve("sessions") + "\"";
+            String isolatedJavaOpts = trainingJavaOpts.replace(logDir.resolve(VIRTUAL_THREADS_PINNED_RECORDING_FILE).toString(),
+                    trainingDir.resolve(VIRTUAL_THREADS_PINNED_RECORDING_FILE).toString()) + sessionStoreDirectoryOpt;
+
+            classDataSharingArchive.build(javaHome.resolve("bin/java"), isolatedJavaOpts, jettyHome, jettyBase,
+                    startProperties, fingerprint, logDir.resolve("class-data-sharing-training.log"), timeoutInSeconds);
+        } finally {
+            JettyDistributionCache.deleteDirectory(trainingDir);
+        }
+    }
+
     public void installJettyHome() throws Exception {
 
+        // installation of a previous setup
+        deleteJettyHomes();
+
         Path jettyPackagePath = Files2.findArtifact(clickstackDir, "jetty-distribution", "zip");
-        Files2.unzip(jettyPackagePath, appDir);
-        jettyHome = Files2.findUniqueDirectoryBeginningWith(appDir, "jetty-distribution");
+        jettyHome = null;
+        String cacheDir = metadata.getRuntimeParameter("jetty", "distribution_cache_dir",
+                Paths.get(System.getProperty("user.home"), ".cache", "jetty9-clickstack-distributions").toString());
+        if (!cacheDir.isEmpty()) {
+            try {
+                JettyDistributionCache cache = new JettyDistributionCache(Paths.get(cacheDir),
+                        Integer.parseInt(metadata.getRuntimeParameter("jetty", "distribution_cache_size", "3")),
+                        JettyDistributionCache.LinkMode.valueOf(metadata.getRuntimeParameter("jetty", "distribution_cache_link_mode", "hardlink").toUpperCase()));
+                jettyHome = cache.install(jettyPackagePath, appDir);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Exception installing Jetty distribution from cache {}, unpack it", cacheDir, e);
+                // partial installation
+                deleteJettyHomes();
+            }
+        }
+        if (jettyHome == null) {
+            Files2.unzip(jettyPackagePath, appDir);
+            jettyHome = Files2.findUniqueDirectoryBeginningWith(appDir, "jetty-distribution");
+            Files2.chmodReadOnly(jettyHome);
+        }
         logger.debug("installJettyHome() {}", jettyHome);
 
         Path targetLibDir = Files.createDirectories(jettyBase.resolve("lib/ext"));
@@ -226,42 +627,99 @@ public class Setup {
             logger.debug("Add memcache jars");
             Files2.copyDirectoryContent(clickstackDir.resolve("deps/jetty-lib-memcache"), targetLibDir);
         }
+    }
 
-        Files2.chmodReadOnly(jettyHome);
+    private void deleteJettyHomes() throws IOException {
+        try (DirectoryStream<Path> jettyHomes = Files.newDirectoryStream(appDir, "jetty-distribution*")) {
+            for (Path jettyHome : jettyHomes) {
+                logger.debug("Delete Jetty home {}", jettyHome);
+                JettyDistributionCache.deleteDirectory(jettyHome);
+            }
+        }
     }
 
     public Path installJettyBase() throws IOException {
         logger.debug("installJettyBase() {}", jettyBase);
 
         Path rootWebAppDir = Files.createDirectories(jettyBase.resolve("webapps"));
-        Files2.copyToDirectory(warFile, rootWebAppDir);
-
-        ApplicationUtils.extractApplicationExtraFiles(warFile, appDir);
-        ApplicationUtils.extractContainerExtraLibs(warFile, Files.createDirectories(jettyHome.resolve("lib/ext")));
+        WarScanner.linkOrCopyToDirectory(warFile, rootWebAppDir);
+
+        // single read of the war, container extra libs go to jetty base as jetty home may be shared with other apps
+        // leftovers of the war of a previous setup
+        Path webAppBundledContextXmlFile = tmpDir.resolve("app-bundled.xml");
+        Files.deleteIfExists(webAppBundledContextXmlFile);
+        Files.deleteIfExists(jettyBase.resolve("app-initial.xml"));
+        // the requests captured for the previous war may not exist anymore
+        Files.deleteIfExists(jettyBase.resolve(SetupJettyConfigurationFiles.WARM_UP_REQUESTS_FILE));
+        Path bundledWarmUpRequestsFile = jettyBase.resolve(BUNDLED_WARM_UP_REQUESTS_FILE);
+        Files.deleteIfExists(bundledWarmUpRequestsFile);
+        WarScanner warScanner = new WarScanner(warFile)
+                .extractApplicationExtraFilesTo(appExtraFilesDir)
+                .extractContainerExtraLibsTo(Files.createDirectories(jettyBase.resolve("lib/ext")))
+                .extractBundledContextXmlTo(webAppBundledContextXmlFile);
+        if (SetupJettyConfigurationFiles.isWarmUpEnabled(metadata)) {
+            warScanner.extractBundledWarmUpRequestsTo(bundledWarmUpRequestsFile);
+        }
+        String webAppMode = metadata.getRuntimeParameter("jetty", "webapp_mode", SetupJettyConfigurationFiles.WEBAPP_MODE_WAR);
+        Path explodedWebAppDir = jettyBase.resolve(SetupJettyConfigurationFiles.EXPLODED_WEBAPP_DIR);
+        boolean exploded = !SetupJettyConfigurationFiles.WEBAPP_MODE_WAR.equals(webAppMode);
+        if (Files.exists(explodedWebAppDir)) {
+            JettyDistributionCache.deleteDirectory(explodedWebAppDir);
+        }
+        if (exploded) {
+            logger.info("Explode application for webapp mode {}", webAppMode);
+            warScanner.explodeTo(explodedWebAppDir);
+        }
+        WarScanner.Result result = warScanner.scan();
+        if (exploded && SetupJettyConfigurationFiles.isCompressionEnabled(metadata)
+                && Boolean.parseBoolean(metadata.getRuntimeParameter("jetty", "precompress_static_resources", "true"))) {
+            long minSize = Long.parseLong(metadata.getRuntimeParameter("jetty", "compression_min_size",
+                    String.valueOf(SetupJettyConfigurationFiles.DEFAULT_COMPRESSION_MIN_SIZE)));
+            new StaticResourcePrecompressor(StaticResourcePrecompressor.DEFAULT_EXTENSIONS, minSize).precompress(explodedWebAppDir);
+        }
+        if (result.extraFiles > 0) {
+            logger.info("Copied {} application provided extra files", result.extraFiles);
+        }
+        if (result.containerExtraLibs > 0) {
+            logger.info("Copied {} application provided extra libs", result.containerExtraLibs);
+        }
 
-        Path webAppBundledContextXmlFile = rootWebAppDir.resolve("META-INF/app.xml");
         Path JettyBaseContextXml = this.jettyBase.resolve("webapps/app.xml");
-        if (Files.exists(webAppBundledContextXmlFile) && !Files.isDirectory(webAppBundledContextXmlFile)) {
+        if (result.bundledContextXml) {
             logger.info("Copy application provided context.xml");
-            Files.move(JettyBaseContextXml, jettyBase.resolve("webapps/app-initial.xml"));
-            Files.copy(webAppBundledContextXmlFile, JettyBaseContextXml);
+            // outside of webapps/ to not be deployed by jetty, the bundled context XML is kept to regenerate app.xml
+            Files.copy(clickstackDir.resolve("dist").resolve(appDir.relativize(JettyBaseContextXml).toString()),
+                    jettyBase.resolve("app-initial.xml"), StandardCopyOption.REPLACE_EXISTING);
+            Files.copy(webAppBundledContextXmlFile, JettyBaseContextXml, StandardCopyOption.REPLACE_EXISTING);
         }
 
-        Path webAppBundledExtraFiles = rootWebAppDir.resolve("META-INF/extra-files");
-        if (Files.exists(webAppBundledExtraFiles) && Files.isDirectory(webAppBundledExtraFiles)) {
-            logger.info("Copy application provided extra files");
-            Files2.copyDirectoryContent(webAppBundledExtraFiles, this.appExtraFilesDir);
-        }
+        Files2.chmodAddReadWrite(jettyBase);
+
+        return jettyBase;
+    }
 
-        Path webAppBundledExtraLibs = rootWebAppDir.resolve("META-INF/lib");
-        if (Files.exists(webAppBundledExtraLibs) && Files.isDirectory(webAppBundledExtraLibs)) {
-            logger.info("Copy application provided extra libs");
-            Files2.copyDirectoryContent(webAppBundledExtraLibs, this.jettyBase.resolve("lib/ext"));
+    /**
+     * Requests replayed by the warm-up: the requests bundled in the war or the traffic of the previous run of the
+     * application. The previously captured requests are kept if the access log has no request, e.g. after a restart
+     * without traffic.
+     */
+    public void captureWarmUpRequests() throws IOException {
+        Path warmUpRequestsFile = jettyBase.resolve(SetupJettyConfigurationFiles.WARM_UP_REQUESTS_FILE);
+        logger.debug("captureWarmUpRequests() {}", warmUpRequestsFile);
+
+        Path bundledWarmUpRequestsFile = jettyBase.resolve(BUNDLED_WARM_UP_REQUESTS_FILE);
+        if (Files.exists(bundledWarmUpRequestsFile)) {
+            Files.copy(bundledWarmUpRequestsFile, warmUpRequestsFile, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            WarmUpRequests.captureFromAccessLog(logDir.resolve("access.log"), warmUpRequestsFile,
+                    Integer.parseInt(metadata.getRuntimeParameter("jetty", "warmup_capture_size", "1000")));
         }
+    }
 
-        Files2.chmodAddReadWrite(jettyBase);
+    public void writeServerSizing() throws IOException {
+        logger.debug("writeServerSizing() {}", jettyBase);
 
-        return jettyBase;
+        serverSizing.writeTo(jettyBase);
     }
 
     public void installJmxTransAgent() throws IOException {
@@ -272,7 +730,7 @@ public class Setup {
         Preconditions.checkState(Files.exists(jmxtransAgentConfigurationFile), "File %s does not exist", jmxtransAgentConfigurationFile);
         Path jmxtransAgentDataFile = logDir.resolve("jetty-metrics.data");
 
-        Path agentOptsFile = controlDir.resolve("java-opts-60-jmxtrans-agent");
+        Path agentOptsFile = controlDir.resolve(JMXTRANS_AGENT_OPTS_FILE);
 
         String agentOptsFileData =
                 "-javaagent:" + jmxtransAgentJarFile.toString() + "=" + jmxtransAgentConfigurationFile.toString() +
@@ -302,7 +760,21 @@ public class Setup {
         Path javaOptsFile = controlDir.resolve("java-opts-10-core");
         logger.debug("writeJavaOpts() {}", javaOptsFile);
 
-        String javaOpts = metadata.getRuntimeParameter("java", "opts", "");
+        String javaOpts = jvmErgonomics.getJavaOpts();
+        if (SetupJettyConfigurationFiles.isVirtualThreadMode(metadata, javaMajorVersion)) {
+            // carrier threads sized on the cgroup cpus rather than the host cpus, report pinned virtual threads
+            String pinnedThreadsOpts;
+            if (javaMajorVersion < 24) {
+                pinnedThreadsOpts = "-Djdk.tracePinnedThreads=short";
+            } else {
+                // jdk.tracePinnedThreads has been removed, the pinned threads are only reported as JFR events
+                pinnedThreadsOpts = "-XX:StartFlightRecording=name=virtual-threads-pinned,settings=none," +
+                        "+jdk.VirtualThreadPinned#enabled=true,+jdk.VirtualThreadPinned#threshold=20ms,+jdk.VirtualThreadPinned#stackTrace=true," +
+                        "maxsize=16m,dumponexit=true,filename=\"" + logDir.resolve(VIRTUAL_THREADS_PINNED_RECORDING_FILE) + "\"";
+            }
+            javaOpts = "-Djdk.virtualThreadScheduler.parallelism=" + containerResources.getCpus() +
+                    " " + pinnedThreadsOpts + " " + javaOpts;
+        }
         Files.write(javaOptsFile, Collections.singleton(javaOpts), Charsets.UTF_8);
     }
 
@@ -338,6 +810,8 @@ public class Setup {
 
         Path jmxInvokerPath = Files2.copyArtifactToDirectory(clickstackDir.resolve("deps/control-lib"), "cloudbees-jmx-invoker", genappLibDir);
         // create symlink without version to simplify jmx_invoker script
-        Files.createSymbolicLink(genappLibDir.resolve("cloudbees-jmx-invoker-jar-with-dependencies.jar"), jmxInvokerPath);
+        Path jmxInvokerLink = genappLibDir.resolve("cloudbees-jmx-invoker-jar-with-dependencies.jar");
+        Files.deleteIfExists(jmxInvokerLink);
+        Files.createSymbolicLink(jmxInvokerLink, jmxInvokerPath);
     }
 }
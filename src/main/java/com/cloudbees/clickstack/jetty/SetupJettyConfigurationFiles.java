@@ -17,12 +17,18 @@ package com.cloudbees.clickstack.jetty;
 
 import com.cloudbees.clickstack.domain.metadata.*;
 import com.cloudbees.clickstack.util.XmlUtils;
+import com.google.common.base.Preconditions;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.SimpleDateFormat;
@@ -31,9 +37,95 @@ import java.util.logging.Logger;
 
 public class SetupJettyConfigurationFiles {
 
+    /**
+     * Jetty extracts the packaged {@code webapps/app.war} at each start.
+     */
+    public static final String WEBAPP_MODE_WAR = "war";
+    /**
+     * The war is exploded at setup time in {@link #EXPLODED_WEBAPP_DIR}.
+     */
+    public static final String WEBAPP_MODE_EXPLODED = "exploded";
+    /**
+     * Exploded webapp started with a {@code WEB-INF/quickstart-web.xml} descriptor, generated on the first start,
+     * to skip annotations and fragments scanning. Requires the quickstart module (Jetty 9.2+), fallback to
+     * {@link #WEBAPP_MODE_EXPLODED} otherwise.
+     */
+    public static final String WEBAPP_MODE_QUICKSTART = "quickstart";
+
+    /**
+     * Relative to jetty base, outside of {@code webapps/} to not be deployed by Jetty.
+     */
+    public static final String EXPLODED_WEBAPP_DIR = "exploded-webapp";
+
+    /**
+     * Requests dispatched on the Jetty {@code QueuedThreadPool}.
+     */
+    public static final String THREAD_MODE_PLATFORM = "platform";
+    /**
+     * Requests dispatched on virtual threads (Java 21+).
+     */
+    public static final String THREAD_MODE_VIRTUAL = "virtual";
+
+    public static final int VIRTUAL_THREADS_MIN_JAVA_VERSION = 21;
+    /**
+     * First version of the JVM exposing the {@code jdk.management:type=VirtualThreadScheduler} MBean
+     */
+    public static final int VIRTUAL_THREAD_SCHEDULER_MBEAN_MIN_JAVA_VERSION = 24;
+
+    /**
+     * Default connection limit of a database, limit of CloudBees MySQL databases
+     */
+    public static final int DEFAULT_DATABASE_CONNECTION_LIMIT = 20;
+
+    /**
+     * Sessions in the heap, lost on restart.
+     */
+    public static final String SESSION_STORE_MEMORY = "memory";
+    /**
+     * Sessions in the memcached nodes of the {@link SessionStore} resource.
+     */
+    public static final String SESSION_STORE_MEMCACHED = "memcached";
+    /**
+     * Sessions persisted in jetty base, for single instance applications.
+     */
+    public static final String SESSION_STORE_FILE = "file";
+    /**
+     * System property overriding the {@code ${jetty.base}/sessions} directory of the {@link #SESSION_STORE_FILE} session
+     * store.
+     */
+    public static final String SESSION_STORE_DIRECTORY_PROPERTY = "session.storeDirectory";
+
+    /**
+     * Context attribute of the cache of the static resources used by the {@code DefaultServlet}.
+     */
+    public static final String RESOURCE_CACHE_ATTRIBUTE = "com.cloudbees.clickstack.jetty.resourceCache";
+
+    /**
+     * Smaller responses do not fit in more than one TCP packet
+     */
+    public static final int DEFAULT_COMPRESSION_MIN_SIZE = 256;
+    /**
+     * Requests replayed by the warm-up, in jetty base
+     */
+    public static final String WARM_UP_REQUESTS_FILE = "warmup-requests.txt";
+
+    public static final String DEFAULT_COMPRESSION_MIME_TYPES = "text/html,text/plain,text/xml,text/css,text/javascript," +
+            "application/javascript,application/x-javascript,application/json,application/xml,image/svg+xml";
+
     private final Logger logger = Logger.getLogger(getClass().getName());
     private Metadata metadata;
-    private Set<String> databaseProperties = new HashSet(Arrays.asList("minIdle", "maxIdle", "maxActive", "maxWait",
+    private final int javaMajorVersion;
+    @Nullable
+    private ServerSizing serverSizing;
+    @Nullable
+    private Path logDir;
+    @Nullable
+    private JvmErgonomics jvmErgonomics;
+    @Nullable
+    private Path readinessFile;
+    @Nullable
+    private Path sharedMetricsFile;
+    private Set<String> databaseProperties = new HashSet<>(Arrays.asList("minIdle", "maxIdle", "maxActive", "maxWait",
             "initialSize",
             "validationQuery", "validationQueryTimeout", "testOnBorrow", "testOnReturn",
             "timeBetweenEvictionRunsMillis", "numTestsPerEvictionRun", "minEvictableIdleTimeMillis", "testWhileIdle",
@@ -44,9 +136,632 @@ public class SetupJettyConfigurationFiles {
             "fairQueue", "abandonWhenPercentageFull", "maxAge", "useEquals", "suspectTimeout", "rollbackOnReturn",
             "commitOnReturn", "alternateUsernameAllowed", "useDisposableConnectionFacade", "logValidationErrors",
             "propagateInterruptState"));
+    private Set<String> databaseIntegerProperties = new HashSet<>(Arrays.asList("minIdle", "maxIdle", "maxActive", "maxWait",
+            "initialSize", "validationQueryTimeout", "timeBetweenEvictionRunsMillis", "numTestsPerEvictionRun",
+            "minEvictableIdleTimeMillis", "removeAbandonedTimeout", "maxOpenPreparedStatements", "validationInterval",
+            "abandonWhenPercentageFull", "maxAge", "suspectTimeout"));
+    private Set<String> databaseBooleanProperties = new HashSet<>(Arrays.asList("testOnBorrow", "testOnReturn",
+            "testWhileIdle", "removeAbandoned", "logAbandoned", "defaultAutoCommit", "defaultReadOnly",
+            "poolPreparedStatements", "accessToUnderlyingConnectionAllowed", "jmxEnabled", "fairQueue", "useEquals",
+            "rollbackOnReturn", "commitOnReturn", "alternateUsernameAllowed", "useDisposableConnectionFacade",
+            "logValidationErrors", "propagateInterruptState"));
 
     public SetupJettyConfigurationFiles(@Nonnull Metadata metadata) {
+        this(metadata, JavaVersion.UNKNOWN);
+    }
+
+    /**
+     * @param javaMajorVersion version of the JVM running Jetty, see {@link JavaVersion}
+     */
+    public SetupJettyConfigurationFiles(@Nonnull Metadata metadata, int javaMajorVersion) {
         this.metadata = metadata;
+        this.javaMajorVersion = javaMajorVersion;
+    }
+
+    /**
+     * Sizing of the server thread pool, used to size the JDBC connection pools.
+     */
+    @Nonnull
+    public SetupJettyConfigurationFiles withServerSizing(@Nullable ServerSizing serverSizing) {
+        this.serverSizing = serverSizing;
+        return this;
+    }
+
+    /**
+     * JVM options of the application, used to generate the metrics of the memory pools of the garbage collector.
+     */
+    @Nonnull
+    public SetupJettyConfigurationFiles withJvmErgonomics(@Nullable JvmErgonomics jvmErgonomics) {
+        this.jvmErgonomics = jvmErgonomics;
+        return this;
+    }
+
+    /**
+     * File created once the warm-up of the server is completed.
+     */
+    @Nonnull
+    public SetupJettyConfigurationFiles withReadinessFile(@Nullable Path readinessFile) {
+        this.readinessFile = readinessFile;
+        return this;
+    }
+
+    /**
+     * Memory-mapped file in which the metrics are published for the control scripts, no in-process metrics
+     * exporter if {@code null}.
+     */
+    @Nonnull
+    public SetupJettyConfigurationFiles withSharedMetricsFile(@Nullable Path sharedMetricsFile) {
+        this.sharedMetricsFile = sharedMetricsFile;
+        return this;
+    }
+
+    /**
+     * Directory of the access log, no access log if {@code null}.
+     */
+    @Nonnull
+    public SetupJettyConfigurationFiles withLogDir(@Nullable Path logDir) {
+        this.logDir = logDir;
+        return this;
+    }
+
+    /**
+     * @return {@code true} if the {@code thread_mode} runtime parameter is {@link #THREAD_MODE_VIRTUAL} and the JVM
+     * supports virtual threads
+     */
+    public static boolean isVirtualThreadMode(@Nonnull Metadata metadata, int javaMajorVersion) {
+        return THREAD_MODE_VIRTUAL.equals(metadata.getRuntimeParameter("jetty", "thread_mode", THREAD_MODE_PLATFORM))
+                && javaMajorVersion >= VIRTUAL_THREADS_MIN_JAVA_VERSION;
+    }
+
+    /**
+     * Replace the {@code QueuedThreadPool} of the server by a {@code VirtualThreadPool} creating a virtual thread per
+     * task, the acceptor and selector loops of the connectors run on their own platform threads. The thread pool can
+     * not be replaced once the server is created, it is passed as constructor argument.
+     */
+    protected void addVirtualThreadPool(Document jettyXmlDocument) {
+        Element configure = jettyXmlDocument.getDocumentElement();
+
+        // QueuedThreadPool settings
+        NodeList children = configure.getChildNodes();
+        for (int i = children.getLength() - 1; i >= 0; i--) {
+            Node child = children.item(i);
+            if (child instanceof Element && "Get".equals(child.getNodeName()) && "ThreadPool".equals(((Element) child).getAttribute("name"))) {
+                configure.removeChild(child);
+            }
+        }
+
+        Element threadPoolArg = jettyXmlDocument.createElement("Arg");
+        Element threadPool = jettyXmlDocument.createElement("New");
+        threadPool.setAttribute("id", "threadpool");
+        threadPool.setAttribute("class", "com.cloudbees.clickstack.jetty.extras.thread.VirtualThreadPool");
+        threadPoolArg.appendChild(threadPool);
+
+        Element executorArg = jettyXmlDocument.createElement("Arg");
+        Element executor = jettyXmlDocument.createElement("Call");
+        executor.setAttribute("class", "java.util.concurrent.Executors");
+        executor.setAttribute("name", "newVirtualThreadPerTaskExecutor");
+        executorArg.appendChild(executor);
+        threadPool.appendChild(executorArg);
+
+        // one platform thread per acceptor and selector, default number of selectors of Jetty otherwise, with room for
+        // the loops of connectors that do not use these settings
+        int expectedLoops = serverSizing == null ? 4 + (Runtime.getRuntime().availableProcessors() + 1) / 2 : serverSizing.acceptors + serverSizing.selectors;
+        int loopThreads = expectedLoops + Math.max(4, expectedLoops);
+        threadPool.appendChild(createJettyConfigArg("int", String.valueOf(loopThreads), jettyXmlDocument));
+
+        configure.insertBefore(threadPoolArg, configure.getFirstChild());
+    }
+
+    protected SetupJettyConfigurationFiles addQueuedThreadPoolMetrics(Document metricsXmlDocument) {
+        String objectName = "org.eclipse.jetty.util.thread:type=queuedthreadpool,id=0";
+        Element queries = XmlUtils.getUniqueElement(metricsXmlDocument, "/jmxtrans-agent/queries");
+        queries.appendChild(createMetricsQuery(objectName, "threads", "jetty_threadpool_threads", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "idleThreads", "jetty_threadpool_idleThreads", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "queueSize", "jetty_threadpool_queueSize", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "minThreads", "jetty_threadpool_minThreads", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "maxThreads", "jetty_threadpool_maxThreads", metricsXmlDocument));
+        return this;
+    }
+
+    /**
+     * Carrier threads of the virtual threads, the {@code VirtualThreadScheduler} MBean is only available since
+     * Java {@value #VIRTUAL_THREAD_SCHEDULER_MBEAN_MIN_JAVA_VERSION}.
+     */
+    protected SetupJettyConfigurationFiles addVirtualThreadSchedulerMetrics(Document metricsXmlDocument) {
+        if (javaMajorVersion < VIRTUAL_THREAD_SCHEDULER_MBEAN_MIN_JAVA_VERSION) {
+            return this;
+        }
+        String objectName = "jdk.management:type=VirtualThreadScheduler";
+        Element queries = XmlUtils.getUniqueElement(metricsXmlDocument, "/jmxtrans-agent/queries");
+        queries.appendChild(createMetricsQuery(objectName, "Parallelism", "virtual_threads_carrier_parallelism", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "PoolSize", "virtual_threads_carrier_poolSize", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "MountedVirtualThreadCount", "virtual_threads_mounted", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "QueuedVirtualThreadCount", "virtual_threads_queued", metricsXmlDocument));
+        return this;
+    }
+
+    /**
+     * Wrap the handlers of the server in a {@code StatisticsHandler} (request counts and times of
+     * {@code jetty-metrics.xml}) and a {@code RequestLatencyHandler} (latency percentiles, globally and per URL
+     * pattern of the {@code request_latency_patterns} runtime parameter).
+     */
+    protected void addRequestLatencyHandler(@Nullable String patterns, Document jettyXmlDocument) {
+        Element statisticsHandler = jettyXmlDocument.createElement("New");
+        statisticsHandler.setAttribute("id", "StatsHandler");
+        statisticsHandler.setAttribute("class", "org.eclipse.jetty.server.handler.StatisticsHandler");
+
+        Element latencyHandler = jettyXmlDocument.createElement("New");
+        latencyHandler.setAttribute("id", "RequestLatencyHandler");
+        latencyHandler.setAttribute("class", "com.cloudbees.clickstack.jetty.extras.handler.RequestLatencyHandler");
+        if (patterns != null && !patterns.isEmpty()) {
+            latencyHandler.appendChild(createJettyConfigSetDirective("patterns", patterns, jettyXmlDocument));
+        }
+
+        // Server -> StatisticsHandler -> RequestLatencyHandler -> original handlers
+        wrapServerHandler(latencyHandler, jettyXmlDocument);
+        wrapServerHandler(statisticsHandler, jettyXmlDocument);
+    }
+
+    /**
+     * Move the handler of the server into the given {@code HandlerWrapper} and make it the handler of the server.
+     */
+    private void wrapServerHandler(Element handlerWrapper, Document jettyXmlDocument) {
+        Element setHandler = XmlUtils.getUniqueElement(jettyXmlDocument, "/Configure/Set[@name='handler']");
+
+        Element wrapperSetHandler = jettyXmlDocument.createElement("Set");
+        wrapperSetHandler.setAttribute("name", "handler");
+        while (setHandler.getFirstChild() != null) {
+            wrapperSetHandler.appendChild(setHandler.getFirstChild());
+        }
+        handlerWrapper.appendChild(wrapperSetHandler);
+        setHandler.appendChild(handlerWrapper);
+    }
+
+    /**
+     * Compress the dynamic responses with a {@code CompressionHandler}.
+     */
+    protected void addCompressionHandler(Document jettyXmlDocument) {
+        Element compressionHandler = jettyXmlDocument.createElement("New");
+        compressionHandler.setAttribute("id", "CompressionHandler");
+        compressionHandler.setAttribute("class", "com.cloudbees.clickstack.jetty.extras.handler.CompressionHandler");
+        compressionHandler.appendChild(createJettyConfigSetDirective("minGzipSize",
+                String.valueOf(Integer.parseInt(metadata.getRuntimeParameter("jetty", "compression_min_size", String.valueOf(DEFAULT_COMPRESSION_MIN_SIZE)))),
+                jettyXmlDocument));
+        compressionHandler.appendChild(createJettyConfigSetDirective("mimeTypes",
+                metadata.getRuntimeParameter("jetty", "compression_mime_types", DEFAULT_COMPRESSION_MIME_TYPES),
+                jettyXmlDocument));
+        int compressionLevel = Integer.parseInt(metadata.getRuntimeParameter("jetty", "compression_level", "6"));
+        Preconditions.checkArgument(compressionLevel >= 1 && compressionLevel <= 9, "Invalid compression_level %s, expected 1 to 9", compressionLevel);
+        compressionHandler.appendChild(createJettyConfigSetDirective("compressionLevel", String.valueOf(compressionLevel), jettyXmlDocument));
+
+        wrapServerHandler(compressionHandler, jettyXmlDocument);
+    }
+
+    /**
+     * Protect the server from overload with an {@code AdaptiveConcurrencyLimitHandler} configured with the
+     * {@code admission_control_*} runtime parameters. The limit can not exceed the maximum number of threads of the
+     * server.
+     */
+    protected void addAdmissionControlHandler(Document jettyXmlDocument) {
+        int defaultMaxLimit = serverSizing == null ? 200 : serverSizing.threadsMax;
+        int maxLimit = Integer.parseInt(metadata.getRuntimeParameter("jetty", "admission_control_max_limit", String.valueOf(defaultMaxLimit)));
+        int minLimit = Integer.parseInt(metadata.getRuntimeParameter("jetty", "admission_control_min_limit", String.valueOf(Math.min(4, maxLimit))));
+        int initialLimit = Integer.parseInt(metadata.getRuntimeParameter("jetty", "admission_control_initial_limit", String.valueOf(Math.max(minLimit, maxLimit / 2))));
+        Preconditions.checkArgument(minLimit >= 1 && minLimit <= maxLimit, "Invalid admission_control_min_limit %s, expected 1 to admission_control_max_limit %s", minLimit, maxLimit);
+
+        Element limitHandler = jettyXmlDocument.createElement("New");
+        limitHandler.setAttribute("id", "AdmissionControlHandler");
+        limitHandler.setAttribute("class", "com.cloudbees.clickstack.jetty.extras.handler.AdaptiveConcurrencyLimitHandler");
+        limitHandler.appendChild(createJettyConfigSetDirective("minLimit", String.valueOf(minLimit), jettyXmlDocument));
+        limitHandler.appendChild(createJettyConfigSetDirective("maxLimit", String.valueOf(maxLimit), jettyXmlDocument));
+        limitHandler.appendChild(createJettyConfigSetDirective("initialLimit", String.valueOf(initialLimit), jettyXmlDocument));
+        limitHandler.appendChild(createJettyConfigSetDirective("rttTolerance",
+                String.valueOf(Double.parseDouble(metadata.getRuntimeParameter("jetty", "admission_control_rtt_tolerance", "1.5"))),
+                jettyXmlDocument));
+        limitHandler.appendChild(createJettyConfigSetDirective("maxQueueSize",
+                String.valueOf(Integer.parseInt(metadata.getRuntimeParameter("jetty", "admission_control_max_queue_size", "100"))),
+                jettyXmlDocument));
+        limitHandler.appendChild(createJettyConfigSetDirective("maxQueueWait",
+                String.valueOf(Long.parseLong(metadata.getRuntimeParameter("jetty", "admission_control_max_queue_wait", "100"))),
+                jettyXmlDocument));
+        limitHandler.appendChild(createJettyConfigSetDirective("retryAfter",
+                String.valueOf(Integer.parseInt(metadata.getRuntimeParameter("jetty", "admission_control_retry_after", "1"))),
+                jettyXmlDocument));
+        String priorityPaths = metadata.getRuntimeParameter("jetty", "admission_control_priority_paths", "");
+        if (!priorityPaths.isEmpty()) {
+            limitHandler.appendChild(createJettyConfigSetDirective("priorityPaths", priorityPaths, jettyXmlDocument));
+        }
+
+        wrapServerHandler(limitHandler, jettyXmlDocument);
+    }
+
+    protected SetupJettyConfigurationFiles addAdmissionControlMetrics(Document metricsXmlDocument) {
+        String objectName = "com.cloudbees.clickstack.jetty:type=AdaptiveConcurrencyLimit,name=server";
+        Element queries = XmlUtils.getUniqueElement(metricsXmlDocument, "/jmxtrans-agent/queries");
+        queries.appendChild(createMetricsQuery(objectName, "Limit", "admission_limit", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "InFlight", "admission_inFlight", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "QueueSize", "admission_queueSize", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "AdmittedCount", "admission_admittedCount", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "QueuedCount", "admission_queuedCount", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "RejectedCount", "admission_rejectedCount", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "ShortRtt", "admission_shortRtt", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "LongRtt", "admission_longRtt", metricsXmlDocument));
+        return this;
+    }
+
+    /**
+     * Let the {@code DefaultServlet} serve the {@code .gz} variant of the static resources to the clients accepting
+     * gzip, see {@link StaticResourcePrecompressor}.
+     */
+    protected void addPrecompressedStaticResources(Document appXmlDocument) {
+        appXmlDocument.getDocumentElement().appendChild(
+                createJettyConfigSetInitParameterDirective("org.eclipse.jetty.servlet.Default.gzip", "true", appXmlDocument));
+    }
+
+    /**
+     * Serve the static resources from a {@code StatisticsResourceCache} shared with the {@code DefaultServlet}
+     * through the {@link #RESOURCE_CACHE_ATTRIBUTE} context attribute, sized with the {@code static_cache_*} runtime
+     * parameters.
+     */
+    protected SetupJettyConfigurationFiles addStaticResourceCache(Document appXmlDocument) {
+        Element root = appXmlDocument.getDocumentElement();
+        String contextId = root.getAttribute("id");
+        if (contextId.isEmpty()) {
+            contextId = "webAppContext";
+            root.setAttribute("id", contextId);
+        }
+
+        boolean fileMappedBuffers = Boolean.parseBoolean(metadata.getRuntimeParameter("jetty", "static_cache_mapped_buffers", "true"));
+        boolean etags = Boolean.parseBoolean(metadata.getRuntimeParameter("jetty", "static_cache_etags", "true"));
+        int maxCacheSizeInMegaBytes = Integer.parseInt(metadata.getRuntimeParameter("jetty", "static_cache_max_size_mb", "64"));
+        int maxCachedFileSizeInKiloBytes = Integer.parseInt(metadata.getRuntimeParameter("jetty", "static_cache_max_file_size_kb", "4096"));
+        int maxCachedFiles = Integer.parseInt(metadata.getRuntimeParameter("jetty", "static_cache_max_files", "2048"));
+        Preconditions.checkArgument(maxCacheSizeInMegaBytes < 2048, "Invalid static_cache_max_size_mb %s, expected less than 2048", maxCacheSizeInMegaBytes);
+
+        Element resourceCache = appXmlDocument.createElement("New");
+        resourceCache.setAttribute("id", "ResourceCache");
+        resourceCache.setAttribute("class", "com.cloudbees.clickstack.jetty.extras.resource.StatisticsResourceCache");
+        Element contextArg = appXmlDocument.createElement("Arg");
+        Element contextRef = appXmlDocument.createElement("Ref");
+        contextRef.setAttribute("refid", contextId);
+        contextArg.appendChild(contextRef);
+        resourceCache.appendChild(contextArg);
+        resourceCache.appendChild(createJettyConfigArg("app", appXmlDocument));
+        resourceCache.appendChild(createJettyConfigArg("boolean", String.valueOf(fileMappedBuffers), appXmlDocument));
+        resourceCache.appendChild(createJettyConfigArg("boolean", String.valueOf(etags), appXmlDocument));
+        resourceCache.appendChild(createJettyConfigSetDirective("maxCacheSize", String.valueOf(maxCacheSizeInMegaBytes * 1024 * 1024), appXmlDocument));
+        resourceCache.appendChild(createJettyConfigSetDirective("maxCachedFileSize", String.valueOf(maxCachedFileSizeInKiloBytes * 1024), appXmlDocument));
+        resourceCache.appendChild(createJettyConfigSetDirective("maxCachedFiles", String.valueOf(maxCachedFiles), appXmlDocument));
+
+        Element setAttribute = appXmlDocument.createElement("Call");
+        setAttribute.setAttribute("name", "setAttribute");
+        setAttribute.appendChild(createJettyConfigArg(RESOURCE_CACHE_ATTRIBUTE, appXmlDocument));
+        Element resourceCacheArg = appXmlDocument.createElement("Arg");
+        resourceCacheArg.appendChild(resourceCache);
+        setAttribute.appendChild(resourceCacheArg);
+        root.appendChild(setAttribute);
+
+        root.appendChild(createJettyConfigSetInitParameterDirective("org.eclipse.jetty.servlet.Default.resourceCache", RESOURCE_CACHE_ATTRIBUTE, appXmlDocument));
+        root.appendChild(createJettyConfigSetInitParameterDirective("org.eclipse.jetty.servlet.Default.useFileMappedBuffer", String.valueOf(fileMappedBuffers), appXmlDocument));
+        root.appendChild(createJettyConfigSetInitParameterDirective("org.eclipse.jetty.servlet.Default.etags", String.valueOf(etags), appXmlDocument));
+        String cacheControl = metadata.getRuntimeParameter("jetty", "static_cache_control", "");
+        if (!cacheControl.isEmpty()) {
+            root.appendChild(createJettyConfigSetInitParameterDirective("org.eclipse.jetty.servlet.Default.cacheControl", cacheControl, appXmlDocument));
+        }
+        return this;
+    }
+
+    /**
+     * Usage of the memory pools and activity of the garbage collectors, the names of the pools depend on the collector
+     * and on the Java version.
+     */
+    protected SetupJettyConfigurationFiles addJvmMetrics(@Nonnull JvmErgonomics jvmErgonomics, Document metricsXmlDocument) {
+        Element queries = XmlUtils.getUniqueElement(metricsXmlDocument, "/jmxtrans-agent/queries");
+        for (String memoryPool : jvmErgonomics.getMemoryPoolNames()) {
+            String objectName = "java.lang:type=MemoryPool,name=" + memoryPool;
+            String prefix = "memory_" + memoryPool.toLowerCase().replaceAll("[^a-z0-9]+", "_").replaceAll("^_|_$", "") + "_";
+            queries.appendChild(createMetricsQuery(objectName, "Usage", "used", prefix + "used", null, metricsXmlDocument));
+            queries.appendChild(createMetricsQuery(objectName, "Usage", "committed", prefix + "committed", null, metricsXmlDocument));
+            queries.appendChild(createMetricsQuery(objectName, "PeakUsage", "used", prefix + "peakUsed", null, metricsXmlDocument));
+            queries.appendChild(createMetricsQuery(objectName, "PeakUsage", "committed", prefix + "peakCommitted", null, metricsXmlDocument));
+        }
+        for (String garbageCollector : jvmErgonomics.getGarbageCollectorNames()) {
+            String objectName = "java.lang:type=GarbageCollector,name=" + garbageCollector;
+            String prefix = "gc_" + garbageCollector.toLowerCase().replaceAll("[^a-z0-9]+", "_") + "_";
+            queries.appendChild(createMetricsQuery(objectName, "CollectionCount", prefix + "collectionCount", "counter", metricsXmlDocument));
+            queries.appendChild(createMetricsQuery(objectName, "CollectionTime", prefix + "collectionTime", "counter", metricsXmlDocument));
+        }
+        return this;
+    }
+
+    protected SetupJettyConfigurationFiles addStaticResourceCacheMetrics(Document metricsXmlDocument) {
+        String objectName = "com.cloudbees.clickstack.jetty:type=ResourceCache,name=app";
+        Element queries = XmlUtils.getUniqueElement(metricsXmlDocument, "/jmxtrans-agent/queries");
+        queries.appendChild(createMetricsQuery(objectName, "HitCount", "staticcache_hitCount", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "MissCount", "staticcache_missCount", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "EvictionCount", "staticcache_evictionCount", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "HitRatio", "staticcache_hitRatio", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "CachedBytes", "staticcache_cachedBytes", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "CachedFiles", "staticcache_cachedFiles", metricsXmlDocument));
+        return this;
+    }
+
+    protected SetupJettyConfigurationFiles addCompressionMetrics(Document metricsXmlDocument) {
+        String objectName = "com.cloudbees.clickstack.jetty:type=Compression,name=gzip";
+        Element queries = XmlUtils.getUniqueElement(metricsXmlDocument, "/jmxtrans-agent/queries");
+        queries.appendChild(createMetricsQuery(objectName, "CompressedResponseCount", "compression_responseCount", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "UncompressedBytes", "compression_uncompressedBytes", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "CompressedBytes", "compression_compressedBytes", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "BytesSaved", "compression_bytesSaved", "counter", metricsXmlDocument));
+        return this;
+    }
+
+    /**
+     * @return {@code true} unless the {@code compression_enabled} runtime parameter is {@code false}
+     */
+    public static boolean isCompressionEnabled(@Nonnull Metadata metadata) {
+        return Boolean.parseBoolean(metadata.getRuntimeParameter("jetty", "compression_enabled", "true"));
+    }
+
+    /**
+     * Request rate, concurrency and latency percentiles of the {@code RequestLatencyHandler}, globally and per URL
+     * pattern.
+     */
+    protected SetupJettyConfigurationFiles addRequestLatencyMetrics(@Nullable String patterns, Document metricsXmlDocument) {
+        Set<String> names = new LinkedHashSet<>();
+        names.add("all");
+        if (patterns != null) {
+            for (String pattern : patterns.split(";")) {
+                int idx = pattern.indexOf('=');
+                if (idx > 0) {
+                    names.add(pattern.substring(0, idx).trim());
+                }
+            }
+        }
+
+        Element queries = XmlUtils.getUniqueElement(metricsXmlDocument, "/jmxtrans-agent/queries");
+        for (String name : names) {
+            String objectName = "com.cloudbees.clickstack.jetty:type=RequestLatency,name=" + name;
+            String prefix = "request_" + name + "_";
+            queries.appendChild(createMetricsQuery(objectName, "RequestCount", prefix + "count", "counter", metricsXmlDocument));
+            queries.appendChild(createMetricsQuery(objectName, "RequestsInFlight", prefix + "inFlight", metricsXmlDocument));
+            queries.appendChild(createMetricsQuery(objectName, "LatencyMean", prefix + "latency_mean", metricsXmlDocument));
+            queries.appendChild(createMetricsQuery(objectName, "Latency50thPercentile", prefix + "latency_p50", metricsXmlDocument));
+            queries.appendChild(createMetricsQuery(objectName, "Latency90thPercentile", prefix + "latency_p90", metricsXmlDocument));
+            queries.appendChild(createMetricsQuery(objectName, "Latency99thPercentile", prefix + "latency_p99", metricsXmlDocument));
+            queries.appendChild(createMetricsQuery(objectName, "Latency999thPercentile", prefix + "latency_p999", metricsXmlDocument));
+            queries.appendChild(createMetricsQuery(objectName, "LatencyMax", prefix + "latency_max", metricsXmlDocument));
+        }
+        queries.appendChild(createMetricsQuery("com.cloudbees.clickstack.jetty:type=RequestLatency,name=all",
+                "RequestsQueued", "request_queued", metricsXmlDocument));
+        return this;
+    }
+
+    /**
+     * Add a {@code RequestLogHandler} with an {@code AsyncBatchingRequestLog} to the handlers of the server. The
+     * settings are {@code requestlog.*} properties of {@code start.d/requestlog.ini}, see
+     * {@link #writeRequestLogProperties(Path, Path)}.
+     */
+    protected void addRequestLog(Document jettyXmlDocument) {
+        Element configure = jettyXmlDocument.getDocumentElement();
+
+        Element handlers = jettyXmlDocument.createElement("Ref");
+        handlers.setAttribute("refid", "Handlers");
+        configure.appendChild(handlers);
+
+        Element addHandler = jettyXmlDocument.createElement("Call");
+        addHandler.setAttribute("name", "addHandler");
+        handlers.appendChild(addHandler);
+
+        Element arg = jettyXmlDocument.createElement("Arg");
+        addHandler.appendChild(arg);
+
+        Element requestLogHandler = jettyXmlDocument.createElement("New");
+        requestLogHandler.setAttribute("id", "RequestLog");
+        requestLogHandler.setAttribute("class", "org.eclipse.jetty.server.handler.RequestLogHandler");
+        arg.appendChild(requestLogHandler);
+
+        Element setRequestLog = jettyXmlDocument.createElement("Set");
+        setRequestLog.setAttribute("name", "requestLog");
+        requestLogHandler.appendChild(setRequestLog);
+
+        Element requestLog = jettyXmlDocument.createElement("New");
+        requestLog.setAttribute("id", "RequestLogImpl");
+        requestLog.setAttribute("class", "com.cloudbees.clickstack.jetty.extras.log.AsyncBatchingRequestLog");
+        setRequestLog.appendChild(requestLog);
+
+        requestLog.appendChild(createJettyConfigSetPropertyDirective("filename", "requestlog.filename", null, jettyXmlDocument));
+        requestLog.appendChild(createJettyConfigSetPropertyDirective("extended", "requestlog.extended", "true", jettyXmlDocument));
+        requestLog.appendChild(createJettyConfigSetPropertyDirective("logLatency", "requestlog.latency", "true", jettyXmlDocument));
+        requestLog.appendChild(createJettyConfigSetPropertyDirective("logTimeZone", "requestlog.timezone", "GMT", jettyXmlDocument));
+        requestLog.appendChild(createJettyConfigSetPropertyDirective("preferProxiedForAddress", "requestlog.preferProxiedForAddress", "true", jettyXmlDocument));
+        requestLog.appendChild(createJettyConfigSetPropertyDirective("bufferSize", "requestlog.bufferSize", "8192", jettyXmlDocument));
+        requestLog.appendChild(createJettyConfigSetPropertyDirective("maxFileSize", "requestlog.maxFileSize", String.valueOf(100 * 1024 * 1024), jettyXmlDocument));
+        requestLog.appendChild(createJettyConfigSetPropertyDirective("rotationPeriod", "requestlog.rotationPeriod", "1440", jettyXmlDocument));
+        requestLog.appendChild(createJettyConfigSetPropertyDirective("retainFiles", "requestlog.retainFiles", "7", jettyXmlDocument));
+    }
+
+    /**
+     * Write the access log settings of the {@code access_log_*} runtime parameters in {@code start.d/requestlog.ini}.
+     */
+    protected void writeRequestLogProperties(@Nonnull Path jettyBase, @Nonnull Path logDir) throws IOException {
+        String format = metadata.getRuntimeParameter("jetty", "access_log_format", "extended");
+        if (!"extended".equals(format) && !"common".equals(format)) {
+            logger.warning("Unsupported access_log_format '" + format + "', use 'extended'");
+            format = "extended";
+        }
+        if (!"extended".equals(format) && isWarmUpEnabled(metadata)) {
+            // the warm-up requests are recognized by their User-Agent, not logged with the common format
+            logger.warning("access_log_format '" + format + "' not supported with the warm-up, use 'extended'");
+            format = "extended";
+        }
+        long maxFileSizeInMegaBytes = Long.parseLong(metadata.getRuntimeParameter("jetty", "access_log_max_file_size_mb", "100"));
+
+        StartIni.load(jettyBase.resolve("start.d/requestlog.ini"))
+                .setProperty("requestlog.filename", logDir.resolve("access.log").toString())
+                .setProperty("requestlog.extended", String.valueOf("extended".equals(format)))
+                .setProperty("requestlog.latency", metadata.getRuntimeParameter("jetty", "access_log_latency", "true"))
+                .setProperty("requestlog.bufferSize", String.valueOf(Integer.parseInt(metadata.getRuntimeParameter("jetty", "access_log_buffer_size", "8192"))))
+                .setProperty("requestlog.maxFileSize", String.valueOf(maxFileSizeInMegaBytes * 1024 * 1024))
+                .setProperty("requestlog.rotationPeriod", String.valueOf(Long.parseLong(metadata.getRuntimeParameter("jetty", "access_log_rotation_period", "1440"))))
+                .setProperty("requestlog.retainFiles", String.valueOf(Integer.parseInt(metadata.getRuntimeParameter("jetty", "access_log_retain_files", "7"))))
+                .save();
+    }
+
+    /**
+     * Replay the {@link #WARM_UP_REQUESTS_FILE} with a {@code WarmUp} listener once the server is started, before
+     * creating the readiness file.
+     */
+    protected void addWarmUp(Document jettyXmlDocument) {
+        Element addLifeCycleListener = jettyXmlDocument.createElement("Call");
+        addLifeCycleListener.setAttribute("name", "addLifeCycleListener");
+        Element arg = jettyXmlDocument.createElement("Arg");
+        addLifeCycleListener.appendChild(arg);
+
+        Element warmUp = jettyXmlDocument.createElement("New");
+        warmUp.setAttribute("id", "WarmUp");
+        warmUp.setAttribute("class", "com.cloudbees.clickstack.jetty.extras.warmup.WarmUp");
+        arg.appendChild(warmUp);
+        warmUp.appendChild(createJettyConfigSetPropertyDirective("requestsFile", "warmup.requestsFile", null, jettyXmlDocument));
+        warmUp.appendChild(createJettyConfigSetPropertyDirective("readinessFile", "warmup.readinessFile", null, jettyXmlDocument));
+        warmUp.appendChild(createJettyConfigSetDirective("concurrency",
+                String.valueOf(Integer.parseInt(metadata.getRuntimeParameter("jetty", "warmup_concurrency", "4"))), jettyXmlDocument));
+        warmUp.appendChild(createJettyConfigSetDirective("maxDuration",
+                String.valueOf(Long.parseLong(metadata.getRuntimeParameter("jetty", "warmup_max_duration", "60")) * 1000), jettyXmlDocument));
+        warmUp.appendChild(createJettyConfigSetDirective("maxRequests",
+                String.valueOf(Integer.parseInt(metadata.getRuntimeParameter("jetty", "warmup_max_requests", "10000"))), jettyXmlDocument));
+
+        jettyXmlDocument.getDocumentElement().appendChild(addLifeCycleListener);
+    }
+
+    protected void writeWarmUpProperties(@Nonnull Path jettyBase) throws IOException {
+        StartIni startIni = StartIni.load(jettyBase.resolve("start.d/warmup.ini"))
+                .setProperty("warmup.requestsFile", jettyBase.resolve(WARM_UP_REQUESTS_FILE).toString());
+        if (readinessFile != null) {
+            startIni.setProperty("warmup.readinessFile", readinessFile.toString());
+        }
+        startIni.save();
+    }
+
+    protected SetupJettyConfigurationFiles addWarmUpMetrics(Document metricsXmlDocument) {
+        String objectName = "com.cloudbees.clickstack.jetty:type=WarmUp,name=replay";
+        Element queries = XmlUtils.getUniqueElement(metricsXmlDocument, "/jmxtrans-agent/queries");
+        queries.appendChild(createMetricsQuery(objectName, "Duration", "warmup_duration", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "RequestCount", "warmup_requestCount", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "ErrorCount", "warmup_errorCount", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "CompilationTime", "warmup_compilationTime", metricsXmlDocument));
+        return this;
+    }
+
+    /**
+     * @return {@code true} if the {@code warmup_enabled} runtime parameter is {@code true}
+     */
+    public static boolean isWarmUpEnabled(@Nonnull Metadata metadata) {
+        return Boolean.parseBoolean(metadata.getRuntimeParameter("jetty", "warmup_enabled", "false"));
+    }
+
+    protected void addSharedMetricsExporter(Document jettyXmlDocument) {
+        Element addBean = jettyXmlDocument.createElement("Call");
+        addBean.setAttribute("name", "addBean");
+        Element arg = jettyXmlDocument.createElement("Arg");
+        addBean.appendChild(arg);
+
+        Element exporter = jettyXmlDocument.createElement("New");
+        exporter.setAttribute("id", "SharedMetricsExporter");
+        exporter.setAttribute("class", "com.cloudbees.clickstack.jetty.extras.metrics.SharedMetricsExporter");
+        arg.appendChild(exporter);
+        exporter.appendChild(createJettyConfigSetPropertyDirective("queriesFile", "metrics.queriesFile", null, jettyXmlDocument));
+        exporter.appendChild(createJettyConfigSetPropertyDirective("metricsFile", "metrics.sharedFile", null, jettyXmlDocument));
+        exporter.appendChild(createJettyConfigSetDirective("interval",
+                String.valueOf(Long.parseLong(metadata.getRuntimeParameter("jetty", "metrics_exporter_interval", "500"))), jettyXmlDocument));
+        exporter.appendChild(createJettyConfigSetPropertyDirective("httpPort", "metrics.httpPort",
+                String.valueOf(Integer.parseInt(metadata.getRuntimeParameter("jetty", "metrics_exporter_http_port", "0"))), jettyXmlDocument));
+
+        jettyXmlDocument.getDocumentElement().appendChild(addBean);
+    }
+
+    protected void writeSharedMetricsExporterProperties(@Nonnull Path jettyBase, @Nonnull Path sharedMetricsFile) throws IOException {
+        StartIni.load(jettyBase.resolve("start.d/metrics-exporter.ini"))
+                .setProperty("metrics.queriesFile", jettyBase.resolve("jetty-metrics.xml").toString())
+                .setProperty("metrics.sharedFile", sharedMetricsFile.toString())
+                .save();
+    }
+
+    protected SetupJettyConfigurationFiles addSharedMetricsExporterMetrics(Document metricsXmlDocument) {
+        String objectName = "com.cloudbees.clickstack.jetty:type=MetricsExporter,name=shared";
+        Element queries = XmlUtils.getUniqueElement(metricsXmlDocument, "/jmxtrans-agent/queries");
+        queries.appendChild(createMetricsQuery(objectName, "PublishDuration", "metricsexporter_publishDuration", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "UnavailableCount", "metricsexporter_unavailableCount", metricsXmlDocument));
+        return this;
+    }
+
+    private boolean isSharedMetricsExporterEnabled() {
+        return sharedMetricsFile != null && Boolean.parseBoolean(metadata.getRuntimeParameter("jetty", "metrics_exporter_enabled", "true"));
+    }
+
+    /**
+     * Sample the request threads with a {@code StackSamplingProfiler} bean, the collapsed stack files are written in
+     * the directory of {@link #writeStackSamplingProfilerProperties(Path, Path)}.
+     */
+    protected void addStackSamplingProfiler(Document jettyXmlDocument) {
+        Element addBean = jettyXmlDocument.createElement("Call");
+        addBean.setAttribute("name", "addBean");
+        Element arg = jettyXmlDocument.createElement("Arg");
+        addBean.appendChild(arg);
+
+        Element profiler = jettyXmlDocument.createElement("New");
+        profiler.setAttribute("id", "StackSamplingProfiler");
+        profiler.setAttribute("class", "com.cloudbees.clickstack.jetty.extras.profiler.StackSamplingProfiler");
+        arg.appendChild(profiler);
+        Element serverArg = jettyXmlDocument.createElement("Arg");
+        Element serverRef = jettyXmlDocument.createElement("Ref");
+        serverRef.setAttribute("refid", "Server");
+        serverArg.appendChild(serverRef);
+        profiler.appendChild(serverArg);
+
+        profiler.appendChild(createJettyConfigSetPropertyDirective("directory", "profiler.directory", null, jettyXmlDocument));
+        profiler.appendChild(createJettyConfigSetDirective("interval",
+                String.valueOf(Long.parseLong(metadata.getRuntimeParameter("jetty", "profiler_interval", "1000"))), jettyXmlDocument));
+        profiler.appendChild(createJettyConfigSetDirective("maxDepth",
+                String.valueOf(Integer.parseInt(metadata.getRuntimeParameter("jetty", "profiler_max_depth", "128"))), jettyXmlDocument));
+        profiler.appendChild(createJettyConfigSetDirective("rotationPeriod",
+                String.valueOf(Long.parseLong(metadata.getRuntimeParameter("jetty", "profiler_rotation_period", "5"))), jettyXmlDocument));
+        profiler.appendChild(createJettyConfigSetDirective("retainFiles",
+                String.valueOf(Integer.parseInt(metadata.getRuntimeParameter("jetty", "profiler_retain_files", "288"))), jettyXmlDocument));
+
+        jettyXmlDocument.getDocumentElement().appendChild(addBean);
+    }
+
+    protected void writeStackSamplingProfilerProperties(@Nonnull Path jettyBase, @Nonnull Path logDir) throws IOException {
+        StartIni.load(jettyBase.resolve("start.d/profiler.ini"))
+                .setProperty("profiler.directory", logDir.toString())
+                .save();
+    }
+
+    protected SetupJettyConfigurationFiles addStackSamplingProfilerMetrics(Document metricsXmlDocument) {
+        String objectName = "com.cloudbees.clickstack.jetty:type=StackSamplingProfiler,name=requests";
+        Element queries = XmlUtils.getUniqueElement(metricsXmlDocument, "/jmxtrans-agent/queries");
+        queries.appendChild(createMetricsQuery(objectName, "SampleCount", "profiler_sampleCount", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "OverheadTime", "profiler_overheadTime", "counter", metricsXmlDocument));
+        return this;
+    }
+
+    private boolean isStackSamplingProfilerEnabled() {
+        return logDir != null && Boolean.parseBoolean(metadata.getRuntimeParameter("jetty", "profiler_enabled", "false"));
+    }
+
+    protected SetupJettyConfigurationFiles addRequestLogMetrics(Document metricsXmlDocument) {
+        String objectName = "com.cloudbees.clickstack.jetty:type=RequestLog,name=access.log";
+        Element queries = XmlUtils.getUniqueElement(metricsXmlDocument, "/jmxtrans-agent/queries");
+        queries.appendChild(createMetricsQuery(objectName, "RecordCount", "accesslog_recordCount", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "DroppedCount", "accesslog_droppedCount", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "BytesWritten", "accesslog_bytesWritten", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "QueueSize", "accesslog_queueSize", metricsXmlDocument));
+        return this;
+    }
+
+    private boolean isAccessLogEnabled() {
+        return logDir != null && Boolean.parseBoolean(metadata.getRuntimeParameter("jetty", "access_log_enabled", "true"));
     }
 
     protected void addXForwardedForSupport(Document jettyXmlDocument) {
@@ -94,9 +809,17 @@ public class SetupJettyConfigurationFiles {
         params.put("username", database.getUsername());
         params.put("password", database.getPassword());
 
-        // by default max to 20 connections which is the limit of CloudBees MySQL databases
-        params.put("maxActive", "20");
-        params.put("maxIdle", "10");
+        // share the connection limit of the database (20 for CloudBees MySQL databases) between the instances of
+        // the application, no need for more connections than request threads
+        int connectionLimit = Integer.parseInt(metadata.getRuntimeParameter("jetty", "datasource." + database.getName() + ".connection_limit",
+                String.valueOf(DEFAULT_DATABASE_CONNECTION_LIMIT)));
+        int instances = Integer.parseInt(metadata.getRuntimeParameter("jetty", "instances", "1"));
+        int maxActive = Math.max(1, connectionLimit / Math.max(1, instances));
+        if (serverSizing != null && !isVirtualThreadMode(metadata, javaMajorVersion)) {
+            maxActive = Math.min(maxActive, serverSizing.threadsMax);
+        }
+        params.put("maxActive", String.valueOf(maxActive));
+        params.put("maxIdle", String.valueOf(Math.max(1, maxActive / 2)));
         params.put("minIdle", "1");
 
         // test on borrow and while idle to release idle connections
@@ -105,6 +828,15 @@ public class SetupJettyConfigurationFiles {
         params.put("validationQuery", database.getValidationQuery());
         params.put("validationInterval", "5000"); // 5 secs
 
+        // expose the pool in JMX for jetty-metrics.xml
+        params.put("name", database.getName());
+        params.put("jmxEnabled", "true");
+        params.put("jdbcInterceptors", getJdbcInterceptors(database));
+
+        params.putAll(getDatabaseOverrides(database));
+        logger.info("DataSource " + database.getName() + " pool: maxActive=" + params.get("maxActive") +
+                ", maxIdle=" + params.get("maxIdle") + ", minIdle=" + params.get("minIdle"));
+
         for (Map.Entry<String, String> param : params.entrySet()) {
             dataSourceInstance.appendChild(createJettyConfigSetDirective(param.getKey(), param.getValue(), contextDocument));
         }
@@ -113,6 +845,147 @@ public class SetupJettyConfigurationFiles {
         return this;
     }
 
+    /**
+     * <ul>
+     * <li>JMX registration of the pool</li>
+     * <li>cache of the prepared statements of each connection ({@code statement_cache_size}, 0 to disable)</li>
+     * <li>query latency statistics and slow queries logging ({@code slow_query_threshold} in milliseconds)</li>
+     * </ul>
+     * Settings are read from {@code datasource.${databaseName}.xxx} then {@code datasource.xxx} runtime parameters.
+     */
+    @Nonnull
+    protected String getJdbcInterceptors(@Nonnull Database database) {
+        int statementCacheSize = Integer.parseInt(getDatabaseRuntimeParameter(database, "statement_cache_size", "50"));
+        int slowQueryThreshold = Integer.parseInt(getDatabaseRuntimeParameter(database, "slow_query_threshold", "1000"));
+
+        StringBuilder interceptors = new StringBuilder("com.cloudbees.clickstack.jetty.extras.jdbc.ConnectionPoolJmxRegistration");
+        if (statementCacheSize > 0) {
+            interceptors.append(";org.apache.tomcat.jdbc.pool.interceptor.StatementCache(prepared=true,callable=false,max=")
+                    .append(statementCacheSize).append(")");
+        }
+        interceptors.append(";com.cloudbees.clickstack.jetty.extras.jdbc.QueryStatisticsInterceptor(threshold=")
+                .append(slowQueryThreshold).append(")");
+        return interceptors.toString();
+    }
+
+    private String getDatabaseRuntimeParameter(@Nonnull Database database, @Nonnull String name, @Nonnull String defaultValue) {
+        String value = metadata.getRuntimeParameter("jetty", "datasource." + name, defaultValue);
+        return metadata.getRuntimeParameter("jetty", "datasource." + database.getName() + "." + name, value);
+    }
+
+    /**
+     * Pool settings of the {@code datasource.${databaseName}.${property}} runtime parameters of the {@code jetty}
+     * section, restricted to the supported {@link #databaseProperties}.
+     */
+    @Nonnull
+    protected Map<String, String> getDatabaseOverrides(@Nonnull Database database) {
+        Map<String, String> overrides = new TreeMap<>();
+        for (String property : databaseProperties) {
+            String name = "datasource." + database.getName() + "." + property;
+            String value = metadata.getRuntimeParameter("jetty", name, null);
+            if (value == null) {
+                continue;
+            }
+            value = value.trim();
+            if (databaseIntegerProperties.contains(property) && !value.matches("-?\\d+")) {
+                logger.warning("Ignore invalid integer value '" + value + "' of " + name);
+            } else if (databaseBooleanProperties.contains(property) && !value.matches("true|false")) {
+                logger.warning("Ignore invalid boolean value '" + value + "' of " + name);
+            } else {
+                overrides.put(property, value);
+            }
+        }
+        return overrides;
+    }
+
+    /**
+     * Active, idle and waiting connections of the pool registered by {@code ConnectionPoolJmxRegistration} and query
+     * statistics of {@code QueryStatisticsInterceptor}.
+     */
+    protected SetupJettyConfigurationFiles addDatabaseMetrics(Database database, Document metricsXmlDocument) {
+        String objectName = "tomcat.jdbc:type=ConnectionPool,name=" + database.getName();
+        String prefix = "datasource_" + database.getName() + "_";
+        Element queries = XmlUtils.getUniqueElement(metricsXmlDocument, "/jmxtrans-agent/queries");
+        queries.appendChild(createMetricsQuery(objectName, "Active", prefix + "active", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "Idle", prefix + "idle", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "Size", prefix + "size", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "WaitCount", prefix + "waitCount", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "MaxActive", prefix + "maxActive", metricsXmlDocument));
+
+        String statisticsObjectName = "com.cloudbees.clickstack.jetty:type=QueryStatistics,name=" + database.getName();
+        queries.appendChild(createMetricsQuery(statisticsObjectName, "QueryCount", prefix + "queryCount", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(statisticsObjectName, "SlowQueryCount", prefix + "slowQueryCount", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(statisticsObjectName, "FailedQueryCount", prefix + "failedQueryCount", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(statisticsObjectName, "PrepareCount", prefix + "prepareCount", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(statisticsObjectName, "QueryTime", prefix + "queryTime", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(statisticsObjectName, "Latency50thPercentile", prefix + "latency_p50", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(statisticsObjectName, "Latency90thPercentile", prefix + "latency_p90", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(statisticsObjectName, "Latency99thPercentile", prefix + "latency_p99", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(statisticsObjectName, "LatencyMax", prefix + "latency_max", metricsXmlDocument));
+        return this;
+    }
+
+    private Element createMetricsQuery(String objectName, String attribute, String resultAlias, Document metricsXmlDocument) {
+        return createMetricsQuery(objectName, attribute, resultAlias, null, metricsXmlDocument);
+    }
+
+    private Element createMetricsQuery(String objectName, String attribute, String resultAlias, @Nullable String type, Document metricsXmlDocument) {
+        return createMetricsQuery(objectName, attribute, null, resultAlias, type, metricsXmlDocument);
+    }
+
+    private Element createMetricsQuery(String objectName, String attribute, @Nullable String key, String resultAlias, @Nullable String type, Document metricsXmlDocument) {
+        Element query = metricsXmlDocument.createElement("query");
+        query.setAttribute("objectName", objectName);
+        query.setAttribute("attribute", attribute);
+        if (key != null) {
+            query.setAttribute("key", key);
+        }
+        if (type != null) {
+            query.setAttribute("type", type);
+        }
+        query.setAttribute("resultAlias", resultAlias);
+        return query;
+    }
+
+    /**
+     * {@code <Set name="${name}"><Property name="${property}" default="${defaultValue}"/></Set>}
+     */
+    private Element createJettyConfigSetPropertyDirective(String name, String property, @Nullable String defaultValue, Document contextDocument) {
+        Element setElement = contextDocument.createElement("Set");
+        setElement.setAttribute("name", name);
+        Element propertyElement = contextDocument.createElement("Property");
+        propertyElement.setAttribute("name", property);
+        if (defaultValue != null) {
+            propertyElement.setAttribute("default", defaultValue);
+        }
+        setElement.appendChild(propertyElement);
+        return setElement;
+    }
+
+    private Element createJettyConfigArg(String value, Document contextDocument) {
+        return createJettyConfigArg(null, value, contextDocument);
+    }
+
+    private Element createJettyConfigArg(@Nullable String type, String value, Document contextDocument) {
+        Element argElement = contextDocument.createElement("Arg");
+        if (type != null) {
+            argElement.setAttribute("type", type);
+        }
+        argElement.setTextContent(value);
+        return argElement;
+    }
+
+    /**
+     * {@code <Call name="setInitParameter"><Arg>${name}</Arg><Arg>${value}</Arg></Call>}
+     */
+    private Element createJettyConfigSetInitParameterDirective(String name, String value, Document contextDocument) {
+        Element callElement = contextDocument.createElement("Call");
+        callElement.setAttribute("name", "setInitParameter");
+        callElement.appendChild(createJettyConfigArg(name, contextDocument));
+        callElement.appendChild(createJettyConfigArg(value, contextDocument));
+        return callElement;
+    }
+
     private Element createJettyConfigSetDirective(String name, String value, Document contextDocument) {
         Element setElement = contextDocument.createElement("Set");
         setElement.setAttribute("name", name);
@@ -125,9 +998,110 @@ public class SetupJettyConfigurationFiles {
         return this;
     }
 
+    /**
+     * Store the sessions in the memcached nodes of the {@link SessionStore} with a {@code MemcachedSessionManager},
+     * or in {@code ${jetty.base}/sessions} if the {@code session_store} runtime parameter is
+     * {@link #SESSION_STORE_FILE}.
+     */
     protected SetupJettyConfigurationFiles addSessionStore(SessionStore store, Document appXmlDocument) {
-        logger.warning("Ignore addSessionStore(" + store + ")");
+        if (SESSION_STORE_FILE.equals(metadata.getRuntimeParameter("jetty", "session_store", SESSION_STORE_MEMCACHED))) {
+            logger.info("Ignore session store " + store.getName() + ", use " + SESSION_STORE_FILE + " session store");
+            return addFileSessionStore(appXmlDocument);
+        }
+
+        Element sessionManager = appXmlDocument.createElement("New");
+        sessionManager.setAttribute("id", "SessionManager");
+        sessionManager.setAttribute("class", "com.cloudbees.clickstack.jetty.extras.session.MemcachedSessionManager");
+        sessionManager.appendChild(createJettyConfigSetDirective("servers", store.getNodes(), appXmlDocument));
+        if (store.getUsername() != null && !store.getUsername().isEmpty()) {
+            sessionManager.appendChild(createJettyConfigSetDirective("username", store.getUsername(), appXmlDocument));
+            sessionManager.appendChild(createJettyConfigSetDirective("password", store.getPassword(), appXmlDocument));
+        }
+        sessionManager.appendChild(createJettyConfigSetDirective("maxLocalSessions",
+                String.valueOf(Integer.parseInt(metadata.getRuntimeParameter("jetty", "session_near_cache_size", "1000"))), appXmlDocument));
+        sessionManager.appendChild(createJettyConfigSetDirective("stalePeriod",
+                String.valueOf(Integer.parseInt(metadata.getRuntimeParameter("jetty", "session_stale_period", "0"))), appXmlDocument));
+        sessionManager.appendChild(createJettyConfigSetDirective("writeBehindDelay",
+                String.valueOf(Long.parseLong(metadata.getRuntimeParameter("jetty", "session_write_behind_delay", "100"))), appXmlDocument));
+
+        setSessionManager(sessionManager, appXmlDocument);
+        return this;
+    }
+
+    /**
+     * Persist the sessions of a single instance application in {@code ${jetty.base}/sessions} with a
+     * {@code HashSessionManager}: sessions survive restarts and the idle sessions are evicted from the heap.
+     */
+    protected SetupJettyConfigurationFiles addFileSessionStore(Document appXmlDocument) {
+        Element sessionManager = appXmlDocument.createElement("New");
+        sessionManager.setAttribute("id", "SessionManager");
+        sessionManager.setAttribute("class", "org.eclipse.jetty.server.session.HashSessionManager");
+
+        Element setStoreDirectory = appXmlDocument.createElement("Set");
+        setStoreDirectory.setAttribute("name", "storeDirectory");
+        Element storeDirectory = appXmlDocument.createElement("New");
+        storeDirectory.setAttribute("class", "java.io.File");
+        // System.getProperty("session.storeDirectory", jetty.base + "/sessions")
+        Element getStoreDirectoryProperty = appXmlDocument.createElement("Call");
+        getStoreDirectoryProperty.setAttribute("class", "java.lang.System");
+        getStoreDirectoryProperty.setAttribute("name", "getProperty");
+        getStoreDirectoryProperty.appendChild(createJettyConfigArg(SESSION_STORE_DIRECTORY_PROPERTY, appXmlDocument));
+        Element defaultStoreDirectoryArg = appXmlDocument.createElement("Arg");
+        Element jettyBase = appXmlDocument.createElement("SystemProperty");
+        jettyBase.setAttribute("name", "jetty.base");
+        jettyBase.setAttribute("default", ".");
+        defaultStoreDirectoryArg.appendChild(jettyBase);
+        defaultStoreDirectoryArg.appendChild(appXmlDocument.createTextNode("/sessions"));
+        getStoreDirectoryProperty.appendChild(defaultStoreDirectoryArg);
+        Element storeDirectoryArg = appXmlDocument.createElement("Arg");
+        storeDirectoryArg.appendChild(getStoreDirectoryProperty);
+        storeDirectory.appendChild(storeDirectoryArg);
+        setStoreDirectory.appendChild(storeDirectory);
+        sessionManager.appendChild(setStoreDirectory);
+
+        sessionManager.appendChild(createJettyConfigSetDirective("savePeriod",
+                String.valueOf(Integer.parseInt(metadata.getRuntimeParameter("jetty", "session_save_period", "60"))), appXmlDocument));
+        sessionManager.appendChild(createJettyConfigSetDirective("idleSavePeriod",
+                String.valueOf(Integer.parseInt(metadata.getRuntimeParameter("jetty", "session_idle_save_period", "300"))), appXmlDocument));
+        sessionManager.appendChild(createJettyConfigSetDirective("lazyLoad", "true", appXmlDocument));
+        sessionManager.appendChild(createJettyConfigSetDirective("deleteUnrestorableSessions", "true", appXmlDocument));
 
+        setSessionManager(sessionManager, appXmlDocument);
+        return this;
+    }
+
+    /**
+     * {@code <Get name="sessionHandler"><Set name="sessionManager">...</Set></Get>}
+     */
+    private void setSessionManager(Element sessionManager, Document appXmlDocument) {
+        Element getSessionHandler = appXmlDocument.createElement("Get");
+        getSessionHandler.setAttribute("name", "sessionHandler");
+        Element setSessionManager = appXmlDocument.createElement("Set");
+        setSessionManager.setAttribute("name", "sessionManager");
+        setSessionManager.appendChild(sessionManager);
+        getSessionHandler.appendChild(setSessionManager);
+        appXmlDocument.getDocumentElement().appendChild(getSessionHandler);
+    }
+
+    protected SetupJettyConfigurationFiles addSessionStoreMetrics(SessionStore store, Document metricsXmlDocument) {
+        Element queries = XmlUtils.getUniqueElement(metricsXmlDocument, "/jmxtrans-agent/queries");
+        if (SESSION_STORE_FILE.equals(metadata.getRuntimeParameter("jetty", "session_store", SESSION_STORE_MEMCACHED))) {
+            queries.appendChild(createMetricsQuery("org.eclipse.jetty.server.session:type=hashsessionmanager,id=0",
+                    "sessions", "session_sessions", metricsXmlDocument));
+            return this;
+        }
+        String objectName = "com.cloudbees.clickstack.jetty:type=SessionStore,name=memcached";
+        queries.appendChild(createMetricsQuery(objectName, "LocalHitCount", "session_localHitCount", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "RemoteHitCount", "session_remoteHitCount", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "MissCount", "session_missCount", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "WriteCount", "session_writeCount", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "WriteFailureCount", "session_writeFailureCount", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "ConflictCount", "session_conflictCount", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "SerializationTime", "session_serializationTime", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "DeserializationTime", "session_deserializationTime", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "SerializedBytes", "session_serializedBytes", "counter", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "LocalSessionCount", "session_localSessions", metricsXmlDocument));
+        queries.appendChild(createMetricsQuery(objectName, "PendingWriteCount", "session_pendingWrites", metricsXmlDocument));
         return this;
     }
 
@@ -137,31 +1111,170 @@ public class SetupJettyConfigurationFiles {
         return this;
     }
 
-    protected void buildJettyConfiguration(Metadata metadata, Document jettyXmlDocument, Document appXmlDocument) throws ParserConfigurationException {
+    /**
+     * Point the context to the webapp exploded at setup time instead of letting Jetty extract the war at each start.
+     * <p/>
+     * Fallback to the packaged war if the application provides its own context XML or if the webapp has not been
+     * exploded.
+     */
+    protected void configureWebAppMode(@Nonnull Path jettyBase, @Nonnull Path jettyHome, @Nonnull Document appXmlDocument) throws IOException {
+        // generated by a previous setup
+        Files.deleteIfExists(jettyBase.resolve("start.d/quickstart.ini"));
+
+        String webAppMode = metadata.getRuntimeParameter("jetty", "webapp_mode", WEBAPP_MODE_WAR);
+        if (WEBAPP_MODE_WAR.equals(webAppMode)) {
+            return;
+        } else if (!WEBAPP_MODE_EXPLODED.equals(webAppMode) && !WEBAPP_MODE_QUICKSTART.equals(webAppMode)) {
+            logger.warning("Unsupported webapp_mode '" + webAppMode + "', use '" + WEBAPP_MODE_WAR + "'");
+            return;
+        }
+
+        if (Files.exists(jettyBase.resolve("app-initial.xml"))) {
+            logger.warning("Application provides its own context XML, ignore webapp_mode '" + webAppMode + "'");
+            return;
+        }
+        Path explodedWebAppDir = jettyBase.resolve(EXPLODED_WEBAPP_DIR);
+        if (!Files.isDirectory(explodedWebAppDir.resolve("WEB-INF"))) {
+            logger.warning("No exploded webapp found in " + explodedWebAppDir + ", ignore webapp_mode '" + webAppMode + "'");
+            return;
+        }
+
+        if (WEBAPP_MODE_QUICKSTART.equals(webAppMode)) {
+            if (Files.exists(jettyHome.resolve("modules/quickstart.mod"))) {
+                logger.info("Configure quickstart webapp");
+                appXmlDocument.getDocumentElement().setAttribute("class", "org.eclipse.jetty.quickstart.QuickStartWebApp");
+                appXmlDocument.getDocumentElement().appendChild(createJettyConfigSetDirective("autoPreconfigure", "true", appXmlDocument));
+                Files.write(Files.createDirectories(jettyBase.resolve("start.d")).resolve("quickstart.ini"),
+                        Arrays.asList("--module=quickstart"), StandardCharsets.UTF_8);
+            } else {
+                logger.warning("Quickstart module not found in " + jettyHome + ", fallback to webapp_mode '" + WEBAPP_MODE_EXPLODED + "'");
+            }
+        }
+
+        logger.info("Configure exploded webapp " + explodedWebAppDir);
+        Element war = XmlUtils.getUniqueElement(appXmlDocument, "/Configure/Set[@name='war']");
+        while (war.hasChildNodes()) {
+            war.removeChild(war.getFirstChild());
+        }
+        Element jettyBaseProperty = appXmlDocument.createElement("SystemProperty");
+        jettyBaseProperty.setAttribute("name", "jetty.base");
+        jettyBaseProperty.setAttribute("default", ".");
+        war.appendChild(jettyBaseProperty);
+        war.appendChild(appXmlDocument.createTextNode("/" + EXPLODED_WEBAPP_DIR));
+
+        Element root = appXmlDocument.getDocumentElement();
+        root.appendChild(createJettyConfigSetDirective("extractWAR", "false", appXmlDocument));
+        root.appendChild(createJettyConfigSetDirective("copyWebDir", "false", appXmlDocument));
+        root.appendChild(createJettyConfigSetDirective("copyWebInf", "false", appXmlDocument));
+
+        // restrict the WEB-INF/lib jars scanned for annotations and fragments
+        String webInfIncludeJarPattern = metadata.getRuntimeParameter("jetty", "webinf_include_jar_pattern", "");
+        if (!webInfIncludeJarPattern.isEmpty()) {
+            Element setAttribute = appXmlDocument.createElement("Call");
+            setAttribute.setAttribute("name", "setAttribute");
+            Element name = appXmlDocument.createElement("Arg");
+            name.setTextContent("org.eclipse.jetty.server.webapp.WebInfIncludeJarPattern");
+            setAttribute.appendChild(name);
+            Element value = appXmlDocument.createElement("Arg");
+            value.setTextContent(webInfIncludeJarPattern);
+            setAttribute.appendChild(value);
+            root.appendChild(setAttribute);
+        }
+    }
+
+    protected void buildJettyConfiguration(Metadata metadata, Document jettyXmlDocument, Document appXmlDocument, Document metricsXmlDocument) throws ParserConfigurationException {
 
         String message = "File generated by jetty9-clickstack at " + new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date());
 
         appXmlDocument.appendChild(appXmlDocument.createComment(message));
         jettyXmlDocument.appendChild(jettyXmlDocument.createComment(message));
+        metricsXmlDocument.appendChild(metricsXmlDocument.createComment(message));
 
+        boolean sessionStore = false;
         for (Resource resource : metadata.getResources().values()) {
             if (resource instanceof Database) {
                 addDatabase((Database) resource, appXmlDocument);
+                addDatabaseMetrics((Database) resource, metricsXmlDocument);
             } else if (resource instanceof Email) {
                 addEmail((Email) resource, appXmlDocument);
             } else if (resource instanceof SessionStore) {
                 addSessionStore((SessionStore) resource, appXmlDocument);
+                addSessionStoreMetrics((SessionStore) resource, metricsXmlDocument);
+                sessionStore = true;
             }
         }
+        if (!sessionStore && SESSION_STORE_FILE.equals(metadata.getRuntimeParameter("jetty", "session_store", SESSION_STORE_MEMORY))) {
+            addFileSessionStore(appXmlDocument);
+        }
         addPrivateAppValve(metadata, appXmlDocument);
 
+        if (jvmErgonomics != null) {
+            addJvmMetrics(jvmErgonomics, metricsXmlDocument);
+        }
+
         addXForwardedForSupport(jettyXmlDocument);
+
+        if (isCompressionEnabled(metadata)) {
+            addCompressionHandler(jettyXmlDocument);
+            addCompressionMetrics(metricsXmlDocument);
+            addPrecompressedStaticResources(appXmlDocument);
+        }
+
+        // inside the latency and statistics handlers to count the queued and rejected requests
+        if (Boolean.parseBoolean(metadata.getRuntimeParameter("jetty", "admission_control_enabled", "false"))) {
+            addAdmissionControlHandler(jettyXmlDocument);
+            addAdmissionControlMetrics(metricsXmlDocument);
+        }
+
+        if (Boolean.parseBoolean(metadata.getRuntimeParameter("jetty", "request_latency_enabled", "true"))) {
+            String patterns = metadata.getRuntimeParameter("jetty", "request_latency_patterns", "");
+            addRequestLatencyHandler(patterns, jettyXmlDocument);
+            addRequestLatencyMetrics(patterns, metricsXmlDocument);
+        }
+
+        if (Boolean.parseBoolean(metadata.getRuntimeParameter("jetty", "static_cache_enabled", "true"))) {
+            addStaticResourceCache(appXmlDocument);
+            addStaticResourceCacheMetrics(metricsXmlDocument);
+        }
+
+        if (isAccessLogEnabled()) {
+            addRequestLog(jettyXmlDocument);
+            addRequestLogMetrics(metricsXmlDocument);
+        }
+
+        if (isWarmUpEnabled(metadata)) {
+            addWarmUp(jettyXmlDocument);
+            addWarmUpMetrics(metricsXmlDocument);
+        }
+
+        if (isStackSamplingProfilerEnabled()) {
+            addStackSamplingProfiler(jettyXmlDocument);
+            addStackSamplingProfilerMetrics(metricsXmlDocument);
+        }
+
+        if (isSharedMetricsExporterEnabled()) {
+            addSharedMetricsExporter(jettyXmlDocument);
+            addSharedMetricsExporterMetrics(metricsXmlDocument);
+        }
+
+        String threadMode = metadata.getRuntimeParameter("jetty", "thread_mode", THREAD_MODE_PLATFORM);
+        if (isVirtualThreadMode(metadata, javaMajorVersion)) {
+            logger.info("Dispatch requests on virtual threads");
+            addVirtualThreadPool(jettyXmlDocument);
+            addVirtualThreadSchedulerMetrics(metricsXmlDocument);
+        } else {
+            if (!THREAD_MODE_PLATFORM.equals(threadMode)) {
+                logger.warning("Unsupported thread_mode '" + threadMode + "' with java " + javaMajorVersion + ", use '" + THREAD_MODE_PLATFORM + "'");
+            }
+            addQueuedThreadPoolMetrics(metricsXmlDocument);
+        }
     }
 
     public void buildJettyConfiguration(@Nonnull Path jettyBase, @Nonnull Path jettyHome) throws Exception {
 
-        Path jettyXmlFile = jettyHome.resolve("etc/jetty.xml");
-        Document jettyXmlDocument = XmlUtils.loadXmlDocumentFromPath(jettyXmlFile);
+        // jetty home is read-only and may be shared with other apps, the generated jetty.xml overrides it in jetty base
+        Document jettyXmlDocument = XmlUtils.loadXmlDocumentFromPath(jettyHome.resolve("etc/jetty.xml"));
+        Path jettyXmlFile = Files.createDirectories(jettyBase.resolve("etc")).resolve("jetty.xml");
         XmlUtils.checkRootElement(jettyXmlDocument, "Configure");
 
         Path appXmlFile = jettyBase.resolve("webapps/app.xml");
@@ -169,7 +1282,24 @@ public class SetupJettyConfigurationFiles {
         Document appXmlDocument = XmlUtils.loadXmlDocumentFromPath(appXmlFile);
         XmlUtils.checkRootElement(appXmlDocument, "Configure");
 
-        this.buildJettyConfiguration(metadata, jettyXmlDocument, appXmlDocument);
+        Path metricsXmlFile = jettyBase.resolve("jetty-metrics.xml");
+        Document metricsXmlDocument = XmlUtils.loadXmlDocumentFromPath(metricsXmlFile);
+        XmlUtils.checkRootElement(metricsXmlDocument, "jmxtrans-agent");
+
+        this.buildJettyConfiguration(metadata, jettyXmlDocument, appXmlDocument, metricsXmlDocument);
+        this.configureWebAppMode(jettyBase, jettyHome, appXmlDocument);
+        if (isAccessLogEnabled()) {
+            this.writeRequestLogProperties(jettyBase, logDir);
+        }
+        if (isWarmUpEnabled(metadata)) {
+            this.writeWarmUpProperties(jettyBase);
+        }
+        if (isStackSamplingProfilerEnabled()) {
+            this.writeStackSamplingProfilerProperties(jettyBase, logDir);
+        }
+        if (isSharedMetricsExporterEnabled()) {
+            this.writeSharedMetricsExporterProperties(jettyBase, sharedMetricsFile);
+        }
 
         // see http://permalink.gmane.org/gmane.comp.ide.eclipse.jetty.user/1745
         Map<String, String> outputProperties = new HashMap<>();
@@ -178,5 +1308,6 @@ public class SetupJettyConfigurationFiles {
 
         XmlUtils.flush(appXmlDocument, Files.newOutputStream(appXmlFile), outputProperties);
         XmlUtils.flush(jettyXmlDocument, Files.newOutputStream(jettyXmlFile), outputProperties);
+        XmlUtils.flush(metricsXmlDocument, Files.newOutputStream(metricsXmlFile), Collections.<String, String>emptyMap());
     }
 }
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the setup phases as a dependency graph: a phase is started as soon as all the phases it depends on are
+ * completed, independent phases run concurrently on a bounded executor.
+ * <p/>
+ * The first failing phase stops the pipeline: no other phase is started, running phases are interrupted and the
+ * failure is rethrown by {@link #execute()}.
+ * <p/>
+ * With a manifest, an {@link IncrementalPhase} is skipped when the fingerprint of its inputs is the one of its last
+ * successful execution and all the phases it depends on have been skipped. The fingerprint of a phase is removed from
+ * the manifest before its execution and written back once it succeeded, a phase interrupted by the failure or the
+ * kill of a previous setup is executed again.
+ */
+public class SetupPipeline {
+
+    public interface Phase {
+        void execute() throws Exception;
+    }
+
+    public abstract static class IncrementalPhase implements Phase {
+        /**
+         * @return fingerprint of the inputs of the phase
+         */
+        @Nonnull
+        public abstract String getInputsFingerprint() throws Exception;
+
+        /**
+         * Called instead of {@link #execute()} when the phase is skipped, restore the in-memory state produced by the
+         * phase.
+         */
+        public void skip() throws Exception {
+        }
+    }
+
+    public enum Status {
+        PENDING, RUNNING, SUCCESS, SKIPPED, FAILURE, CANCELLED
+    }
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Map<String, PhaseDefinition> phases = new LinkedHashMap<>();
+
+    private final int parallelism;
+
+    private long startTimeInNanos;
+
+    private long durationInNanos;
+
+    private volatile boolean aborted;
+
+    @Nullable
+    private Path manifestFile;
+
+    /**
+     * Fingerprints of the inputs of the last successful execution of the incremental phases
+     */
+    private final Map<String, String> manifest = new TreeMap<>();
+
+    public SetupPipeline(int parallelism) {
+        Preconditions.checkArgument(parallelism > 0, "Invalid parallelism %s", parallelism);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Skip the {@link IncrementalPhase}s whose inputs did not change since their last execution recorded in the given
+     * manifest.
+     */
+    @Nonnull
+    public SetupPipeline withManifest(@Nullable Path manifestFile) {
+        this.manifestFile = manifestFile;
+        return this;
+    }
+
+    /**
+     * @param name         unique name of the phase
+     * @param phase        the phase
+     * @param dependencies names of the phases that must be completed before this phase is started.
+     *                     They must have been previously added to the pipeline.
+     */
+    @Nonnull
+    public SetupPipeline addPhase(@Nonnull String name, @Nonnull Phase phase, @Nonnull String... dependencies) {
+        Preconditions.checkState(!phases.containsKey(name), "Phase %s already defined", name);
+        for (String dependency : dependencies) {
+            Preconditions.checkArgument(phases.containsKey(dependency), "Unknown dependency %s for phase %s", dependency, name);
+        }
+        phases.put(name, new PhaseDefinition(name, phase, Arrays.asList(dependencies)));
+        return this;
+    }
+
+    public void execute() throws Exception {
+        loadManifest();
+
+        Map<String, Integer> remainingDependencies = new HashMap<>();
+        Map<String, List<PhaseDefinition>> dependents = new HashMap<>();
+        for (PhaseDefinition phase : phases.values()) {
+            remainingDependencies.put(phase.name, phase.dependencies.size());
+            for (String dependency : phase.dependencies) {
+                List<PhaseDefinition> list = dependents.get(dependency);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    dependents.put(dependency, list);
+                }
+                list.add(phase);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(parallelism, Math.max(1, phases.size())),
+                new ThreadFactoryBuilder().setNameFormat("setup-phase-%d").setDaemon(true).build());
+        CompletionService<PhaseDefinition> completionService = new ExecutorCompletionService<>(executor);
+
+        aborted = false;
+        startTimeInNanos = System.nanoTime();
+        int running = 0;
+        try {
+            for (PhaseDefinition phase : phases.values()) {
+                if (phase.dependencies.isEmpty()) {
+                    submit(phase, completionService);
+                    running++;
+                }
+            }
+
+            while (running > 0) {
+                Future<PhaseDefinition> future = completionService.take();
+                running--;
+                PhaseDefinition completed;
+                try {
+                    completed = future.get();
+                } catch (ExecutionException e) {
+                    PhaseFailure failure = (PhaseFailure) e.getCause();
+                    logger.error("Phase {} failed, abort setup", failure.phase.name, failure.getCause());
+                    throw failure.toException();
+                }
+                List<PhaseDefinition> completedDependents = dependents.get(completed.name);
+                if (completedDependents == null) {
+                    continue;
+                }
+                for (PhaseDefinition dependent : completedDependents) {
+                    int remaining = remainingDependencies.get(dependent.name) - 1;
+                    remainingDependencies.put(dependent.name, remaining);
+                    if (remaining == 0) {
+                        submit(dependent, completionService);
+                        running++;
+                    }
+                }
+            }
+        } finally {
+            aborted = true;
+            executor.shutdownNow();
+            if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
+                logger.warn("Some setup phases are still running after abort");
+            }
+            durationInNanos = System.nanoTime() - startTimeInNanos;
+            for (PhaseDefinition phase : phases.values()) {
+                if (phase.status == Status.PENDING) {
+                    phase.status = Status.CANCELLED;
+                }
+            }
+            logTimings();
+        }
+    }
+
+    private void submit(@Nonnull final PhaseDefinition phase, @Nonnull CompletionService<PhaseDefinition> completionService) {
+        completionService.submit(new Callable<PhaseDefinition>() {
+            @Override
+            public PhaseDefinition call() throws Exception {
+                phase.thread = Thread.currentThread().getName();
+                phase.status = Status.RUNNING;
+                phase.startTimeInNanos = System.nanoTime();
+                try {
+                    String fingerprint = null;
+                    if (manifestFile != null && phase.phase instanceof IncrementalPhase) {
+                        IncrementalPhase incrementalPhase = (IncrementalPhase) phase.phase;
+                        fingerprint = incrementalPhase.getInputsFingerprint();
+                        if (fingerprint.equals(getManifestEntry(phase.name)) && isDependenciesSkipped(phase)) {
+                            logger.debug("Skip phase {}, inputs did not change", phase.name);
+                            incrementalPhase.skip();
+                            phase.status = Status.SKIPPED;
+                            return phase;
+                        }
+                        updateManifest(phase.name, null);
+                    }
+                    logger.debug("Start phase {}", phase.name);
+                    phase.phase.execute();
+                    if (fingerprint != null) {
+                        updateManifest(phase.name, fingerprint);
+                    }
+                    phase.status = Status.SUCCESS;
+                    return phase;
+                } catch (Exception | Error e) {
+                    // phases interrupted by the abort of the pipeline are not the cause of the failure
+                    phase.status = aborted ? Status.CANCELLED : Status.FAILURE;
+                    throw new PhaseFailure(phase, e);
+                } finally {
+                    phase.durationInNanos = System.nanoTime() - phase.startTimeInNanos;
+                }
+            }
+        });
+    }
+
+    private boolean isDependenciesSkipped(@Nonnull PhaseDefinition phase) {
+        for (String dependency : phase.dependencies) {
+            if (phases.get(dependency).status != Status.SKIPPED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized void loadManifest() {
+        manifest.clear();
+        if (manifestFile == null || !Files.exists(manifestFile)) {
+            return;
+        }
+        try {
+            Map<?, ?> entries = new ObjectMapper().readValue(manifestFile.toFile(), Map.class);
+            for (Map.Entry<?, ?> entry : entries.entrySet()) {
+                manifest.put(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+            }
+        } catch (IOException e) {
+            logger.warn("Exception reading setup manifest {}, execute all the phases", manifestFile, e);
+        }
+    }
+
+    private synchronized String getManifestEntry(@Nonnull String phase) {
+        return manifest.get(phase);
+    }
+
+    /**
+     * Write the manifest with the given fingerprint of the phase, remove the phase if the fingerprint is {@code null}.
+     */
+    private synchronized void updateManifest(@Nonnull String phase, @Nullable String fingerprint) throws IOException {
+        if (fingerprint == null) {
+            manifest.remove(phase);
+        } else {
+            manifest.put(phase, fingerprint);
+        }
+        // atomic replacement, a partially written manifest would skip phases
+        Path tmpFile = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmpFile)) {
+            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(out, manifest);
+        }
+        Files.move(tmpFile, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    protected void logTimings() {
+        long sumInNanos = 0;
+        StringBuilder sb = new StringBuilder("Setup phases timings:");
+        for (PhaseDefinition phase : phases.values()) {
+            sumInNanos += phase.durationInNanos;
+            sb.append(String.format("%n  %-28s %-9s start: +%6dms, duration: %6dms",
+                    phase.name, phase.status, phase.getStartOffsetInMillis(), phase.getDurationInMillis()));
+        }
+        sb.append(String.format("%n  total: %dms (sum of phases: %dms, parallelism: %d)",
+                TimeUnit.NANOSECONDS.toMillis(durationInNanos), TimeUnit.NANOSECONDS.toMillis(sumInNanos), parallelism));
+        logger.info(sb.toString());
+    }
+
+    /**
+     * Write the timings of the phases of the last {@link #execute()} in JSON.
+     */
+    public void writeTimings(@Nonnull Path timingsFile) throws IOException {
+        Map<String, Object> timings = new LinkedHashMap<>();
+        timings.put("parallelism", parallelism);
+        timings.put("durationInMillis", TimeUnit.NANOSECONDS.toMillis(durationInNanos));
+        List<Map<String, Object>> phasesTimings = new ArrayList<>();
+        for (PhaseDefinition phase : phases.values()) {
+            Map<String, Object> phaseTimings = new LinkedHashMap<>();
+            phaseTimings.put("name", phase.name);
+            phaseTimings.put("dependencies", phase.dependencies);
+            phaseTimings.put("status", phase.status);
+            phaseTimings.put("thread", phase.thread);
+            phaseTimings.put("startOffsetInMillis", phase.getStartOffsetInMillis());
+            phaseTimings.put("durationInMillis", phase.getDurationInMillis());
+            phasesTimings.add(phaseTimings);
+        }
+        timings.put("phases", phasesTimings);
+
+        try (OutputStream out = Files.newOutputStream(timingsFile)) {
+            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(out, timings);
+        }
+        logger.debug("Setup timings written in {}", timingsFile);
+    }
+
+    private class PhaseDefinition {
+        final String name;
+        final Phase phase;
+        final List<String> dependencies;
+        volatile Status status = Status.PENDING;
+        volatile String thread;
+        volatile long startTimeInNanos;
+        volatile long durationInNanos;
+
+        PhaseDefinition(String name, Phase phase, List<String> dependencies) {
+            this.name = name;
+            this.phase = phase;
+            this.dependencies = dependencies;
+        }
+
+        long getStartOffsetInMillis() {
+            return startTimeInNanos == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(startTimeInNanos - SetupPipeline.this.startTimeInNanos);
+        }
+
+        long getDurationInMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(durationInNanos);
+        }
+    }
+
+    private static class PhaseFailure extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final transient PhaseDefinition phase;
+
+        PhaseFailure(PhaseDefinition phase, Throwable cause) {
+            super("Failure in setup phase " + phase.name, cause);
+            this.phase = phase;
+        }
+
+        Exception toException() {
+            if (getCause() instanceof Error) {
+                throw (Error) getCause();
+            }
+            return new Exception(getMessage(), getCause());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty;
+
+import com.google.common.base.Charsets;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Jetty {@code start.ini} / {@code start.d/*.ini} file, preserving the comments and the order of the lines.
+ */
+public class StartIni {
+
+    @Nonnull
+    private final Path file;
+
+    @Nonnull
+    private final List<String> lines;
+
+    private StartIni(@Nonnull Path file, @Nonnull List<String> lines) {
+        this.file = file;
+        this.lines = lines;
+    }
+
+    /**
+     * @param file ini file, created on {@link #save()} if it does not exist
+     */
+    @Nonnull
+    public static StartIni load(@Nonnull Path file) throws IOException {
+        List<String> lines = Files.exists(file) ? new ArrayList<>(Files.readAllLines(file, Charsets.UTF_8)) : new ArrayList<String>();
+        return new StartIni(file, lines);
+    }
+
+    /**
+     * Replace the value of the property (even if commented) or append it.
+     */
+    @Nonnull
+    public StartIni setProperty(@Nonnull String name, @Nonnull String value) {
+        String line = name + "=" + value;
+        for (int i = 0; i < lines.size(); i++) {
+            String current = lines.get(i).trim();
+            if (current.startsWith("#")) {
+                current = current.substring(1).trim();
+            }
+            if (current.startsWith(name + "=")) {
+                lines.set(i, line);
+                return this;
+            }
+        }
+        lines.add(line);
+        return this;
+    }
+
+    public void save() throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, lines, Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Write a {@code .gz} variant next to the compressible static resources of an exploded webapp, served by the
+ * {@code DefaultServlet} to the clients accepting gzip. Resources are compressed once at setup time with the best
+ * compression level instead of on each request.
+ * <p/>
+ * {@code WEB-INF/} and {@code META-INF/} are skipped, {@code .gz} files provided by the application are kept.
+ */
+public class StaticResourcePrecompressor {
+
+    public static final Set<String> DEFAULT_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "html", "htm", "css", "js", "json", "map", "xml", "txt", "svg", "csv", "eot", "ttf", "otf", "ico"));
+
+    /**
+     * Compressed variants that do not save at least 10% are not worth the extra lookup.
+     */
+    private static final double MAX_COMPRESSION_RATIO = 0.9;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Set<String> extensions;
+
+    private final long minSize;
+
+    /**
+     * @param minSize smaller resources are not compressed, see {@code compression_min_size}
+     */
+    public StaticResourcePrecompressor(@Nonnull Set<String> extensions, long minSize) {
+        this.extensions = extensions;
+        this.minSize = minSize;
+    }
+
+    @Nonnull
+    public Result precompress(@Nonnull final Path explodedWebAppDir) throws IOException {
+        final Result result = new Result();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        Files.walkFileTree(explodedWebAppDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Path relativeDir = explodedWebAppDir.relativize(dir);
+                if (relativeDir.startsWith("WEB-INF") || relativeDir.startsWith("META-INF")) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile() && attrs.size() >= minSize && isCompressible(file)) {
+                    Path compressedFile = file.resolveSibling(file.getFileName() + ".gz");
+                    if (!Files.exists(compressedFile)) {
+                        long compressedSize = compress(file, compressedFile, buffer);
+                        if (compressedSize <= attrs.size() * MAX_COMPRESSION_RATIO) {
+                            // same Last-Modified as the resource
+                            Files.setLastModifiedTime(compressedFile, attrs.lastModifiedTime());
+                            result.compressedFiles++;
+                            result.uncompressedBytes += attrs.size();
+                            result.compressedBytes += compressedSize;
+                        } else {
+                            Files.delete(compressedFile);
+                        }
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        logger.info("Precompressed static resources: {}", result);
+        return result;
+    }
+
+    private boolean isCompressible(@Nonnull Path file) {
+        String fileName = file.getFileName().toString();
+        int idx = fileName.lastIndexOf('.');
+        return idx > 0 && extensions.contains(fileName.substring(idx + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @return size of the compressed file
+     */
+    private long compress(@Nonnull Path file, @Nonnull Path compressedFile, @Nonnull byte[] buffer) throws IOException {
+        Path tmpFile = compressedFile.resolveSibling(compressedFile.getFileName() + ".tmp");
+        try (InputStream in = Files.newInputStream(file);
+             OutputStream out = new BestCompressionGZIPOutputStream(Files.newOutputStream(tmpFile), buffer.length)) {
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+        }
+        Files.move(tmpFile, compressedFile, StandardCopyOption.REPLACE_EXISTING);
+        return Files.size(compressedFile);
+    }
+
+    private static class BestCompressionGZIPOutputStream extends GZIPOutputStream {
+        private BestCompressionGZIPOutputStream(OutputStream out, int size) throws IOException {
+            super(out, size);
+            def.setLevel(Deflater.BEST_COMPRESSION);
+        }
+    }
+
+    public static class Result {
+        public int compressedFiles;
+        public long uncompressedBytes;
+        public long compressedBytes;
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "compressedFiles=" + compressedFiles +
+                    ", uncompressedBytes=" + uncompressedBytes +
+                    ", compressedBytes=" + compressedBytes +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Dispatches the entries of a WAR to their destinations in a single sequential read of the archive:
+ * <ul>
+ * <li>{@code META-INF/extra-files/**}: application extra files</li>
+ * <li>{@code META-INF/lib/*.jar}: container extra libs</li>
+ * <li>{@code META-INF/app.xml}: context XML bundled in the application</li>
+ * <li>{@code META-INF/warmup-requests.txt}: warm-up requests bundled in the application</li>
+ * <li>all the entries if an exploded webapp directory is defined</li>
+ * </ul>
+ */
+public class WarScanner {
+
+    public static final String EXTRA_FILES_PREFIX = "META-INF/extra-files/";
+
+    public static final String CONTAINER_EXTRA_LIBS_PREFIX = "META-INF/lib/";
+
+    public static final String BUNDLED_CONTEXT_XML = "META-INF/app.xml";
+
+    public static final String BUNDLED_WARM_UP_REQUESTS = "META-INF/warmup-requests.txt";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Nonnull
+    private final Path warFile;
+    @Nullable
+    private Path extraFilesDir;
+    @Nullable
+    private Path containerExtraLibsDir;
+    @Nullable
+    private Path bundledContextXmlFile;
+    @Nullable
+    private Path bundledWarmUpRequestsFile;
+    @Nullable
+    private Path explodedWebAppDir;
+
+    public WarScanner(@Nonnull Path warFile) {
+        this.warFile = Preconditions.checkNotNull(warFile, "warFile");
+    }
+
+    /**
+     * Copy a file into a directory, as a hard link if possible, otherwise with a zero-copy channel transfer.
+     */
+    @Nonnull
+    public static Path linkOrCopyToDirectory(@Nonnull Path file, @Nonnull Path dir) throws IOException {
+        Path target = dir.resolve(file.getFileName().toString());
+        Files.deleteIfExists(target);
+        try {
+            return Files.createLink(target, file);
+        } catch (IOException | UnsupportedOperationException e) {
+            // different file system
+        }
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            transfer(in, out);
+        }
+        return target;
+    }
+
+    @Nonnull
+    public WarScanner extractApplicationExtraFilesTo(@Nonnull Path extraFilesDir) {
+        this.extraFilesDir = extraFilesDir;
+        return this;
+    }
+
+    @Nonnull
+    public WarScanner extractContainerExtraLibsTo(@Nonnull Path containerExtraLibsDir) {
+        this.containerExtraLibsDir = containerExtraLibsDir;
+        return this;
+    }
+
+    @Nonnull
+    public WarScanner extractBundledContextXmlTo(@Nonnull Path bundledContextXmlFile) {
+        this.bundledContextXmlFile = bundledContextXmlFile;
+        return this;
+    }
+
+    @Nonnull
+    public WarScanner extractBundledWarmUpRequestsTo(@Nonnull Path bundledWarmUpRequestsFile) {
+        this.bundledWarmUpRequestsFile = bundledWarmUpRequestsFile;
+        return this;
+    }
+
+    @Nonnull
+    public WarScanner explodeTo(@Nonnull Path explodedWebAppDir) {
+        this.explodedWebAppDir = explodedWebAppDir;
+        return this;
+    }
+
+    @Nonnull
+    public Result scan() throws IOException {
+        Result result = new Result();
+        long startTimeInNanos = System.nanoTime();
+        try (ZipInputStream zip = new ZipInputStream(new BufferedInputStream(Files.newInputStream(warFile), BUFFER_SIZE))) {
+            ReadableByteChannel zipChannel = Channels.newChannel(zip);
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (entry.isDirectory()) {
+                    if (explodedWebAppDir != null) {
+                        Files.createDirectories(resolveEntry(explodedWebAppDir, name));
+                    }
+                    continue;
+                }
+
+                Path written = null;
+                if (explodedWebAppDir != null) {
+                    written = write(zipChannel, null, resolveEntry(explodedWebAppDir, name), entry);
+                    result.explodedEntries++;
+                }
+                // the entry can be consumed only once, it is copied from the exploded webapp if already written
+                if (extraFilesDir != null && name.startsWith(EXTRA_FILES_PREFIX)) {
+                    write(zipChannel, written, resolveEntry(extraFilesDir, name.substring(EXTRA_FILES_PREFIX.length())), entry);
+                    result.extraFiles++;
+                } else if (containerExtraLibsDir != null && name.startsWith(CONTAINER_EXTRA_LIBS_PREFIX) && name.endsWith(".jar")) {
+                    write(zipChannel, written, resolveEntry(containerExtraLibsDir, name.substring(CONTAINER_EXTRA_LIBS_PREFIX.length())), entry);
+                    result.containerExtraLibs++;
+                } else if (bundledContextXmlFile != null && name.equals(BUNDLED_CONTEXT_XML)) {
+                    write(zipChannel, written, bundledContextXmlFile, entry);
+                    result.bundledContextXml = true;
+                } else if (bundledWarmUpRequestsFile != null && name.equals(BUNDLED_WARM_UP_REQUESTS)) {
+                    write(zipChannel, written, bundledWarmUpRequestsFile, entry);
+                    result.bundledWarmUpRequests = true;
+                }
+            }
+        }
+        logger.debug("Scanned {} in {}ms: {}", warFile, (System.nanoTime() - startTimeInNanos) / 1000000, result);
+        return result;
+    }
+
+    /**
+     * Write the current zip entry in {@code target}, or copy {@code alreadyWritten} if the entry has already been
+     * consumed.
+     *
+     * @return the path of the written file
+     */
+    @Nonnull
+    private Path write(@Nonnull ReadableByteChannel zipChannel, @Nullable Path alreadyWritten, @Nonnull Path target, @Nonnull ZipEntry entry) throws IOException {
+        Files.createDirectories(target.getParent());
+        if (alreadyWritten != null) {
+            try (FileChannel in = FileChannel.open(alreadyWritten, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                transfer(in, out);
+            }
+        } else {
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long position = 0;
+                long transferred;
+                while ((transferred = out.transferFrom(zipChannel, position, BUFFER_SIZE)) > 0) {
+                    position += transferred;
+                }
+            }
+        }
+        if (entry.getTime() != -1) {
+            Files.setLastModifiedTime(target, FileTime.fromMillis(entry.getTime()));
+        }
+        return target;
+    }
+
+    private static void transfer(@Nonnull FileChannel in, @Nonnull FileChannel out) throws IOException {
+        long size = in.size();
+        long position = 0;
+        while (position < size) {
+            position += in.transferTo(position, size - position, out);
+        }
+    }
+
+    @Nonnull
+    private Path resolveEntry(@Nonnull Path dir, @Nonnull String name) throws IOException {
+        Path resolved = dir.resolve(name).normalize();
+        if (!resolved.startsWith(dir.normalize())) {
+            throw new IOException("Illegal entry " + name + " in " + warFile);
+        }
+        return resolved;
+    }
+
+    public static class Result {
+        public boolean bundledContextXml;
+        public boolean bundledWarmUpRequests;
+        public int extraFiles;
+        public int containerExtraLibs;
+        public int explodedEntries;
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "bundledContextXml=" + bundledContextXml +
+                    ", bundledWarmUpRequests=" + bundledWarmUpRequests +
+                    ", extraFiles=" + extraFiles +
+                    ", containerExtraLibs=" + containerExtraLibs +
+                    ", explodedEntries=" + explodedEntries +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty;
+
+import com.google.common.base.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Requests replayed by the warm-up of the server, one per line ({@code GET /path?query}).
+ */
+public class WarmUpRequests {
+
+    /**
+     * {@code User-Agent} of the warm-up requests, see {@code com.cloudbees.clickstack.jetty.extras.warmup.WarmUp}
+     */
+    static final String WARM_UP_USER_AGENT = "clickstack-warmup";
+
+    /**
+     * Successful {@code GET} and {@code HEAD} requests of the NCSA access log
+     */
+    private static final Pattern ACCESS_LOG_REQUEST = Pattern.compile("\"(GET|HEAD) (/\\S*) HTTP/[0-9.]+\" [23]\\d\\d ");
+
+    private static final Logger logger = LoggerFactory.getLogger(WarmUpRequests.class);
+
+    private WarmUpRequests() {
+    }
+
+    /**
+     * Capture the last {@code maxRequests} successful {@code GET} and {@code HEAD} requests of the access log,
+     * excluding the requests of previous warm-ups.
+     *
+     * @return the number of captured requests
+     */
+    public static int captureFromAccessLog(@Nonnull Path accessLog, @Nonnull Path requestsFile, int maxRequests) throws IOException {
+        if (!Files.exists(accessLog)) {
+            logger.debug("No access log {} to capture warm-up requests", accessLog);
+            return 0;
+        }
+        Deque<String> requests = new ArrayDeque<>(maxRequests);
+        try (BufferedReader reader = Files.newBufferedReader(accessLog, Charsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.contains(WARM_UP_USER_AGENT)) {
+                    continue;
+                }
+                Matcher matcher = ACCESS_LOG_REQUEST.matcher(line);
+                if (matcher.find()) {
+                    if (requests.size() == maxRequests) {
+                        requests.removeFirst();
+                    }
+                    requests.addLast(matcher.group(1) + " " + matcher.group(2));
+                }
+            }
+        }
+        if (!requests.isEmpty()) {
+            Files.write(requestsFile, requests, Charsets.UTF_8);
+        }
+        logger.info("Captured {} warm-up requests from {}", requests.size(), accessLog);
+        return requests.size();
+    }
+}
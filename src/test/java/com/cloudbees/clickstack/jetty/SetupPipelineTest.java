@@ -0,0 +1,212 @@
+/*
+ * Copyright 2010-2013, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.jetty;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class SetupPipelineTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path manifestFile;
+
+    private CountingPhase installSkeleton;
+    private CountingPhase installJettyBase;
+    private CountingPhase buildJettyConfiguration;
+
+    @Before
+    public void before() throws Exception {
+        manifestFile = temporaryFolder.getRoot().toPath().resolve("setup-manifest.json");
+        installSkeleton = new CountingPhase("skeleton-1");
+        installJettyBase = new CountingPhase("war-1");
+        buildJettyConfiguration = new CountingPhase("metadata-1");
+    }
+
+    /**
+     * {@code installSkeleton <- installJettyBase <- buildJettyConfiguration}
+     */
+    private void execute() throws Exception {
+        new SetupPipeline(2)
+                .withManifest(manifestFile)
+                .addPhase("installSkeleton", installSkeleton)
+                .addPhase("installJettyBase", installJettyBase, "installSkeleton")
+                .addPhase("buildJettyConfiguration", buildJettyConfiguration, "installJettyBase")
+                .execute();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, String> readManifest() throws Exception {
+        return new ObjectMapper().readValue(manifestFile.toFile(), Map.class);
+    }
+
+    @Test
+    public void phases_with_unchanged_inputs_are_skipped() throws Exception {
+        execute();
+        execute();
+
+        assertThat(installSkeleton.executions, is(1));
+        assertThat(installSkeleton.skips, is(1));
+        assertThat(installJettyBase.executions, is(1));
+        assertThat(buildJettyConfiguration.executions, is(1));
+        assertThat(readManifest(), allOf(
+                hasEntry("installSkeleton", "skeleton-1"),
+                hasEntry("installJettyBase", "war-1"),
+                hasEntry("buildJettyConfiguration", "metadata-1")));
+    }
+
+    @Test
+    public void dependents_of_an_executed_phase_are_executed() throws Exception {
+        execute();
+        installJettyBase.fingerprint = "war-2";
+        execute();
+
+        assertThat(installSkeleton.executions, is(1));
+        assertThat(installJettyBase.executions, is(2));
+        // inputs unchanged but its dependency produced new outputs
+        assertThat(buildJettyConfiguration.executions, is(2));
+        assertThat(readManifest(), hasEntry("installJettyBase", "war-2"));
+    }
+
+    @Test
+    public void phases_are_always_executed_without_manifest() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            new SetupPipeline(2)
+                    .addPhase("installSkeleton", installSkeleton)
+                    .execute();
+        }
+
+        assertThat(installSkeleton.executions, is(2));
+        assertThat(Files.exists(manifestFile), is(false));
+    }
+
+    @Test
+    public void manifest_entry_is_removed_before_the_execution_of_the_phase() throws Exception {
+        execute();
+        installJettyBase.fingerprint = "war-2";
+        installJettyBase.onExecute = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // a kill of the setup at this point must not let the next setup skip the phase
+                    assertThat(readManifest(), not(hasKey("installJettyBase")));
+                    assertThat(readManifest(), hasEntry("installSkeleton", "skeleton-1"));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        execute();
+
+        assertThat(installJettyBase.executions, is(2));
+        assertThat(readManifest(), hasEntry("installJettyBase", "war-2"));
+    }
+
+    @Test
+    public void failed_phase_is_executed_again_by_the_next_setup() throws Exception {
+        execute();
+        installJettyBase.fingerprint = "war-2";
+        installJettyBase.failure = new IllegalStateException("disk full");
+        try {
+            execute();
+            fail("expected a failure of installJettyBase");
+        } catch (Exception e) {
+            assertThat(e.getMessage(), containsString("installJettyBase"));
+            assertThat(e.getCause().getMessage(), is("disk full"));
+        }
+        // dependents are not started after the failure
+        assertThat(buildJettyConfiguration.executions, is(1));
+        assertThat(readManifest(), not(hasKey("installJettyBase")));
+
+        // recovery with the inputs of the failed setup, the phase left partial outputs
+        installJettyBase.failure = null;
+        execute();
+
+        assertThat(installSkeleton.executions, is(1));
+        assertThat(installJettyBase.executions, is(3));
+        assertThat(buildJettyConfiguration.executions, is(2));
+        assertThat(readManifest(), hasEntry("installJettyBase", "war-2"));
+    }
+
+    @Test
+    public void manifest_is_replaced_atomically() throws Exception {
+        execute();
+
+        assertThat(Files.exists(manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp")), is(false));
+        assertThat(readManifest().size(), is(3));
+    }
+
+    @Test
+    public void corrupted_manifest_executes_all_the_phases() throws Exception {
+        execute();
+        Files.write(manifestFile, Collections.singleton("{\"installSkeleton\": \"skel"), StandardCharsets.UTF_8);
+        execute();
+
+        assertThat(installSkeleton.executions, is(2));
+        assertThat(installJettyBase.executions, is(2));
+        assertThat(buildJettyConfiguration.executions, is(2));
+        assertThat(readManifest().size(), is(3));
+    }
+
+    private static class CountingPhase extends SetupPipeline.IncrementalPhase {
+        volatile String fingerprint;
+        volatile Exception failure;
+        volatile Runnable onExecute;
+        volatile int executions;
+        volatile int skips;
+
+        CountingPhase(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public void execute() throws Exception {
+            executions++;
+            if (onExecute != null) {
+                onExecute.run();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        @Nonnull
+        @Override
+        public String getInputsFingerprint() {
+            return fingerprint;
+        }
+
+        @Override
+        public void skip() {
+            skips++;
+        }
+    }
+}